@@ -0,0 +1,62 @@
+/**
+ * A plain BinarySearchTree that inserts and looks values up the way it did
+ * before insertHelper and contains became loops: by recursing once per
+ * level, and in contains calling equals() before compareTo() at every node.
+ * It is only here as the baseline the iterative versions are measured
+ * against, so it leaves out what was added since: counted duplicates,
+ * comparators and metrics. On sorted input it overflows the stack once the
+ * tree is a few thousand levels deep.
+ */
+public class RecursiveBinarySearchTree<T extends Comparable<T>> extends BinarySearchTree<T> {
+
+    @Override
+    protected BSTNode<T> insertHelper(BSTNode<T> newNode, BSTNode<T> subtree) {
+        if (subtree == null) {
+            return null;
+        }
+        // newNode ends up somewhere below subtree
+        subtree.size++;
+        if (newNode.getData().compareTo(subtree.getData()) <= 0) { // nodes less than OR equal to go on the left
+            if (subtree.getLeft() == null) {
+                subtree.setLeft(newNode);
+                newNode.setUp(subtree);
+                updatePath(newNode);
+                return newNode;
+            }
+            else { // continue left to handle existing children
+                return insertHelper(newNode, subtree.getLeft());
+            }
+        }
+        else {
+            if (subtree.getRight() == null) {
+                subtree.setRight(newNode);
+                newNode.setUp(subtree);
+                updatePath(newNode);
+                return newNode;
+            }
+            else { // continue right to handle existing children
+                return insertHelper(newNode, subtree.getRight());
+            }
+        }
+    }
+
+    @Override
+    public boolean contains(Comparable<T> data) {
+        return contains(this.root, data);
+    }
+
+    private boolean contains(BSTNode<T> node, Comparable<T> data) {
+        if (node == null) {
+            return false;
+        }
+        if (node.getData().equals(data)) {
+            return true;
+        }
+        if (data.compareTo(node.getData()) < 0) {
+            return contains(node.getLeft(), data);
+        }
+        else {
+            return contains(node.getRight(), data);
+        }
+    }
+}
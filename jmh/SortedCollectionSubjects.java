@@ -0,0 +1,161 @@
+import benchmarks.Subject;
+import java.util.Iterator;
+import java.util.function.Function;
+
+/**
+ * Creates the collections the benchmarks measure, by name, each wrapped in
+ * a Subject (see there for why the benchmarks cannot use them directly).
+ */
+public class SortedCollectionSubjects implements Function<String, Subject> {
+
+    @Override
+    public Subject apply(String implementation) {
+        switch (implementation) {
+            case "BinarySearchTree":
+                return new CollectionSubject(new BinarySearchTree<>(), false);
+            // the recursive insert and contains BinarySearchTree had before,
+            // as a baseline for the iterative ones
+            case "BinarySearchTree(recursive)":
+                return new CollectionSubject(new RecursiveBinarySearchTree<>(), false);
+            case "RedBlackTree":
+                return new CollectionSubject(new RedBlackTree<>(), true);
+            case "RedBlackTree(counted)":
+                return new CollectionSubject(new RedBlackTree<>(true), true);
+            case "RedBlackTree(pooled)":
+                RedBlackTree<Integer> pooled = new RedBlackTree<>();
+                pooled.enableNodePool(Integer.MAX_VALUE);
+                return new CollectionSubject(pooled, true);
+            // a plain RedBlackTree shared the only way it can be without
+            // ConcurrentRedBlackTree
+            case "RedBlackTree+globalLock":
+                return new LockedSubject(new RedBlackTree<>());
+            case "ConcurrentRedBlackTree":
+                return new CollectionSubject(new ConcurrentRedBlackTree<>(), true);
+            // splaying pays off when lookups are skewed, compare them on ZIPFIAN
+            case "SplayTree":
+                return new CollectionSubject(new SplayTree<>(), true);
+            case "SplayTree(semi)":
+                return new CollectionSubject(new SplayTree<>(SplayTree.Mode.SEMI), true);
+            case "Treap":
+                return new CollectionSubject(new Treap<>(), true);
+            default:
+                // BPlusTree(fan-out), to compare fan-outs for BPlusTree.DEFAULT_FAN_OUT
+                if (implementation.startsWith("BPlusTree(") && implementation.endsWith(")")) {
+                    int fanOut = Integer.parseInt(implementation.substring(10, implementation.length() - 1));
+                    return new CollectionSubject(new BPlusTree<>(fanOut), true);
+                }
+                throw new IllegalArgumentException("unknown implementation " + implementation);
+        }
+    }
+
+    /**
+     * A SortedCollection of Integers as a Subject.
+     */
+    private static class CollectionSubject implements Subject {
+        private final SortedCollection<Integer> collection;
+        private final boolean balanced;
+
+        private CollectionSubject(SortedCollection<Integer> collection, boolean balanced) {
+            this.collection = collection;
+            this.balanced = balanced;
+        }
+
+        @Override
+        public void insert(Integer key) {
+            this.collection.insert(key);
+        }
+
+        @Override
+        public boolean contains(Integer key) {
+            return this.collection.contains(key);
+        }
+
+        @Override
+        public boolean remove(Integer key) {
+            if (!(this.collection instanceof RemovableSortedCollection)) {
+                throw new UnsupportedOperationException("remove");
+            }
+            return ((RemovableSortedCollection<Integer>) this.collection).remove(key);
+        }
+
+        @Override
+        public int size() {
+            return this.collection.size();
+        }
+
+        @Override
+        public void clear() {
+            this.collection.clear();
+        }
+
+        @Override
+        public Iterator<Integer> scan() {
+            return this.collection.range(null, null);
+        }
+
+        @Override
+        public String inOrderString() {
+            BSTNode<Integer> root = tree().root;
+            return root == null ? "" : root.toInOrderString();
+        }
+
+        @Override
+        public String levelOrderString() {
+            BSTNode<Integer> root = tree().root;
+            return root == null ? "" : root.toLevelOrderString();
+        }
+
+        @Override
+        public Subject freeze() {
+            return new CollectionSubject(tree().freeze(), true);
+        }
+
+        @Override
+        public boolean isBalanced() {
+            return this.balanced;
+        }
+
+        private BinarySearchTree<Integer> tree() {
+            if (!(this.collection instanceof BinarySearchTree)) {
+                throw new UnsupportedOperationException(this.collection.getClass().getName()
+                        + " is not a BinarySearchTree");
+            }
+            return (BinarySearchTree<Integer>) this.collection;
+        }
+    }
+
+    /**
+     * A RedBlackTree behind one lock that every call takes.
+     */
+    private static class LockedSubject extends CollectionSubject {
+
+        private LockedSubject(RedBlackTree<Integer> tree) {
+            super(tree, true);
+        }
+
+        @Override
+        public synchronized void insert(Integer key) {
+            super.insert(key);
+        }
+
+        @Override
+        public synchronized boolean contains(Integer key) {
+            return super.contains(key);
+        }
+
+        @Override
+        public synchronized boolean remove(Integer key) {
+            return super.remove(key);
+        }
+
+        @Override
+        public synchronized int size() {
+            return super.size();
+        }
+
+        @Override
+        public synchronized void clear() {
+            super.clear();
+        }
+    }
+}
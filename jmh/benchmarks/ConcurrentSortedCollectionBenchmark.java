@@ -0,0 +1,99 @@
+package benchmarks;
+
+import java.util.Random;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.ThreadParams;
+
+/**
+ * Measures the throughput of a tree shared by several threads under a mix
+ * of contains (reads) and insert/remove (writes) calls. The tree starts out
+ * with every even key of the key space, and each thread alternates its
+ * writes between inserting and removing a random key, so the tree keeps
+ * roughly its size.
+ *
+ * The implementations compared are ConcurrentRedBlackTree and a plain
+ * RedBlackTree behind a single global lock, which is how the tree has to be
+ * shared without ConcurrentRedBlackTree. ConcurrentRedBlackTree runs the
+ * inserts latched, side by side, but its removals still take the write
+ * lock for themselves. JMH reports the operations per second of all
+ * threads together; run the benchmark once per thread count, from 1 to the
+ * number of cores, to see how it scales:
+ *   for t in 1 2 4 8 16 32; do
+ *       java -jar build/libs/sorted-collections-jmh.jar ConcurrentSortedCollectionBenchmark -t $t
+ *   done
+ * More threads than cores only measure the scheduler.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 2, jvmArgsAppend = {"-Xms2g", "-Xmx2g"})
+@State(Scope.Benchmark)
+public class ConcurrentSortedCollectionBenchmark {
+
+    @Param({"ConcurrentRedBlackTree", "RedBlackTree+globalLock"})
+    public String implementation;
+
+    @Param({"90", "50"})
+    public int readPercent;
+
+    @Param({"1000000"})
+    public int keys;
+
+    private Subject tree;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        this.tree = Subject.create(this.implementation);
+        Integer[] prefill = new Integer[this.keys / 2];
+        for (int i = 0; i < prefill.length; i++) {
+            prefill[i] = 2 * i;
+        }
+        KeyDistribution.shuffle(prefill, new Random(400));
+        for (Integer key : prefill) {
+            this.tree.insert(key);
+        }
+    }
+
+    /**
+     * What one thread draws its keys from, and whether its next write is an
+     * insert or a remove.
+     */
+    @State(Scope.Thread)
+    public static class Worker {
+        SplittableRandom random;
+        boolean insertNext = true;
+
+        @Setup(Level.Trial)
+        public void setUp(ThreadParams thread) {
+            this.random = new SplittableRandom(thread.getThreadIndex() * 7919L);
+        }
+    }
+
+    @Benchmark
+    public boolean mixed(Worker worker) {
+        Integer key = worker.random.nextInt(this.keys);
+        if (worker.random.nextInt(100) < this.readPercent) {
+            return this.tree.contains(key);
+        }
+        worker.insertNext = !worker.insertNext;
+        if (!worker.insertNext) {
+            this.tree.insert(key);
+            return true;
+        }
+        return this.tree.remove(key);
+    }
+}
@@ -0,0 +1,133 @@
+package benchmarks;
+
+import java.util.Random;
+
+/**
+ * The orders keys are inserted in, and looked up with.
+ */
+public enum KeyDistribution {
+    // uniformly random keys across the whole int range
+    UNIFORM,
+    // 0, 1, 2, ... in ascending order, the worst case for a plain BST
+    SORTED,
+    // n - 1, n - 2, ..., 0 in descending order, the mirror image of SORTED
+    REVERSE_SORTED,
+    // keys drawn from a Zipfian distribution (theta 0.99) over n values,
+    // so a few keys repeat very often and most appear once or never
+    ZIPFIAN,
+    // uniformly random keys drawn from only n / 100 distinct values
+    DUPLICATES,
+    // 0, n - 1, 1, n - 2, ... closing in on the middle from both ends:
+    // every key lands below the previous one in a plain BST, which
+    // becomes a zig-zag path, and a red-black tree keeps rebalancing
+    ADVERSARIAL;
+
+    /**
+     * Generates n keys in insertion order.
+     * @param n the number of keys
+     * @param random the source of randomness, seeded for repeatable runs
+     * @return the keys, boxed ahead of time so boxing is never measured
+     */
+    public Integer[] keys(int n, Random random) {
+        Integer[] keys = new Integer[n];
+        switch (this) {
+            case UNIFORM:
+                for (int i = 0; i < n; i++) {
+                    keys[i] = random.nextInt();
+                }
+                break;
+            case SORTED:
+                for (int i = 0; i < n; i++) {
+                    keys[i] = i;
+                }
+                break;
+            case REVERSE_SORTED:
+                for (int i = 0; i < n; i++) {
+                    keys[i] = n - 1 - i;
+                }
+                break;
+            case ZIPFIAN:
+                ZipfianGenerator zipf = new ZipfianGenerator(n, 0.99);
+                for (int i = 0; i < n; i++) {
+                    keys[i] = zipf.next(random);
+                }
+                break;
+            case DUPLICATES:
+                int distinct = Math.max(1, n / 100);
+                for (int i = 0; i < n; i++) {
+                    keys[i] = random.nextInt(distinct);
+                }
+                break;
+            case ADVERSARIAL:
+                for (int i = 0; i < n; i++) {
+                    keys[i] = i % 2 == 0 ? i / 2 : n - 1 - i / 2;
+                }
+                break;
+        }
+        return keys;
+    }
+
+    /**
+     * @return true if inserting the keys in order turns a tree that does
+     *     not rebalance into a path, so building it takes quadratic time
+     */
+    public boolean degenerates() {
+        return this == SORTED || this == REVERSE_SORTED || this == ADVERSARIAL;
+    }
+
+    /**
+     * Shuffles keys in place.
+     */
+    public static void shuffle(Integer[] keys, Random random) {
+        for (int i = keys.length - 1; i > 0; i--) {
+            int j = random.nextInt(i + 1);
+            Integer temp = keys[i];
+            keys[i] = keys[j];
+            keys[j] = temp;
+        }
+    }
+
+    /**
+     * Draws values 0 .. n-1 where value i has probability proportional to
+     * 1 / (i + 1)^theta, using the constant-time inversion from Gray et al.,
+     * "Quickly Generating Billion-Record Synthetic Databases".
+     */
+    public static class ZipfianGenerator {
+        private final int n;
+        private final double theta;
+        private final double alpha;
+        private final double zetan;
+        private final double eta;
+
+        public ZipfianGenerator(int n, double theta) {
+            this.n = n;
+            this.theta = theta;
+            this.alpha = 1.0 / (1.0 - theta);
+            this.zetan = zeta(n, theta);
+            this.eta = (1 - Math.pow(2.0 / n, 1 - theta)) / (1 - zeta(2, theta) / this.zetan);
+        }
+
+        private static double zeta(int n, double theta) {
+            double sum = 0;
+            for (int i = 1; i <= n; i++) {
+                sum += 1 / Math.pow(i, theta);
+            }
+            return sum;
+        }
+
+        /**
+         * @return the next value, where 0 is the most frequent
+         */
+        public int next(Random random) {
+            double u = random.nextDouble();
+            double uz = u * this.zetan;
+            if (uz < 1.0) {
+                return 0;
+            }
+            if (uz < 1.0 + Math.pow(0.5, this.theta)) {
+                return Math.min(1, this.n - 1);
+            }
+            return (int) Math.min(this.n - 1, this.n * Math.pow(this.eta * u - this.eta + 1, this.alpha));
+        }
+    }
+}
@@ -0,0 +1,57 @@
+package benchmarks;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures what a node pool saves a tree that is cleared and rebuilt over
+ * and over: every operation clears the tree and inserts the same uniformly
+ * random keys again. Run it with JMH's GC profiler to see the bytes
+ * allocated per rebuild (gc.alloc.rate.norm) and the collections it causes
+ * (gc.count, gc.time):
+ *   java -jar build/libs/sorted-collections-jmh.jar NodePoolBenchmark -prof gc
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 10, time = 2)
+@Fork(value = 2, jvmArgsAppend = {"-Xms2g", "-Xmx2g"})
+@State(Scope.Benchmark)
+public class NodePoolBenchmark {
+
+    @Param({"RedBlackTree", "RedBlackTree(pooled)"})
+    public String implementation;
+
+    @Param({"1000000"})
+    public int size;
+
+    private Integer[] keys;
+    private Subject tree;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        this.keys = KeyDistribution.UNIFORM.keys(this.size, new Random(400));
+        this.tree = Subject.create(this.implementation);
+    }
+
+    @Benchmark
+    public int rebuild() {
+        this.tree.clear();
+        for (Integer key : this.keys) {
+            this.tree.insert(key);
+        }
+        return this.tree.size();
+    }
+}
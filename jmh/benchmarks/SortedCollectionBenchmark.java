@@ -0,0 +1,148 @@
+package benchmarks;
+
+import java.util.Iterator;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Measures the SortedCollection operations of every implementation over
+ * every key distribution and size, so implementations can be compared
+ * with each other and versions of one implementation across commits.
+ *
+ * insert builds a collection of all size keys, and scan iterates all of
+ * its values, so their times are per collection; divide by size for the
+ * time per key. contains looks up one key at a time, in a shuffled order
+ * of the inserted keys, and size is a single call. clear empties a full
+ * collection, one per iteration.
+ *
+ * The full parameter space takes many hours, so pick what to compare on the
+ * command line of the benchmark jar, for example
+ *   java -jar build/libs/sorted-collections-jmh.jar SortedCollectionBenchmark \
+ *       -p implementation=RedBlackTree,Treap -p distribution=UNIFORM,SORTED -p size=1000000
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 2, jvmArgsAppend = {"-Xms3g", "-Xmx3g"})
+@State(Scope.Benchmark)
+public class SortedCollectionBenchmark {
+
+    // the most keys a tree that does not rebalance is built from when the
+    // input degenerates it, see checkFeasible
+    static final int MAX_DEGENERATE_SIZE = 100_000;
+
+    @Param({"BinarySearchTree", "BinarySearchTree(recursive)", "RedBlackTree", "RedBlackTree(counted)",
+            "SplayTree", "SplayTree(semi)", "Treap", "BPlusTree(16)", "BPlusTree(32)", "BPlusTree(64)", "BPlusTree(128)"})
+    public String implementation;
+
+    @Param({"UNIFORM", "SORTED", "REVERSE_SORTED", "ZIPFIAN", "DUPLICATES", "ADVERSARIAL"})
+    public KeyDistribution distribution;
+
+    @Param({"1000", "10000", "100000", "1000000", "10000000"})
+    public int size;
+
+    private Integer[] keys;
+    private Integer[] queries;
+    private Subject filled;
+    private int next;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        checkFeasible(Subject.create(this.implementation), this.distribution, this.size);
+        Random random = new Random(400);
+        this.keys = this.distribution.keys(this.size, random);
+        this.queries = this.keys.clone();
+        KeyDistribution.shuffle(this.queries, random);
+        this.filled = fill();
+    }
+
+    /**
+     * Refuses to build a tree that does not rebalance from degenerate input
+     * above MAX_DEGENERATE_SIZE keys, which would take quadratic time.
+     * @throws IllegalStateException to make JMH skip the parameters
+     */
+    static void checkFeasible(Subject subject, KeyDistribution distribution, int size)
+            throws IllegalStateException {
+        if (!subject.isBalanced() && distribution.degenerates() && size > MAX_DEGENERATE_SIZE) {
+            throw new IllegalStateException("a tree that does not rebalance takes quadratic time on "
+                    + distribution + " input, sizes above " + MAX_DEGENERATE_SIZE + " are not run");
+        }
+    }
+
+    /**
+     * @return a new collection of the implementation with every key inserted
+     */
+    Subject fill() {
+        Subject subject = Subject.create(this.implementation);
+        for (Integer key : this.keys) {
+            subject.insert(key);
+        }
+        return subject;
+    }
+
+    @Benchmark
+    public Subject insert() {
+        Subject subject = Subject.create(this.implementation);
+        for (Integer key : this.keys) {
+            subject.insert(key);
+        }
+        return subject;
+    }
+
+    @Benchmark
+    public boolean contains() {
+        Integer query = this.queries[this.next];
+        if (++this.next == this.queries.length) {
+            this.next = 0;
+        }
+        return this.filled.contains(query);
+    }
+
+    @Benchmark
+    public int size() {
+        return this.filled.size();
+    }
+
+    @Benchmark
+    public void scan(Blackhole blackhole) {
+        for (Iterator<Integer> values = this.filled.scan(); values.hasNext();) {
+            blackhole.consume(values.next());
+        }
+    }
+
+    /**
+     * A full collection to clear, built again before every iteration.
+     */
+    @State(Scope.Thread)
+    public static class Full {
+        Subject subject;
+
+        @Setup(Level.Iteration)
+        public void fill(SortedCollectionBenchmark benchmark) {
+            this.subject = benchmark.fill();
+        }
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @Warmup(iterations = 5)
+    @Measurement(iterations = 20)
+    public int clear(Full full) {
+        full.subject.clear();
+        return full.subject.size();
+    }
+}
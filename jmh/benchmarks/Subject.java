@@ -0,0 +1,74 @@
+package benchmarks;
+
+import java.util.Iterator;
+
+/**
+ * A collection being measured, seen through the operations the benchmarks
+ * call on it.
+ *
+ * JMH only accepts benchmarks that are in a package, and the collections
+ * are all in the unnamed package, which code in a package cannot name. So
+ * the benchmarks work on Subjects, and SortedCollectionSubjects, which is in
+ * the unnamed package too, wraps each collection in one. Every JMH fork
+ * measures a single implementation, so the calls through this interface
+ * stay monomorphic and the JIT inlines them.
+ */
+public interface Subject {
+
+    void insert(Integer key);
+
+    boolean contains(Integer key);
+
+    /**
+     * @throws UnsupportedOperationException if the collection does not
+     *     support removal
+     */
+    boolean remove(Integer key);
+
+    int size();
+
+    void clear();
+
+    /**
+     * @return an iterator over every value in ascending order
+     */
+    Iterator<Integer> scan();
+
+    /**
+     * @return the values in in-order, as BSTNode.toInOrderString writes them
+     * @throws UnsupportedOperationException if the collection is not a
+     *     BinarySearchTree
+     */
+    String inOrderString();
+
+    /**
+     * @return the values in level-order, as BSTNode.toLevelOrderString
+     *     writes them
+     * @throws UnsupportedOperationException if the collection is not a
+     *     BinarySearchTree
+     */
+    String levelOrderString();
+
+    /**
+     * @return BinarySearchTree.freeze() of the collection
+     * @throws UnsupportedOperationException if the collection is not a
+     *     BinarySearchTree
+     */
+    Subject freeze();
+
+    /**
+     * @return false for a tree that does not rebalance, which becomes a
+     *     path on KeyDistribution.degenerates() input
+     */
+    boolean isBalanced();
+
+    /**
+     * Creates an empty collection.
+     * @param implementation the name of the implementation, one of those
+     *     listed in the benchmarks' implementation parameters
+     * @throws IllegalArgumentException if there is no such implementation
+     */
+    static Subject create(String implementation) throws IllegalArgumentException {
+        return Subjects.FACTORY.apply(implementation);
+    }
+}
@@ -0,0 +1,28 @@
+package benchmarks;
+
+import java.lang.reflect.InvocationTargetException;
+import java.util.function.Function;
+
+/**
+ * Holds the factory behind Subject.create, which is in the unnamed package
+ * and so can only be loaded by name.
+ */
+final class Subjects {
+
+    static final Function<String, Subject> FACTORY = load();
+
+    private Subjects() {
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Function<String, Subject> load() {
+        try {
+            return (Function<String, Subject>) Class.forName("SortedCollectionSubjects")
+                    .getDeclaredConstructor().newInstance();
+        }
+        catch (ClassNotFoundException | NoSuchMethodException | InstantiationException | IllegalAccessException
+                | InvocationTargetException e) {
+            throw new IllegalStateException("cannot load SortedCollectionSubjects", e);
+        }
+    }
+}
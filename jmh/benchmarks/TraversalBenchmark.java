@@ -0,0 +1,78 @@
+package benchmarks;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures what only the BinarySearchTree based collections offer: the
+ * in-order and level-order traversal strings, timed per string of the whole
+ * tree, and contains on BinarySearchTree.freeze() of the tree, per lookup,
+ * to compare with SortedCollectionBenchmark.contains.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 2, jvmArgsAppend = {"-Xms3g", "-Xmx3g"})
+@State(Scope.Benchmark)
+public class TraversalBenchmark {
+
+    @Param({"BinarySearchTree", "RedBlackTree", "SplayTree", "Treap"})
+    public String implementation;
+
+    @Param({"UNIFORM", "SORTED", "REVERSE_SORTED", "ZIPFIAN", "DUPLICATES", "ADVERSARIAL"})
+    public KeyDistribution distribution;
+
+    @Param({"1000", "10000", "100000", "1000000", "10000000"})
+    public int size;
+
+    private Subject tree;
+    private Subject frozen;
+    private Integer[] queries;
+    private int next;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        this.tree = Subject.create(this.implementation);
+        SortedCollectionBenchmark.checkFeasible(this.tree, this.distribution, this.size);
+        Random random = new Random(400);
+        Integer[] keys = this.distribution.keys(this.size, random);
+        for (Integer key : keys) {
+            this.tree.insert(key);
+        }
+        this.frozen = this.tree.freeze();
+        this.queries = keys.clone();
+        KeyDistribution.shuffle(this.queries, random);
+    }
+
+    @Benchmark
+    public String inOrderString() {
+        return this.tree.inOrderString();
+    }
+
+    @Benchmark
+    public String levelOrderString() {
+        return this.tree.levelOrderString();
+    }
+
+    @Benchmark
+    public boolean frozenContains() {
+        Integer query = this.queries[this.next];
+        if (++this.next == this.queries.length) {
+            this.next = 0;
+        }
+        return this.frozen.contains(query);
+    }
+}
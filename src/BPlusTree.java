@@ -0,0 +1,514 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.ConcurrentModificationException;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Random;
+
+/**
+ * A B+-tree implementation of SortedCollection. Every node holds up to
+ * fanOut keys in an array, so a lookup touches one node per level and
+ * searches the keys within a node with a binary search, instead of chasing
+ * one pointer (and likely missing the cache) per comparison like a binary
+ * tree does. With a fan-out of 64 a tree of 30 million keys is 5 levels
+ * deep, where a balanced binary tree is about 25.
+ *
+ * All values are stored in the leaves, which are linked to their
+ * neighbours, so in-order scans and range queries walk the leaves from left
+ * to right without going back up the tree. The inner nodes only hold
+ * separator keys: the first key of each child but the leftmost one at the
+ * time the child was split off. Duplicate values are stored side by side
+ * and may span several leaves.
+ */
+public class BPlusTree<T extends Comparable<T>> implements SortedCollection<T>, Iterable<T> {
+
+    /**
+     * The number of keys per node used by the no-argument constructor.
+     */
+    public static final int DEFAULT_FAN_OUT = 64;
+
+    /**
+     * A leaf or inner node. The key arrays have one spare slot, so a node
+     * can overflow by one key before it is split.
+     */
+    private static class Node {
+        protected final Object[] keys;
+        protected int size;
+
+        private Node(int fanOut) {
+            this.keys = new Object[fanOut + 1];
+        }
+    }
+
+    private static class Leaf extends Node {
+        protected Leaf next;
+        protected Leaf previous;
+
+        private Leaf(int fanOut) {
+            super(fanOut);
+        }
+    }
+
+    private static class Inner extends Node {
+        // children[i] holds the keys between keys[i - 1] and keys[i]
+        protected final Node[] children;
+
+        private Inner(int fanOut) {
+            super(fanOut);
+            this.children = new Node[fanOut + 2];
+        }
+    }
+
+    protected final int fanOut;
+    protected Node root;
+    protected int size;
+    protected int height = 1;
+    protected int modCount;
+
+    public BPlusTree() {
+        this(DEFAULT_FAN_OUT);
+    }
+
+    /**
+     * @param fanOut the largest number of keys a node holds, at least 4
+     * @throws IllegalArgumentException if fanOut is less than 4
+     */
+    public BPlusTree(int fanOut) {
+        if (fanOut < 4) {
+            throw new IllegalArgumentException("fan-out must be at least 4 but was " + fanOut);
+        }
+        this.fanOut = fanOut;
+        this.root = new Leaf(fanOut);
+    }
+
+    /**
+     * Binary searches the keys of a node.
+     * @return the index of the first key that is >= data (or, when not
+     *     inclusive, > data), or node.size when there is none
+     */
+    @SuppressWarnings("unchecked")
+    private int search(Node node, Comparable<T> data, boolean inclusive) {
+        int low = 0;
+        int high = node.size;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            int comparison = data.compareTo((T) node.keys[middle]);
+            if (comparison > 0 || (comparison == 0 && !inclusive)) {
+                low = middle + 1;
+            }
+            else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Walks down to a leaf. When inclusive, it is the leftmost leaf that
+     * can hold data, otherwise it is the leaf right after the last one that
+     * holds values <= data.
+     */
+    private Leaf findLeaf(Comparable<T> data, boolean inclusive) {
+        Node node = this.root;
+        while (node instanceof Inner) {
+            node = ((Inner) node).children[search(node, data, inclusive)];
+        }
+        return (Leaf) node;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> T key(Node node, int index) {
+        return (T) node.keys[index];
+    }
+
+    /**
+     * Inserts a new data value into the tree. Equal values are inserted
+     * after the ones already stored. Full nodes are split in half on the
+     * way back up, and a split root makes the tree one level taller.
+     * @param data the new value being inserted
+     * @throws NullPointerException if data is null
+     */
+    @Override
+    public void insert(T data) throws NullPointerException {
+        if (data == null) {
+            throw new NullPointerException();
+        }
+        this.modCount++;
+        // the inner nodes on the way down, and the child index taken in each
+        Inner[] path = new Inner[this.height];
+        int[] indexes = new int[this.height];
+        int depth = 0;
+        Node node = this.root;
+        while (node instanceof Inner) {
+            int index = search(node, data, false);
+            path[depth] = (Inner) node;
+            indexes[depth] = index;
+            depth++;
+            node = ((Inner) node).children[index];
+        }
+        int position = search(node, data, false);
+        System.arraycopy(node.keys, position, node.keys, position + 1, node.size - position);
+        node.keys[position] = data;
+        node.size++;
+        this.size++;
+
+        // split overflowing nodes from the leaf up
+        while (node.size > this.fanOut) {
+            Object separator;
+            Node sibling;
+            if (node instanceof Leaf) {
+                Leaf leaf = (Leaf) node;
+                Leaf right = new Leaf(this.fanOut);
+                int half = leaf.size / 2;
+                right.size = leaf.size - half;
+                System.arraycopy(leaf.keys, half, right.keys, 0, right.size);
+                Arrays.fill(leaf.keys, half, leaf.size, null);
+                leaf.size = half;
+                right.next = leaf.next;
+                right.previous = leaf;
+                if (leaf.next != null) {
+                    leaf.next.previous = right;
+                }
+                leaf.next = right;
+                separator = right.keys[0];
+                sibling = right;
+            }
+            else {
+                Inner inner = (Inner) node;
+                Inner right = new Inner(this.fanOut);
+                int half = inner.size / 2;
+                // the middle key moves up to the parent
+                separator = inner.keys[half];
+                right.size = inner.size - half - 1;
+                System.arraycopy(inner.keys, half + 1, right.keys, 0, right.size);
+                System.arraycopy(inner.children, half + 1, right.children, 0, right.size + 1);
+                Arrays.fill(inner.keys, half, inner.size, null);
+                Arrays.fill(inner.children, half + 1, inner.size + 1, null);
+                inner.size = half;
+                sibling = right;
+            }
+            if (depth == 0) {
+                Inner newRoot = new Inner(this.fanOut);
+                newRoot.keys[0] = separator;
+                newRoot.children[0] = node;
+                newRoot.children[1] = sibling;
+                newRoot.size = 1;
+                this.root = newRoot;
+                this.height++;
+                return;
+            }
+            depth--;
+            Inner parent = path[depth];
+            int index = indexes[depth];
+            System.arraycopy(parent.keys, index, parent.keys, index + 1, parent.size - index);
+            System.arraycopy(parent.children, index + 1, parent.children, index + 2, parent.size - index);
+            parent.keys[index] = separator;
+            parent.children[index + 1] = sibling;
+            parent.size++;
+            node = parent;
+        }
+    }
+
+    /**
+     * Check whether data is stored in the tree.
+     * @param data the value to check for in the collection
+     * @return true if the collection contains data one or more times,
+     * and false otherwise
+     */
+    @Override
+    public boolean contains(Comparable<T> data) {
+        T ceiling = ceiling(data);
+        return ceiling != null && data.compareTo(ceiling) == 0;
+    }
+
+    @Override
+    public T floor(Comparable<T> data) {
+        Leaf leaf = findLeaf(data, false);
+        int position = search(leaf, data, false) - 1;
+        if (position >= 0) {
+            return key(leaf, position);
+        }
+        return leaf.previous == null ? null : key(leaf.previous, leaf.previous.size - 1);
+    }
+
+    @Override
+    public T ceiling(Comparable<T> data) {
+        Leaf leaf = findLeaf(data, true);
+        int position = search(leaf, data, true);
+        if (position < leaf.size) {
+            return key(leaf, position);
+        }
+        return leaf.next == null ? null : key(leaf.next, 0);
+    }
+
+    @Override
+    public T lower(Comparable<T> data) {
+        Leaf leaf = findLeaf(data, true);
+        int position = search(leaf, data, true) - 1;
+        if (position >= 0) {
+            return key(leaf, position);
+        }
+        return leaf.previous == null ? null : key(leaf.previous, leaf.previous.size - 1);
+    }
+
+    @Override
+    public T higher(Comparable<T> data) {
+        Leaf leaf = findLeaf(data, false);
+        int position = search(leaf, data, false);
+        if (position < leaf.size) {
+            return key(leaf, position);
+        }
+        return leaf.next == null ? null : key(leaf.next, 0);
+    }
+
+    /**
+     * Scans [from, to) by finding the leaf of from and then following the
+     * leaf links, so the scan never goes back up the tree.
+     */
+    @Override
+    public Iterator<T> range(Comparable<T> from, Comparable<T> to) {
+        Leaf leaf;
+        int position;
+        if (from == null) {
+            Node node = this.root;
+            while (node instanceof Inner) {
+                node = ((Inner) node).children[0];
+            }
+            leaf = (Leaf) node;
+            position = 0;
+        }
+        else {
+            leaf = findLeaf(from, true);
+            position = search(leaf, from, true);
+        }
+        return new LeafIterator(leaf, position, to);
+    }
+
+    /**
+     * @return an iterator over every value in ascending order
+     */
+    @Override
+    public Iterator<T> iterator() {
+        return range(null, null);
+    }
+
+    /**
+     * Iterates over the leaves from a starting position to an optional
+     * exclusive upper bound. Changing the tree while iterating throws a
+     * ConcurrentModificationException.
+     */
+    private class LeafIterator implements Iterator<T> {
+        private Leaf leaf;
+        private int position;
+        private final Comparable<T> to;
+        private final int expectedModCount = BPlusTree.this.modCount;
+
+        private LeafIterator(Leaf leaf, int position, Comparable<T> to) {
+            this.leaf = leaf;
+            this.position = position;
+            this.to = to;
+            skipToValue();
+        }
+
+        // moves past the end of the current leaf, to the start of the next one
+        private void skipToValue() {
+            while (this.leaf != null && this.position >= this.leaf.size) {
+                this.leaf = this.leaf.next;
+                this.position = 0;
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            if (BPlusTree.this.modCount != this.expectedModCount) {
+                throw new ConcurrentModificationException();
+            }
+            return this.leaf != null
+                    && (this.to == null || this.to.compareTo(BPlusTree.<T>key(this.leaf, this.position)) > 0);
+        }
+
+        @Override
+        public T next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            T next = key(this.leaf, this.position++);
+            skipToValue();
+            return next;
+        }
+    }
+
+    /**
+     * @return the number of levels in the tree, 1 when it is only a leaf
+     */
+    public int height() {
+        return this.height;
+    }
+
+    @Override
+    public int size() {
+        return this.size;
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return this.size == 0;
+    }
+
+    @Override
+    public void clear() {
+        this.modCount++;
+        this.root = new Leaf(this.fanOut);
+        this.size = 0;
+        this.height = 1;
+    }
+
+    /**
+     * Checks that every leaf is at the same depth, that no node but the root
+     * has fewer than fanOut / 2 keys, that every key lies between the
+     * separators around its node, and that the leaf links visit every value
+     * in order.
+     * @throws IllegalStateException describing the first violation found
+     */
+    public void validate() {
+        List<Leaf> leaves = new ArrayList<>();
+        validate(this.root, null, null, 1, leaves);
+        int counted = 0;
+        Leaf previous = null;
+        for (Leaf leaf : leaves) {
+            if (leaf.previous != previous || (previous != null && previous.next != leaf)) {
+                throw new IllegalStateException("broken leaf link");
+            }
+            counted += leaf.size;
+            previous = leaf;
+        }
+        if (previous != null && previous.next != null) {
+            throw new IllegalStateException("last leaf links to another");
+        }
+        if (counted != this.size) {
+            throw new IllegalStateException("size is " + this.size + " but " + counted + " values are stored");
+        }
+    }
+
+    private void validate(Node node, T low, T high, int depth, List<Leaf> leaves) {
+        if (node != this.root && node.size < this.fanOut / 2) {
+            throw new IllegalStateException("node with only " + node.size + " keys");
+        }
+        for (int i = 0; i < node.size; i++) {
+            T key = key(node, i);
+            if ((low != null && key.compareTo(low) < 0) || (high != null && key.compareTo(high) > 0)
+                    || (i > 0 && BPlusTree.<T>key(node, i - 1).compareTo(key) > 0)) {
+                throw new IllegalStateException("key " + key + " out of order");
+            }
+        }
+        if (node instanceof Leaf) {
+            if (depth != this.height) {
+                throw new IllegalStateException("leaf at depth " + depth + " in a tree of height " + this.height);
+            }
+            leaves.add((Leaf) node);
+            return;
+        }
+        Inner inner = (Inner) node;
+        for (int i = 0; i <= inner.size; i++) {
+            validate(inner.children[i], i == 0 ? low : key(inner, i - 1), i == inner.size ? high : key(inner, i),
+                    depth + 1, leaves);
+        }
+    }
+
+    /**
+     * Inserts 20000 shuffled values with the smallest fan-out, so the tree
+     * is several levels deep, and checks contains, the invariants and the
+     * order of the leaves.
+     */
+    public boolean test1() {
+        var tree = new BPlusTree<Integer>(4);
+        var random = new Random(12);
+        List<Integer> values = new ArrayList<>();
+        for (int i = 0; i < 20000; i++) {
+            values.add(2 * i);
+        }
+        Collections.shuffle(values, random);
+        for (Integer value : values) {
+            tree.insert(value);
+        }
+        tree.validate();
+        if (tree.size() != 20000 || tree.height() < 8 || !tree.contains(0) || !tree.contains(39998)
+                || tree.contains(1) || tree.contains(-2) || tree.contains(40000)) {
+            return false;
+        }
+        int expected = 0;
+        for (Integer value : tree) {
+            if (value != expected) {
+                return false;
+            }
+            expected += 2;
+        }
+        return expected == 40000;
+    }
+
+    /**
+     * Stores long runs of duplicates, which span several leaves and
+     * separators, and checks the neighbour queries around them.
+     */
+    public boolean test2() {
+        var tree = new BPlusTree<Integer>(4);
+        for (int i = 0; i < 50; i++) {
+            tree.insert(20);
+            tree.insert(10);
+            tree.insert(30);
+        }
+        tree.validate();
+        if (tree.size() != 150 || !tree.contains(10) || !tree.contains(20) || !tree.contains(30)
+                || tree.contains(15)) {
+            return false;
+        }
+        if (tree.floor(20) != 20 || tree.floor(19) != 10 || tree.floor(9) != null
+                || tree.ceiling(20) != 20 || tree.ceiling(21) != 30 || tree.ceiling(31) != null
+                || tree.lower(20) != 10 || tree.lower(10) != null || tree.higher(20) != 30
+                || tree.higher(30) != null) {
+            return false;
+        }
+        int twenties = 0;
+        for (Iterator<Integer> range = tree.range(20, 30); range.hasNext(); range.next()) {
+            twenties++;
+        }
+        return twenties == 50;
+    }
+
+    /**
+     * Checks bounded and unbounded ranges, the fail-fast iterator, and
+     * clear.
+     */
+    public boolean test3() {
+        var tree = new BPlusTree<String>();
+        for (String letter : new String[] {"d", "b", "a", "e", "c"}) {
+            tree.insert(letter);
+        }
+        StringBuilder scanned = new StringBuilder();
+        tree.range("b", "e").forEachRemaining(scanned::append);
+        tree.range("d", null).forEachRemaining(scanned::append);
+        tree.range(null, "b").forEachRemaining(scanned::append);
+        if (!scanned.toString().equals("bcddea")) {
+            return false;
+        }
+        Iterator<String> iterator = tree.iterator();
+        tree.insert("f");
+        try {
+            iterator.next();
+            return false;
+        }
+        catch (ConcurrentModificationException e) {
+            // expected
+        }
+        tree.clear();
+        return tree.isEmpty() && !tree.iterator().hasNext() && tree.height() == 1 && tree.floor("z") == null;
+    }
+
+    public void main() {
+        System.out.println("Test 1 results: " + test1());
+        System.out.println("Test 2 results: " + test2());
+        System.out.println("Test 3 results: " + test3());
+    }
+}
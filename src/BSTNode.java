@@ -1,6 +1,6 @@
-import java.util.LinkedList;
-import java.util.Queue;
-import java.util.Stack;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayDeque;
 
 /**
  * This class represents a node for a Binary Search Tree that holds a single
@@ -19,6 +19,18 @@ public class BSTNode<T> {
     // reference to the node's right child
     protected BSTNode<T> right = null;
 
+    // number of times the data value is stored in this node, more than one
+    // only in a tree that counts duplicates
+    protected int count = 1;
+
+    // number of values in the subtree rooted at this node, including this
+    // node's own (counted) value
+    protected int size = 1;
+
+    // the tree's TreeAggregate of the values in the subtree rooted at this
+    // node, null unless the tree has one enabled
+    protected Object aggregate = null;
+
     /**
      * Constructor that creates a new node with the value data. Both parent
      * and child references of the new node are initialized to null.
@@ -75,6 +87,47 @@ public class BSTNode<T> {
         this.right = newRightChild;
     }
 
+    /**
+     * @return the number of times this node's value is stored in the tree
+     */
+    public int getCount() { return this.count; }
+
+    /**
+     * @return the number of values in the subtree rooted at this node
+     */
+    public int getSize() { return this.size; }
+
+    /**
+     * Recomputes this node's subtree size from its count and its children's
+     * sizes. Call this after changing this node's children, bottom-up.
+     */
+    public void updateSize() {
+        this.size = this.count + sizeOf(this.left) + sizeOf(this.right);
+    }
+
+    /**
+     * Makes this node like a new one that holds newData, so a tree can
+     * reuse it: no parent or children, and a count and size of one.
+     * @param newData the value the node holds from now on, null while the
+     * node waits in a node pool
+     */
+    public void reset(T newData) {
+        this.data = newData;
+        this.up = null;
+        this.left = null;
+        this.right = null;
+        this.count = 1;
+        this.size = 1;
+        this.aggregate = null;
+    }
+
+    /**
+     * @return the subtree size of node, or 0 when node is null
+     */
+    public static int sizeOf(BSTNode<?> node) {
+        return node == null ? 0 : node.size;
+    }
+
     /**
      * @return true when this node has a parent and is the right child of
      * that parent, otherwise return false
@@ -83,6 +136,52 @@ public class BSTNode<T> {
         return this.getUp() != null && this.getUp().getRight() == this;
     }
 
+    /**
+     * Finds the node that comes right after this one in an in-order
+     * traversal by following child and parent references, without any
+     * extra memory.
+     * @return the in-order successor of this node, or null if it is the last
+     */
+    public BSTNode<T> successor() {
+        BSTNode<T> node = this;
+        if (node.getRight() != null) {
+            // leftmost node of the right subtree
+            node = node.getRight();
+            while (node.getLeft() != null) {
+                node = node.getLeft();
+            }
+            return node;
+        }
+        // first ancestor that this node is in the left subtree of
+        while (node.isRightChild()) {
+            node = node.getUp();
+        }
+        return node.getUp();
+    }
+
+    /**
+     * Finds the node that comes right before this one in an in-order
+     * traversal by following child and parent references, without any
+     * extra memory.
+     * @return the in-order predecessor of this node, or null if it is the first
+     */
+    public BSTNode<T> predecessor() {
+        BSTNode<T> node = this;
+        if (node.getLeft() != null) {
+            // rightmost node of the left subtree
+            node = node.getLeft();
+            while (node.getRight() != null) {
+                node = node.getRight();
+            }
+            return node;
+        }
+        // first ancestor that this node is in the right subtree of
+        while (node.getUp() != null && !node.isRightChild()) {
+            node = node.getUp();
+        }
+        return node.getUp();
+    }
+
     /**
      * Returns a string representation for this node.
      * @return a string representation of the node's value
@@ -98,35 +197,14 @@ public class BSTNode<T> {
      * @return a string of node values in level-order
      */
     public String toLevelOrderString() {
-        // create a linked list that we'll use as a queue to store in processed nodes
-        Queue<BSTNode<T>> nodeList = new LinkedList<>();
-        // add this node to the queue first
-        nodeList.add(this);
-        // create the buffer to assemble the string efficiently
-        StringBuffer sb = new StringBuffer();
-        // add the bracket preceding the list of nodes to the buffer first
-        sb.append("[ ");
-        // keep processing nodes as long as we have any left on the queue
-        while (!nodeList.isEmpty()) {
-            // if it exists, add the left child of the head of the queue to the queue
-            if (nodeList.peek().getLeft() != null) {
-                nodeList.add(nodeList.peek().getLeft());
-            }
-            // if it exists, add the right child of the head of the queue to the queue
-            if (nodeList.peek().getRight() != null) {
-                nodeList.add(nodeList.peek().getRight());
-            }
-            // add the head of the queue to the string buffer and remove from queue
-            sb.append(nodeList.poll().toString());
-            // add a comma to separate values to the buffer, or close the bracket if
-            // we've just added the last node to it
-            if (nodeList.isEmpty()) {
-                sb.append(" ]");
-            } else {
-                sb.append(", ");
-            }
+        StringBuilder sb = new StringBuilder();
+        try {
+            writeLevelOrder(sb);
+        }
+        catch (IOException e) {
+            // a StringBuilder never throws
+            throw new UncheckedIOException(e);
         }
-        // return the string built with the string buffer
         return sb.toString();
     }
 
@@ -136,42 +214,142 @@ public class BSTNode<T> {
      * @return a string of node value in in-order
      */
     public String toInOrderString() {
-        // create a stack to keep track of unvisited nodes
-        Stack<BSTNode<T>> stack = new Stack<>();
-        // add root (this node) to the stack first
-        stack.push(this);
-        // follow the left child references and add all nodes on the path from this node
-        // to its left-most descendant to the stack
-        while (stack.peek().getLeft() != null) {
-            stack.push(stack.peek().getLeft());
+        StringBuilder sb = new StringBuilder();
+        try {
+            writeInOrder(sb);
         }
-        // create a buffer to assemble the string efficiently
-        StringBuffer sb = new StringBuffer();
-        // add the bracket preceding the list of nodes to the buffer first
-        sb.append("[ ");
-        // keep processing nodes as long as the stack is not empty
-        while (!stack.isEmpty()) {
-            // pop the top node from the stack
-            BSTNode<T> current = stack.pop();
-            // add popped node to the string
-            sb.append(current.toString());
-            // handle the right subtree of the popped node
-            if (current.getRight() != null) {
-                stack.push(current.getRight());
-                while (stack.peek().getLeft() != null) {
-                    stack.push(stack.peek().getLeft());
+        catch (IOException e) {
+            // a StringBuilder never throws
+            throw new UncheckedIOException(e);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Writes the same text as toLevelOrderString to out, one node at a
+     * time, without building it in memory first. Writers and PrintStreams
+     * are Appendables; wrap an OutputStream in an OutputStreamWriter.
+     * @param out where the text is written
+     * @throws IOException if out throws one
+     */
+    public void writeLevelOrder(Appendable out) throws IOException {
+        writeLevelOrder(out, Integer.MAX_VALUE, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Writes the subtree rooted at this node in level-order to out, stopping
+     * after maxNodes nodes or maxDepth levels (this node is level 1). When
+     * nodes are left out, "..." is written after the last one. The queue of
+     * pending nodes is an array that never holds more than maxNodes nodes.
+     * @param out where the text is written
+     * @param maxNodes the largest number of nodes written
+     * @param maxDepth the deepest level written
+     * @throws IOException if out throws one
+     */
+    public void writeLevelOrder(Appendable out, int maxNodes, int maxDepth) throws IOException {
+        ArrayDeque<BSTNode<T>> queue = new ArrayDeque<>();
+        queue.add(this);
+        int written = 0;
+        boolean truncated = false;
+        out.append("[ ");
+        // write one level per pass, queueing the next level as we go
+        for (int depth = 1; !queue.isEmpty(); depth++) {
+            if (depth > maxDepth || written == maxNodes) {
+                truncated = true;
+                break;
+            }
+            for (int remaining = queue.size(); remaining > 0; remaining--) {
+                BSTNode<T> node = queue.poll();
+                if (written > 0) {
+                    out.append(", ");
+                }
+                out.append(node.toString());
+                written++;
+                // stop queueing nodes once there are enough to reach maxNodes
+                for (int side = 0; side < 2; side++) {
+                    BSTNode<T> child = side == 0 ? node.getLeft() : node.getRight();
+                    if (child == null) {
+                        continue;
+                    }
+                    if (written + queue.size() < maxNodes) {
+                        queue.add(child);
+                    } else {
+                        truncated = true;
+                    }
                 }
             }
-            // add a comma to separate values to the buffer, or close the bracket if
-            // we've just added the last node to it
-            if (!stack.isEmpty()) {
-                sb.append(", ");
-            } else {
-                sb.append(" ]");
+        }
+        if (truncated) {
+            out.append(written > 0 ? ", ..." : "...");
+        }
+        out.append(" ]");
+    }
+
+    /**
+     * Writes the same text as toInOrderString to out, one node at a time,
+     * without building it in memory first. Writers and PrintStreams are
+     * Appendables; wrap an OutputStream in an OutputStreamWriter.
+     * @param out where the text is written
+     * @throws IOException if out throws one
+     */
+    public void writeInOrder(Appendable out) throws IOException {
+        writeInOrder(out, Integer.MAX_VALUE, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Writes the subtree rooted at this node in in-order to out, stopping
+     * after maxNodes nodes and leaving out nodes below maxDepth (this node
+     * is level 1). When nodes are left out, "..." is written after the last
+     * one. Only the path from this node to the current one is kept, in an
+     * array-backed stack.
+     * @param out where the text is written
+     * @param maxNodes the largest number of nodes written
+     * @param maxDepth the deepest level written
+     * @throws IOException if out throws one
+     */
+    public void writeInOrder(Appendable out, int maxNodes, int maxDepth) throws IOException {
+        ArrayDeque<BSTNode<T>> stack = new ArrayDeque<>();
+        ArrayDeque<Integer> depths = new ArrayDeque<>();
+        int written = 0;
+        boolean truncated = false;
+        out.append("[ ");
+        BSTNode<T> current = this;
+        int depth = 1;
+        while (current != null || !stack.isEmpty()) {
+            // push the path to the left-most node of the current subtree
+            while (current != null) {
+                if (depth > maxDepth) {
+                    truncated = true;
+                    current = null;
+                    break;
+                }
+                stack.push(current);
+                depths.push(depth);
+                current = current.getLeft();
+                depth++;
+            }
+            if (stack.isEmpty()) {
+                break;
             }
+            if (written == maxNodes) {
+                truncated = true;
+                break;
+            }
+            current = stack.pop();
+            depth = depths.pop();
+            if (written > 0) {
+                out.append(", ");
+            }
+            out.append(current.toString());
+            written++;
+            // handle the right subtree of the written node
+            current = current.getRight();
+            depth++;
         }
-        // return the string built with the string buffer
-        return sb.toString();
+        if (truncated) {
+            out.append(written > 0 ? ", ..." : "...");
+        }
+        out.append(" ]");
     }
 
 }
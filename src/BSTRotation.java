@@ -1,5 +1,42 @@
+import java.util.Comparator;
+
 public class BSTRotation<T extends Comparable<T>> extends BinarySearchTree<T> {
 
+    /**
+     * Creates an empty tree that stores every value in its own node.
+     */
+    public BSTRotation() {
+        super();
+    }
+
+    /**
+     * Creates an empty tree.
+     * @param countDuplicates true to store duplicates as counts on one node
+     */
+    public BSTRotation(boolean countDuplicates) {
+        super(countDuplicates);
+    }
+
+    /**
+     * Creates an empty tree that keeps its values in the order of a
+     * comparator, see BinarySearchTree(Comparator).
+     * @param comparator the order to keep values in, or null for their
+     *     natural order
+     */
+    public BSTRotation(Comparator<? super T> comparator) {
+        super(comparator);
+    }
+
+    /**
+     * Creates an empty tree.
+     * @param countDuplicates true to store duplicates as counts on one node
+     * @param comparator the order to keep values in, or null for their
+     *     natural order
+     */
+    public BSTRotation(boolean countDuplicates, Comparator<? super T> comparator) {
+        super(countDuplicates, comparator);
+    }
+
     /**
      * Performs the rotation operation on the provided nodes within this tree.
      * When the provided child is a left child of the provided parent, this
@@ -25,6 +62,11 @@ public class BSTRotation<T extends Comparable<T>> extends BinarySearchTree<T> {
             throw new IllegalArgumentException();
         }
 
+        modCount++;
+        if (metrics != null) {
+            metrics.recordRotation();
+        }
+
         // handle where the root or its references may need to be changed before modifying
         if (parent.getUp() == null) {
             root = child;
@@ -48,6 +90,7 @@ public class BSTRotation<T extends Comparable<T>> extends BinarySearchTree<T> {
             }
             // we get to keep the left subtree of the child attached, just make the child the up of the parent
             child.setRight(parent);
+            parent.setUp(child);
         }
         else if (parent.getRight() == child) {
             // perform left rotation
@@ -59,7 +102,12 @@ public class BSTRotation<T extends Comparable<T>> extends BinarySearchTree<T> {
                 child.getLeft().setUp(parent);
             }
             child.setLeft(parent);
+            parent.setUp(child);
         }
+        // only the two rotated nodes have different subtrees now, lower one first
+        update(parent);
+        update(child);
+        publish(TreeChangeFeed.Type.ROTATE, child.getData(), parent.getData());
     }
 
     /**
@@ -163,8 +211,40 @@ public class BSTRotation<T extends Comparable<T>> extends BinarySearchTree<T> {
         return true;
     }
 
+    /**
+     * Checks that subtree sizes stay correct through left and right rotations,
+     * including ones at the root, so size, select and rank keep working.
+     */
     public boolean test2() {
-
+        var tree = new BSTRotation<Integer>();
+        tree.insert(4);
+        tree.insert(2);
+        tree.insert(6);
+        tree.insert(1);
+        tree.insert(3);
+        tree.insert(5);
+        tree.insert(7);
+        // rotate 2 above the root 4, then 6 above 4, then 4 back above 6
+        tree.rotate(tree.root.getLeft(), tree.root);
+        var four = tree.root.getRight();
+        tree.rotate(four.getRight(), four);
+        tree.rotate(tree.root.getRight().getLeft(), tree.root.getRight());
+        /*
+         * tree structure now is:
+         *            2
+         *        1       4
+         *              3    6
+         *                  5  7
+         */
+        if (tree.size() != 7 || tree.root.getSize() != 7 || tree.root.getRight().getSize() != 5
+                || tree.root.getRight().getRight().getSize() != 3) {
+            return false;
+        }
+        for (int i = 0; i < 7; i++) {
+            if (tree.select(i) != i + 1 || tree.rank(i + 1) != i) {
+                return false;
+            }
+        }
         return true;
     }
 
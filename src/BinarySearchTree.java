@@ -1,7 +1,118 @@
-public class BinarySearchTree <T extends Comparable<T>> implements SortedCollection<T> {
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.UncheckedIOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.ConcurrentModificationException;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RecursiveTask;
+import java.util.function.BiFunction;
+import java.util.function.BinaryOperator;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+public class BinarySearchTree <T extends Comparable<T>> implements RemovableSortedCollection<T>, Iterable<T> {
 
     protected BSTNode<T> root; // ptr to the root of the BST
 
+    // number of structural changes (inserts, removals, rotations, clears) so
+    // far, iterators use it to fail fast when the tree changes under them
+    protected int modCount = 0;
+
+    // when true, equal values share one node that counts them instead of
+    // each getting a node of its own
+    protected final boolean countDuplicates;
+
+    // the order values are kept in, or null for their natural order
+    protected final Comparator<? super T> comparator;
+
+    // the parallel operations process subtrees of at most this many values
+    // in a single task
+    protected static final int SEQUENTIAL_CUTOFF = 1 << 13;
+
+    // operation metrics, null unless enableMetrics() was called
+    protected TreeMetrics metrics;
+
+    // nodes that left the tree and wait to be reused, linked through their
+    // right references, see enableNodePool()
+    protected BSTNode<T> pool;
+    protected int pooled = 0;
+    protected int poolCapacity = 0;
+
+    // the listeners to tell about changes, null unless subscribe() was called
+    protected TreeChangeFeed<T> changes;
+
+    // kept in every node's aggregate field, null unless enableAggregate()
+    // was called
+    protected TreeAggregate<T, Object> aggregate;
+
+    /**
+     * Creates an empty tree that stores every value in its own node.
+     */
+    public BinarySearchTree() {
+        this(false);
+    }
+
+    /**
+     * Creates an empty tree. In counted mode a value that is inserted again
+     * increments the multiplicity of the node that already holds it instead
+     * of adding a node, which keeps the tree as small and shallow as the
+     * number of distinct values. Either way, size() counts every duplicate.
+     * @param countDuplicates true to store duplicates as counts
+     */
+    public BinarySearchTree(boolean countDuplicates) {
+        this(countDuplicates, null);
+    }
+
+    /**
+     * Creates an empty tree that keeps its values in the order of a
+     * comparator instead of their natural order. Lookups then pass their
+     * argument to the comparator, so it must be a T.
+     * @param comparator the order to keep values in, or null for their
+     *     natural order
+     */
+    public BinarySearchTree(Comparator<? super T> comparator) {
+        this(false, comparator);
+    }
+
+    /**
+     * Creates an empty tree, see BinarySearchTree(boolean) and
+     * BinarySearchTree(Comparator).
+     * @param countDuplicates true to store duplicates as counts
+     * @param comparator the order to keep values in, or null for their
+     *     natural order
+     */
+    public BinarySearchTree(boolean countDuplicates, Comparator<? super T> comparator) {
+        this.countDuplicates = countDuplicates;
+        this.comparator = comparator;
+    }
+
+    /**
+     * Compares a value that is looked up or inserted with one stored in
+     * the tree, in the order of the tree. Every search goes through here.
+     * @param data the value being looked for, a T when the tree has a
+     *     comparator
+     * @param stored a value stored in the tree
+     * @return negative, zero or positive as data orders before, the same as
+     *     or after stored
+     */
+    @SuppressWarnings("unchecked")
+    protected final int compare(Comparable<T> data, T stored) {
+        return this.comparator == null ? data.compareTo(stored) : this.comparator.compare((T) data, stored);
+    }
+
     /**
      * Adds a key to this BST; error if it is already there
      * @param data the new value being inserted
@@ -10,42 +121,408 @@ public class BinarySearchTree <T extends Comparable<T>> implements SortedCollect
         if (data == null) {
             throw new NullPointerException();
         }
+        long start = this.metrics == null ? 0 : System.nanoTime();
+        // counting another duplicate changes what iterators would return too
+        this.modCount++;
         if (this.root == null) { // make the data the new root
-            this.root = new BSTNode<>(data);
+            this.root = createNode(data);
+            updatePath(this.root);
         }
         else {
-            insertHelper(new BSTNode<T>(data), this.root);
+            BSTNode<T> newNode = createNode(data);
+            if (insertHelper(newNode, this.root) != newNode) {
+                recycle(newNode); // counted as a duplicate instead
+            }
+        }
+        publish(TreeChangeFeed.Type.INSERT, data, null);
+        dispatchChanges();
+        if (this.metrics != null) {
+            this.metrics.recordInsert(System.nanoTime() - start);
         }
     }
 
     /**
-     * Performs the native binary search tree insert algorithm to recursively
-     * insert the provided newNode (which has already been initialized with a
-     * data value) into the provided tree/subtree.  When the provided subtree
-     * is null, this method does nothing.
+     * Creates the node that stores a newly added value, reusing one from
+     * the node pool when there is one. Subclasses that use their own kind
+     * of node override this.
+     * @param data the value the new node stores
+     * @return a new node with no parent or children
      */
-    protected void insertHelper(BSTNode<T> newNode, BSTNode<T> subtree) {
-        if (subtree == null) {
-            return;
+    protected BSTNode<T> createNode(T data) {
+        BSTNode<T> node = reuseNode(data);
+        return node != null ? node : new BSTNode<>(data);
+    }
+
+    /**
+     * Keeps up to capacity nodes that leave this tree through clear() or a
+     * removal, and hands them out again to later inserts instead of
+     * allocating new nodes. A tree that is cleared and filled again and
+     * again then stops producing garbage: its nodes go around in a loop.
+     * In exchange, clear() visits every node, O(n) instead of O(1), and
+     * the pooled nodes stay in memory while the tree is empty. removeRange
+     * and bulk loads still leave their nodes to the garbage collector,
+     * since walking them would cost what cutting them out saves.
+     * @param capacity the most nodes the pool keeps, at least 0
+     * @throws IllegalArgumentException if capacity is negative
+     */
+    public void enableNodePool(int capacity) throws IllegalArgumentException {
+        if (capacity < 0) {
+            throw new IllegalArgumentException("negative pool capacity: " + capacity);
+        }
+        this.poolCapacity = capacity;
+        while (this.pooled > capacity) {
+            reuseNode(null);
+        }
+    }
+
+    /**
+     * Stops pooling nodes and lets the pooled ones be garbage collected.
+     */
+    public void disableNodePool() {
+        this.pool = null;
+        this.pooled = 0;
+        this.poolCapacity = 0;
+    }
+
+    /**
+     * @return the number of nodes waiting in the node pool
+     */
+    public int pooledNodes() {
+        return this.pooled;
+    }
+
+    /**
+     * Takes a node out of the node pool.
+     * @param data the value the node is going to hold
+     * @return the reset node, or null if the pool is empty
+     */
+    protected final BSTNode<T> reuseNode(T data) {
+        BSTNode<T> node = this.pool;
+        if (node != null) {
+            this.pool = node.right;
+            this.pooled--;
+            node.reset(data);
+        }
+        return node;
+    }
+
+    /**
+     * Puts a node that has left the tree into the node pool, if it has room.
+     * The node's value is dropped so the pool does not keep it alive.
+     * @param node a node that is no longer referenced from the tree
+     */
+    protected final void recycle(BSTNode<T> node) {
+        if (this.pooled < this.poolCapacity) {
+            node.reset(null);
+            node.right = this.pool;
+            this.pool = node;
+            this.pooled++;
+        }
+    }
+
+    /**
+     * Replaces the contents of this tree with n values taken from an
+     * iterator that produces them in ascending order. The tree is built in
+     * one linear pass, middle value at the root, so its height is the
+     * minimum possible: floor(log2(n)) + 1. In counted mode equal values
+     * share one node, so the distinct values are collected before building.
+     * @param sorted the values in ascending order
+     * @param n the number of values to take from sorted
+     * @throws IllegalArgumentException if the values are out of order or
+     *     sorted has fewer than n values
+     */
+    public void bulkLoad(Iterator<? extends T> sorted, int n) throws IllegalArgumentException {
+        if (n < 0) {
+            throw new IllegalArgumentException("negative number of values: " + n);
+        }
+        SortedNodes nodes = new SortedNodes(sorted, n);
+        BSTNode<T> newRoot;
+        if (this.countDuplicates) {
+            List<BSTNode<T>> distinct = new ArrayList<>();
+            nodes.forEachRemaining(distinct::add);
+            newRoot = buildBalanced(distinct.iterator(), distinct.size());
         }
-        if (newNode.getData().compareTo(subtree.getData()) <= 0) { // nodes less than OR equal to go on the left
-            if (subtree.getLeft() == null) {
-                subtree.setLeft(newNode);
-                newNode.setUp(subtree);
+        else {
+            newRoot = buildBalanced(nodes, n);
+        }
+        this.modCount++;
+        this.root = newRoot;
+        afterBulkLoad();
+        publish(TreeChangeFeed.Type.BULK, null, null);
+        dispatchChanges();
+    }
+
+    /**
+     * Called by bulkLoad once the new, perfectly balanced tree is in place,
+     * so that balanced subclasses can set up their own invariants on it.
+     * Does nothing in a plain BST.
+     */
+    protected void afterBulkLoad() {
+    }
+
+    /**
+     * Merges n values taken from an iterator that produces them in ascending
+     * order into this tree, by merging them with the in-order values already
+     * here and bulk loading the result. This takes O(size() + n) time and
+     * leaves the tree perfectly balanced.
+     * @param sorted the values in ascending order
+     * @param n the number of values to take from sorted
+     * @throws IllegalArgumentException if the values are out of order or
+     *     sorted has fewer than n values
+     */
+    public void bulkInsert(Iterator<? extends T> sorted, int n) throws IllegalArgumentException {
+        if (n < 0) {
+            throw new IllegalArgumentException("negative number of values: " + n);
+        }
+        Iterator<T> added = new Iterator<T>() {
+            private int remaining = n;
+
+            @Override
+            public boolean hasNext() {
+                return this.remaining > 0 && sorted.hasNext();
+            }
+
+            @Override
+            public T next() {
+                this.remaining--;
+                return sorted.next();
+            }
+        };
+        Iterator<T> merged = new MergingIterator<T>(iterator(), added, this.comparator);
+        bulkLoad(merged, size() + n);
+    }
+
+    /**
+     * Builds the left half, then takes the middle node for the subtree's
+     * root, then builds the right half, which consumes the nodes in order
+     * and recurses only O(log n) deep.
+     * @param nodes unlinked nodes in ascending order
+     * @param n the number of nodes to take
+     * @return the root of a balanced subtree holding the next n nodes
+     */
+    private BSTNode<T> buildBalanced(Iterator<BSTNode<T>> nodes, int n) {
+        if (n == 0) {
+            return null;
+        }
+        int leftSize = (n - 1) / 2;
+        BSTNode<T> left = buildBalanced(nodes, leftSize);
+        BSTNode<T> node = nodes.next();
+        BSTNode<T> right = buildBalanced(nodes, n - 1 - leftSize);
+        node.setLeft(left);
+        node.setRight(right);
+        if (left != null) {
+            left.setUp(node);
+        }
+        if (right != null) {
+            right.setUp(node);
+        }
+        update(node);
+        return node;
+    }
+
+    /**
+     * Turns the next n values of a sorted iterator into new nodes, checking
+     * that they really arrive in ascending order. In counted mode a run of
+     * equal values becomes a single node.
+     */
+    private class SortedNodes implements Iterator<BSTNode<T>> {
+        private final Iterator<? extends T> sorted;
+        private int remaining; // values still to be taken from sorted
+        private T previous = null;
+        private T lookahead = null; // taken from sorted but not yet in a node
+
+        private SortedNodes(Iterator<? extends T> sorted, int n) {
+            this.sorted = sorted;
+            this.remaining = n;
+        }
+
+        private T take() {
+            if (!this.sorted.hasNext()) {
+                throw new IllegalArgumentException("fewer values than expected");
+            }
+            T data = this.sorted.next();
+            this.remaining--;
+            if (data == null) {
+                throw new NullPointerException();
             }
-            else { // continue left to handle existing children
-                insertHelper(newNode, subtree.getLeft());
+            if (this.previous != null && compare(this.previous, data) > 0) {
+                throw new IllegalArgumentException(data + " comes after " + this.previous);
             }
+            this.previous = data;
+            return data;
         }
-        else {
-            if (subtree.getRight() == null) {
-                subtree.setRight(newNode);
-                newNode.setUp(subtree);
+
+        @Override
+        public boolean hasNext() {
+            return this.lookahead != null || this.remaining > 0;
+        }
+
+        @Override
+        public BSTNode<T> next() {
+            T data = this.lookahead != null ? this.lookahead : take();
+            this.lookahead = null;
+            BSTNode<T> node = createNode(data);
+            if (BinarySearchTree.this.countDuplicates) {
+                while (this.remaining > 0) {
+                    T following = take();
+                    if (compare(following, data) != 0) {
+                        this.lookahead = following;
+                        break;
+                    }
+                    node.count++;
+                }
+            }
+            return node;
+        }
+    }
+
+    /**
+     * The search path insertAll links its values in along: the nodes from
+     * the root down to the node of the last value, each with the number of
+     * values that landed below it but are not in its size yet. Nodes the
+     * search walks down into count a new value straight away, like in
+     * insertHelper; only the node the search turned around at and the nodes
+     * above it, whose sizes would otherwise be walked up to once per value,
+     * owe theirs until the search climbs out of them.
+     */
+    private class FingerPath {
+        private final boolean climb;
+        private final List<BSTNode<T>> nodes = new ArrayList<>();
+        private int[] owed = new int[16];
+        private final List<BSTNode<T>> added = new ArrayList<>(); // the new nodes, in the order they were linked in
+
+        /**
+         * @param climb true to search from the node of the last value, false
+         *     to search from the root every time
+         */
+        private FingerPath(boolean climb) {
+            this.climb = climb;
+            push(BinarySearchTree.this.root);
+        }
+
+        /**
+         * Links value in at the place insertHelper would. When climbing, the
+         * search starts from the end of the path instead of the root, and
+         * climbs to the first left child whose parent is not less than value
+         * (greater than value in counted mode, where an equal parent is the
+         * place), whose subtree then holds that place.
+         * @param value the value to add, not less than the last one
+         */
+        private void link(T value) {
+            int below = BinarySearchTree.this.countDuplicates ? 0 : 1;
+            int depth = this.climb ? this.nodes.size() - 1 : 0;
+            leave(depth + 1);
+            BSTNode<T> node = this.nodes.get(depth);
+            while (node.getUp() != null
+                    && !(node == node.getUp().getLeft() && compare(value, node.getUp().getData()) < below)) {
+                leave(depth--);
+                node = node.getUp();
+            }
+            // value lands below node and every node above it
+            this.owed[depth]++;
+            while (true) {
+                int comparison = compare(value, node.getData());
+                if (comparison == 0 && BinarySearchTree.this.countDuplicates) {
+                    node.count++;
+                    return;
+                }
+                BSTNode<T> next = comparison <= 0 ? node.getLeft() : node.getRight();
+                if (next == null) {
+                    BSTNode<T> newNode = createNode(value);
+                    if (comparison <= 0) {
+                        node.setLeft(newNode);
+                    }
+                    else {
+                        node.setRight(newNode);
+                    }
+                    newNode.setUp(node);
+                    this.added.add(newNode);
+                    push(newNode);
+                    return;
+                }
+                next.size++;
+                push(next);
+                node = next;
+            }
+        }
+
+        private void push(BSTNode<T> node) {
+            int depth = this.nodes.size();
+            if (depth == this.owed.length) {
+                this.owed = Arrays.copyOf(this.owed, depth * 2);
+            }
+            this.owed[depth] = 0;
+            this.nodes.add(node);
+        }
+
+        /**
+         * Settles the nodes from the end of the path up to the one at depth,
+         * and takes them off the path: each adds what it owes to its size
+         * and passes it on to its parent, and gets its aggregate recomputed.
+         */
+        private void leave(int depth) {
+            for (int i = this.nodes.size() - 1; i >= depth; i--) {
+                BSTNode<T> node = this.nodes.remove(i);
+                node.size += this.owed[i];
+                if (i > 0) {
+                    this.owed[i - 1] += this.owed[i];
+                }
+                if (BinarySearchTree.this.aggregate != null) {
+                    update(node);
+                }
+            }
+        }
+    }
+
+    /**
+     * Performs the native binary search tree insert algorithm to iteratively
+     * insert the provided newNode (which has already been initialized with a
+     * data value) into the provided tree/subtree.  When the provided subtree
+     * is null, this method does nothing. The subtree size of every node on the
+     * path down to the new node's position is incremented along the way.
+     * Walking down in a loop instead of recursing keeps degenerate (sorted)
+     * trees from overflowing the stack, and needs one comparison per level.
+     * In counted mode, when a node with an equal value is found on the way
+     * down, its count is incremented and newNode is not linked in at all.
+     * With an aggregate enabled, the aggregates are updated back up the path.
+     * @return the node that now holds the value: newNode, or in counted mode
+     *     possibly the node that already held an equal value
+     */
+    protected BSTNode<T> insertHelper(BSTNode<T> newNode, BSTNode<T> subtree) {
+        T data = newNode.getData();
+        BSTNode<T> stored = null;
+        int comparisons = 0;
+        while (stored == null && subtree != null) {
+            // newNode ends up somewhere below subtree
+            subtree.size++;
+            comparisons++;
+            int comparison = compare(data, subtree.getData());
+            if (comparison == 0 && this.countDuplicates) {
+                subtree.count++;
+                stored = subtree;
             }
-            else { // continue right to handle existing children
-                insertHelper(newNode, subtree.getRight());
+            else if (comparison <= 0) { // nodes less than OR equal to go on the left
+                if (subtree.getLeft() == null) {
+                    subtree.setLeft(newNode);
+                    newNode.setUp(subtree);
+                    stored = newNode;
+                }
+                subtree = subtree.getLeft(); // continue left to handle existing children
             }
+            else {
+                if (subtree.getRight() == null) {
+                    subtree.setRight(newNode);
+                    newNode.setUp(subtree);
+                    stored = newNode;
+                }
+                subtree = subtree.getRight(); // continue right to handle existing children
+            }
+        }
+        updatePath(stored);
+        if (this.metrics != null) {
+            this.metrics.recordComparisons(comparisons);
         }
+        return stored;
     }
 
     /**
@@ -54,79 +531,1455 @@ public class BinarySearchTree <T extends Comparable<T>> implements SortedCollect
      * @return boolean
      */
     public boolean contains(Comparable<T> data) {
-        return contains(this.root, data);
+        if (this.metrics != null) {
+            return containsMeasured(data);
+        }
+        BSTNode<T> node = this.root;
+        while (node != null) {
+            int comparison = compare(data, node.getData());
+            if (comparison == 0) {
+                return true;
+            }
+            node = comparison < 0 ? node.getLeft() : node.getRight();
+        }
+        return false;
     }
 
-    private boolean contains(BSTNode<T> node, Comparable<T> data) {
-        if (node == null) {
+    /**
+     * Inserts a batch of values in a single pass over the tree. The batch is
+     * sorted first, and each value is linked in by a search that starts from
+     * the node of the value before it, the way fingerSearch does, so
+     * neighbouring values share the top of their paths instead of each
+     * descending from the root. The nodes above the search only get the
+     * values that landed below them added to their sizes, and their
+     * aggregates recomputed, once the search climbs out of their subtrees,
+     * see FingerPath. Then rebalanceInserted restores whatever balance a
+     * subclass keeps. An empty tree is bulk loaded instead, which leaves it
+     * perfectly balanced.
+     * @param values the new values being inserted, in any order
+     * @throws NullPointerException if any of the values is null
+     */
+    @Override
+    public void insertAll(Collection<? extends T> values) throws NullPointerException {
+        List<T> sorted = sortBatch(values);
+        if (sorted.isEmpty()) {
+            return;
+        }
+        if (this.root == null) {
+            bulkLoad(sorted.iterator(), sorted.size());
+            return;
+        }
+        this.modCount++;
+        // the values of a batch of m are about n / m apart, which a search
+        // from the last one climbs and descends about log2(n / m) levels to
+        // cross, more than the log2(n) from the root while m < sqrt(n)
+        FingerPath path = new FingerPath((long) sorted.size() * sorted.size() >= size());
+        for (T value : sorted) {
+            path.link(value);
+            publish(TreeChangeFeed.Type.INSERT, value, null);
+        }
+        path.leave(0);
+        rebalanceInserted(path.added);
+        dispatchChanges();
+    }
+
+    /**
+     * @param values a batch of values for insertAll
+     * @return the values in a new list, in ascending order
+     * @throws NullPointerException if any of the values is null
+     */
+    protected final List<T> sortBatch(Collection<? extends T> values) throws NullPointerException {
+        List<T> sorted = new ArrayList<>(values);
+        for (T value : sorted) {
+            if (value == null) {
+                throw new NullPointerException();
+            }
+        }
+        sorted.sort(this.comparator);
+        return sorted;
+    }
+
+    /**
+     * Restores the balance of the tree after insertAll linked new nodes in
+     * where a plain BST insert would have. Their sizes and aggregates, and
+     * those of every node above them, are already up to date. A plain BST
+     * keeps no balance, so this does nothing.
+     * @param added the new nodes, in the order they were linked in, so
+     *     every new node comes after the new nodes above it
+     */
+    protected void rebalanceInserted(List<BSTNode<T>> added) {
+    }
+
+    /**
+     * Checks a batch of values in ascending order, each search starting
+     * from where the previous one ended (see fingerSearch).
+     */
+    @Override
+    public boolean containsAll(Collection<? extends T> values) {
+        List<T> sorted = new ArrayList<>(values);
+        sorted.sort(this.comparator);
+        BSTNode<T> finger = this.root;
+        for (T value : sorted) {
+            if (finger == null) {
+                return false;
+            }
+            finger = fingerSearch(finger, value);
+            if (compare(value, finger.getData()) != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Checks a batch of values in ascending order, each search starting
+     * from where the previous one ended (see fingerSearch).
+     */
+    @Override
+    public BitSet containsEach(List<? extends T> values) {
+        BitSet found = new BitSet(values.size());
+        if (this.root == null) {
+            return found;
+        }
+        // sort the positions of the values, so each result lands at its position
+        @SuppressWarnings("unchecked")
+        T[] keys = (T[]) values.toArray(new Comparable<?>[0]);
+        Integer[] order = new Integer[keys.length];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, (a, b) -> compare(keys[a], keys[b]));
+        BSTNode<T> finger = this.root;
+        for (int index : order) {
+            T value = keys[index];
+            finger = fingerSearch(finger, value);
+            if (compare(value, finger.getData()) == 0) {
+                found.set(index);
+            }
+        }
+        return found;
+    }
+
+    /**
+     * Searches for data starting at finger instead of at the root. finger
+     * must be the root or the node returned by the search for a value <=
+     * data, so the climb only needs to check upper bounds: it goes up until
+     * it reaches a left child whose parent is greater than data, whose
+     * subtree then contains every position data could be in. Searching a
+     * sorted batch this way shares the top of the path between neighbouring
+     * values instead of descending from the root for each one.
+     * @return the node holding data, or else the last node on its search path
+     */
+    private BSTNode<T> fingerSearch(BSTNode<T> finger, Comparable<T> data) {
+        BSTNode<T> node = finger;
+        while (node.getUp() != null
+                && !(node == node.getUp().getLeft() && compare(data, node.getUp().getData()) < 0)) {
+            node = node.getUp();
+        }
+        while (true) {
+            int comparison = compare(data, node.getData());
+            BSTNode<T> next = comparison < 0 ? node.getLeft() : node.getRight();
+            if (comparison == 0 || next == null) {
+                return node;
+            }
+            node = next;
+        }
+    }
+
+    /**
+     * The same search as contains, timed and with its comparisons counted.
+     */
+    private boolean containsMeasured(Comparable<T> data) {
+        long start = System.nanoTime();
+        int comparisons = 0;
+        boolean found = false;
+        BSTNode<T> node = this.root;
+        while (node != null && !found) {
+            comparisons++;
+            int comparison = compare(data, node.getData());
+            found = comparison == 0;
+            node = comparison < 0 ? node.getLeft() : node.getRight();
+        }
+        this.metrics.recordLookup(System.nanoTime() - start, comparisons);
+        return found;
+    }
+
+    /**
+     * Starts collecting operation metrics for this tree: insert and lookup
+     * counts and latencies, comparisons and rotations. While disabled, the
+     * only cost of metrics is a null check per operation.
+     * @return the metrics of this tree, the existing ones if already enabled
+     */
+    public TreeMetrics enableMetrics() {
+        if (this.metrics == null) {
+            this.metrics = new TreeMetrics(this);
+        }
+        return this.metrics;
+    }
+
+    /**
+     * Stops collecting operation metrics for this tree.
+     */
+    public void disableMetrics() {
+        this.metrics = null;
+    }
+
+    /**
+     * @return the metrics of this tree, or null if they are not enabled
+     */
+    public TreeMetrics getMetrics() {
+        return this.metrics;
+    }
+
+    /**
+     * Starts telling a listener about the changes made to this tree:
+     * inserts, removals and rotations one by one, and clears, bulk loads,
+     * range removals and set operations as a whole. The events are
+     * delivered in batches on executor, see TreeChangeFeed. While nothing
+     * is subscribed, the only cost is a null check per change. Failed
+     * deliveries are logged, see TreeChangeFeed.log.
+     * @param listener called with every batch of changes
+     * @param executor runs the listener, Runnable::run to call it right
+     *     away on the thread that changes the tree
+     * @param batchSize the number of changes per batch, at least 1
+     * @return the subscription, for unsubscribe
+     * @throws IllegalArgumentException if batchSize is less than 1
+     * @throws NullPointerException if listener or executor is null
+     */
+    public TreeChangeFeed.Subscription<T> subscribe(TreeChangeFeed.Listener<T> listener, Executor executor,
+            int batchSize) throws IllegalArgumentException, NullPointerException {
+        return subscribe(listener, executor, batchSize, TreeChangeFeed::log);
+    }
+
+    /**
+     * Like subscribe(Listener, Executor, int), with a handler for the
+     * exceptions the listener throws and the deliveries executor rejects,
+     * instead of logging them. Neither ever reaches the operation that made
+     * the changes.
+     * @param errorHandler told about every failed delivery, after which the
+     *     batch is tried again at the end of the next operation, and about
+     *     the subscription being dropped after TreeChangeFeed.MAX_FAILURES
+     *     of them in a row
+     * @throws NullPointerException if listener, executor or errorHandler is null
+     */
+    public TreeChangeFeed.Subscription<T> subscribe(TreeChangeFeed.Listener<T> listener, Executor executor,
+            int batchSize, Consumer<? super Throwable> errorHandler)
+            throws IllegalArgumentException, NullPointerException {
+        TreeChangeFeed<T> feed = this.changes != null ? this.changes : new TreeChangeFeed<>();
+        TreeChangeFeed.Subscription<T> subscription = feed.subscribe(listener, executor, batchSize, errorHandler);
+        this.changes = feed;
+        return subscription;
+    }
+
+    /**
+     * Delivers the changes still buffered for a subscription, and stops
+     * telling its listener about later ones.
+     * @param subscription what subscribe returned
+     * @return true if the subscription was still subscribed to this tree
+     */
+    public boolean unsubscribe(TreeChangeFeed.Subscription<T> subscription) {
+        if (this.changes == null || !this.changes.unsubscribe(subscription)) {
             return false;
         }
-        if (node.getData().equals(data)) {
+        if (this.changes.isEmpty()) {
+            this.changes = null;
+        }
+        return true;
+    }
+
+    /**
+     * Hands the changes buffered for every subscription to the executors,
+     * without waiting for their batches to fill up.
+     */
+    public void flushChanges() {
+        if (this.changes != null) {
+            this.changes.flush();
+            if (this.changes.isEmpty()) {
+                this.changes = null;
+            }
+        }
+    }
+
+    /**
+     * Records a change for the subscribed listeners, if there are any. It
+     * is only buffered: see dispatchChanges.
+     */
+    protected final void publish(TreeChangeFeed.Type type, T value, T other) {
+        if (this.changes != null) {
+            this.changes.publish(type, value, other);
+        }
+    }
+
+    /**
+     * Hands the full batches of recorded changes to the listeners' executors.
+     * Every public operation that changes the tree calls this last, once the
+     * tree is consistent again, never from within a rotation or fixup.
+     */
+    protected final void dispatchChanges() {
+        if (this.changes != null) {
+            this.changes.dispatch();
+            // every subscription was dropped
+            if (this.changes.isEmpty()) {
+                this.changes = null;
+            }
+        }
+    }
+
+    /**
+     * Starts keeping an aggregate of the values in every subtree, replacing
+     * the one kept so far. This computes the aggregate of every node once,
+     * in O(n) time. From then on every change updates the aggregates of the
+     * nodes whose subtrees it changes, and aggregate() answers for any
+     * range of values in O(log n) time on balanced trees.
+     * @param aggregate what to keep, TreeAggregate.sum for example
+     * @throws NullPointerException if aggregate is null
+     */
+    @SuppressWarnings("unchecked")
+    public <A> void enableAggregate(TreeAggregate<T, A> aggregate) throws NullPointerException {
+        if (aggregate == null) {
+            throw new NullPointerException();
+        }
+        this.aggregate = (TreeAggregate<T, Object>) aggregate;
+        recomputeAggregates();
+    }
+
+    /**
+     * Stops keeping aggregates in the nodes of this tree.
+     */
+    public void disableAggregate() {
+        this.aggregate = null;
+    }
+
+    /**
+     * Combines the aggregates of the values in [from, to). The search path
+     * splits at the highest node in the range; below it, one walk down each
+     * side adds the node itself and the whole subtree on the inside of every
+     * node within the range, so only O(height) aggregates are combined.
+     * @param aggregate the aggregate enabled on this tree
+     * @param from the least value to include, or null for no lower bound
+     * @param to the value above the greatest one to include, or null for no
+     *     upper bound
+     * @return the aggregate of the values in the range, or null if there
+     *     are none
+     * @throws IllegalStateException if aggregate is not the one enabled
+     */
+    @SuppressWarnings("unchecked")
+    public <A> A aggregate(TreeAggregate<T, A> aggregate, Comparable<T> from, Comparable<T> to)
+            throws IllegalStateException {
+        if (aggregate == null || aggregate != this.aggregate) {
+            throw new IllegalStateException("aggregate is not enabled on this tree");
+        }
+        BSTNode<T> split = this.root;
+        while (split != null) {
+            if (from != null && compare(from, split.getData()) > 0) {
+                split = split.getRight();
+            }
+            else if (to != null && compare(to, split.getData()) <= 0) {
+                split = split.getLeft();
+            }
+            else {
+                break;
+            }
+        }
+        if (split == null) {
+            return null;
+        }
+        // the values below split that are >= from, combined right to left
+        Object below = null;
+        BSTNode<T> node = split.getLeft();
+        while (node != null) {
+            if (from == null) {
+                below = combine(node.aggregate, below);
+                break;
+            }
+            if (compare(from, node.getData()) <= 0) {
+                below = combine(combine(ownAggregate(node), aggregateOf(node.getRight())), below);
+                node = node.getLeft();
+            }
+            else {
+                node = node.getRight();
+            }
+        }
+        // the values above split that are < to, combined left to right
+        Object above = null;
+        node = split.getRight();
+        while (node != null) {
+            if (to == null) {
+                above = combine(above, node.aggregate);
+                break;
+            }
+            if (compare(to, node.getData()) > 0) {
+                above = combine(above, combine(aggregateOf(node.getLeft()), ownAggregate(node)));
+                node = node.getRight();
+            }
+            else {
+                node = node.getLeft();
+            }
+        }
+        return (A) combine(combine(below, ownAggregate(split)), above);
+    }
+
+    /**
+     * Recomputes node's subtree size, and its aggregate when one is
+     * enabled, from its own value and its children's. Call this after
+     * changing node's children, bottom-up.
+     */
+    protected final void update(BSTNode<T> node) {
+        node.updateSize();
+        if (this.aggregate != null) {
+            node.aggregate = combine(combine(aggregateOf(node.getLeft()), ownAggregate(node)),
+                    aggregateOf(node.getRight()));
+        }
+    }
+
+    /**
+     * Updates the aggregates from node up to the root, when one is enabled,
+     * after the sizes on that path were adjusted in place.
+     */
+    protected final void updatePath(BSTNode<T> node) {
+        if (this.aggregate != null) {
+            for (; node != null; node = node.getUp()) {
+                update(node);
+            }
+        }
+    }
+
+    /**
+     * Recomputes the aggregate of every node, when one is enabled, children
+     * before parents, with an explicit stack since a plain BST can be as
+     * tall as it is large.
+     */
+    protected final void recomputeAggregates() {
+        if (this.aggregate == null || this.root == null) {
+            return;
+        }
+        ArrayDeque<BSTNode<T>> stack = new ArrayDeque<>();
+        BSTNode<T> node = this.root;
+        BSTNode<T> last = null;
+        while (node != null || !stack.isEmpty()) {
+            if (node != null) {
+                stack.push(node);
+                node = node.getLeft();
+            }
+            else {
+                BSTNode<T> top = stack.peek();
+                if (top.getRight() != null && top.getRight() != last) {
+                    node = top.getRight();
+                }
+                else {
+                    update(top);
+                    last = stack.pop();
+                }
+            }
+        }
+    }
+
+    private Object ownAggregate(BSTNode<T> node) {
+        return this.aggregate.of(node.getData(), node.count);
+    }
+
+    private static Object aggregateOf(BSTNode<?> node) {
+        return node == null ? null : node.aggregate;
+    }
+
+    /**
+     * Combines two aggregates, either of which may be null for no values.
+     */
+    private Object combine(Object left, Object right) {
+        if (left == null || right == null) {
+            return left == null ? right : left;
+        }
+        return this.aggregate.combine(left, right);
+    }
+
+    /**
+     * Measures the shape of this tree. This walks every node, metrics do
+     * not need to be enabled.
+     * @return the number of nodes, height, average depth and balance factor
+     */
+    public TreeMetrics.Shape shape() {
+        return TreeMetrics.measure(this.root);
+    }
+
+    /**
+     * Measures the height level by level, like shape(), so a plain BST that
+     * sorted values turned into a chain does not overflow the stack.
+     * @return the number of nodes on the longest path from the root to a leaf
+     */
+    public int height() {
+        return TreeMetrics.measure(this.root).height;
+    }
+
+    /**
+     * Returns the size of the tree, which the root keeps track of
+     * @return the number of nodes in the BST
+     */
+    public int size() {
+        return BSTNode.sizeOf(this.root);
+    }
+
+    /**
+     * Finds the k-th smallest value in the tree by using the subtree sizes
+     * to decide which way to go at each level, in O(height) time.
+     * @param k the zero-based position of the value in sorted order
+     * @return the value that has exactly k values before it in sorted order
+     * @throws IndexOutOfBoundsException if k is negative or not less than size()
+     */
+    public T select(int k) throws IndexOutOfBoundsException {
+        if (k < 0 || k >= size()) {
+            throw new IndexOutOfBoundsException(k);
+        }
+        BSTNode<T> node = this.root;
+        while (true) {
+            int leftSize = BSTNode.sizeOf(node.getLeft());
+            if (k < leftSize) {
+                node = node.getLeft();
+            }
+            else if (k < leftSize + node.count) {
+                return node.getData();
+            }
+            else {
+                k -= leftSize + node.count;
+                node = node.getRight();
+            }
+        }
+    }
+
+    /**
+     * Counts the values in the tree that are strictly less than data, in
+     * O(height) time.
+     * @param data the value to rank, need not be stored in the tree
+     * @return the number of values less than data
+     */
+    public int rank(Comparable<T> data) {
+        return countBelow(data, false);
+    }
+
+    /**
+     * Counts how many times data is stored in the tree, in O(height) time.
+     * @param data the value to count
+     * @return the number of values equal to data
+     */
+    public int count(Comparable<T> data) {
+        if (this.countDuplicates) {
+            // equal values all live in one node
+            BSTNode<T> node = this.root;
+            while (node != null) {
+                int comparison = compare(data, node.getData());
+                if (comparison == 0) {
+                    return node.count;
+                }
+                node = comparison < 0 ? node.getLeft() : node.getRight();
+            }
+            return 0;
+        }
+        return countBelow(data, true) - countBelow(data, false);
+    }
+
+    /**
+     * @return the number of values less than (or, when inclusive, equal to) data
+     */
+    private int countBelow(Comparable<T> data, boolean inclusive) {
+        int below = 0;
+        BSTNode<T> node = this.root;
+        while (node != null) {
+            int comparison = compare(data, node.getData());
+            if (comparison < 0 || (comparison == 0 && !inclusive)) {
+                node = node.getLeft();
+            }
+            else {
+                below += BSTNode.sizeOf(node.getLeft()) + node.count;
+                node = node.getRight();
+            }
+        }
+        return below;
+    }
+
+    /**
+     * @return true if the tree has any non-null nodes, otherwise false
+     */
+    public boolean isEmpty() {
+        return this.root == null;
+    }
+
+    /**
+     * Removes all nodes from the tree
+     */
+    public void clear() {
+        this.modCount++;
+        BSTNode<T> node = this.root;
+        this.root = null;
+        // if the above isn't acceptable, then...
+        // clear(this.root);
+
+        // with a node pool, take the tree apart into the pool: rotate left
+        // children up until a node has none, then recycle it and move on
+        // to its right child, which needs no stack
+        while (node != null && this.pooled < this.poolCapacity) {
+            BSTNode<T> left = node.left;
+            if (left != null) {
+                node.left = left.right;
+                left.right = node;
+                node = left;
+            }
+            else {
+                BSTNode<T> next = node.right;
+                recycle(node);
+                node = next;
+            }
+        }
+        publish(TreeChangeFeed.Type.CLEAR, null, null);
+        dispatchChanges();
+    }
+
+    /**
+     * Removes one occurrence of data from the tree.
+     * @param data the value to remove
+     * @return true if a value was removed, false if data was not in the tree
+     */
+    @Override
+    public boolean remove(T data) {
+        if (data == null) {
+            return false;
+        }
+        BSTNode<T> node = this.root;
+        while (node != null) {
+            int comparison = compare(data, node.getData());
+            if (comparison == 0) {
+                break;
+            }
+            node = comparison < 0 ? node.getLeft() : node.getRight();
+        }
+        if (node == null) {
+            return false;
+        }
+        removeOne(node);
+        return true;
+    }
+
+    /**
+     * @return the least value, which was removed, or null if the tree is empty
+     */
+    @Override
+    public T removeMin() {
+        BSTNode<T> node = first();
+        if (node == null) {
+            return null;
+        }
+        T data = node.getData();
+        removeOne(node);
+        return data;
+    }
+
+    /**
+     * @return the greatest value, which was removed, or null if the tree is empty
+     */
+    @Override
+    public T removeMax() {
+        BSTNode<T> node = last();
+        if (node == null) {
+            return null;
+        }
+        T data = node.getData();
+        removeOne(node);
+        return data;
+    }
+
+    /**
+     * Removes one occurrence of the value in node: in counted mode a node
+     * that holds it more than once only has its count dropped.
+     */
+    private void removeOne(BSTNode<T> node) {
+        // removeNode may recycle node, which forgets its value
+        T data = node.getData();
+        if (node.count > 1) {
+            this.modCount++;
+            node.count--;
+            for (BSTNode<T> ancestor = node; ancestor != null; ancestor = ancestor.getUp()) {
+                ancestor.size--;
+            }
+            updatePath(node);
+        }
+        else {
+            removeNode(node);
+        }
+        publish(TreeChangeFeed.Type.REMOVE, data, null);
+        dispatchChanges();
+    }
+
+    /**
+     * Unlinks node from the tree, keeping every parent reference correct. A
+     * node with two children is replaced in place by its in-order successor,
+     * so the node that physically leaves its position always has at most
+     * one child, which moves up into it. Subtree sizes are updated on the
+     * path from there up to the root, then afterRemove is called, and then
+     * node goes into the node pool, if there is one.
+     * @param node the node to remove, with all its duplicates
+     */
+    protected void removeNode(BSTNode<T> node) {
+        this.modCount++;
+        BSTNode<T> successor = null;
+        BSTNode<T> replacement;
+        BSTNode<T> replacementParent;
+        if (node.getLeft() == null) {
+            replacement = node.getRight();
+            replacementParent = node.getUp();
+            transplant(node, replacement);
+        }
+        else if (node.getRight() == null) {
+            replacement = node.getLeft();
+            replacementParent = node.getUp();
+            transplant(node, replacement);
+        }
+        else {
+            successor = node.getRight();
+            while (successor.getLeft() != null) {
+                successor = successor.getLeft();
+            }
+            replacement = successor.getRight();
+            if (successor.getUp() == node) {
+                replacementParent = successor;
+            }
+            else {
+                replacementParent = successor.getUp();
+                transplant(successor, replacement);
+                successor.setRight(node.getRight());
+                successor.getRight().setUp(successor);
+            }
+            transplant(node, successor);
+            successor.setLeft(node.getLeft());
+            successor.getLeft().setUp(successor);
+        }
+        node.setUp(null);
+        node.setLeft(null);
+        node.setRight(null);
+        // every node that lost a descendant is on the path up from replacementParent
+        for (BSTNode<T> ancestor = replacementParent; ancestor != null; ancestor = ancestor.getUp()) {
+            update(ancestor);
+        }
+        afterRemove(node, successor, replacement, replacementParent);
+        recycle(node);
+    }
+
+    /**
+     * Called after removeNode has unlinked a node, so that balanced
+     * subclasses can restore their invariants. Does nothing in a plain BST.
+     * @param removed the node that was unlinked, its links already cleared
+     * @param successor the node that moved into removed's position when
+     *     removed had two children, or null when it had at most one
+     * @param replacement the child that moved up into the position that was
+     *     physically vacated (removed's own, or successor's old one), or null
+     * @param replacementParent the parent of that position, null at the root
+     */
+    protected void afterRemove(BSTNode<T> removed, BSTNode<T> successor, BSTNode<T> replacement,
+            BSTNode<T> replacementParent) {
+    }
+
+    /**
+     * Replaces the subtree rooted at node with the subtree rooted at
+     * replacement within node's parent (or at the root).
+     */
+    private void transplant(BSTNode<T> node, BSTNode<T> replacement) {
+        if (node.getUp() == null) {
+            this.root = replacement;
+        }
+        else if (node.getUp().getLeft() == node) {
+            node.getUp().setLeft(replacement);
+        }
+        else {
+            node.getUp().setRight(replacement);
+        }
+        if (replacement != null) {
+            replacement.setUp(node.getUp());
+        }
+    }
+
+    /**
+     * Removes every value in [from, to) by cutting whole subtrees out of the
+     * tree instead of removing values one at a time. The search path splits
+     * at the highest node in the range; below it, one walk down each side
+     * keeps the parts outside the range and drops every subtree that lies
+     * entirely inside it, without visiting it. The two kept parts are then
+     * joined in the split node's place. This takes time proportional to the
+     * height of the tree, whatever the number of values removed. Balanced
+     * subclasses that cannot afford the unbalanced join override this.
+     * @param from the least value to remove, or null for no lower bound
+     * @param to the value above the greatest one to remove, or null for no
+     *     upper bound
+     * @return the number of values removed
+     */
+    @Override
+    public int removeRange(Comparable<T> from, Comparable<T> to) {
+        BSTNode<T> split = this.root;
+        while (split != null) {
+            if (from != null && compare(from, split.getData()) > 0) {
+                split = split.getRight();
+            }
+            else if (to != null && compare(to, split.getData()) <= 0) {
+                split = split.getLeft();
+            }
+            else {
+                break;
+            }
+        }
+        if (split == null) {
+            return 0;
+        }
+        this.modCount++;
+        int sizeBefore = size();
+        BSTNode<T> below = keepOutside(split.getLeft(), from, true);
+        BSTNode<T> above = keepOutside(split.getRight(), to, false);
+        BSTNode<T> joined;
+        if (below == null) {
+            joined = above;
+        }
+        else {
+            joined = below;
+            if (above != null) {
+                // every value above comes after every value below
+                BSTNode<T> max = below;
+                while (max.getRight() != null) {
+                    max = max.getRight();
+                }
+                max.setRight(above);
+                above.setUp(max);
+                for (BSTNode<T> node = max; node != null; node = node.getUp()) {
+                    update(node);
+                }
+            }
+        }
+        BSTNode<T> parent = split.getUp();
+        transplant(split, joined);
+        split.setUp(null);
+        split.setLeft(null);
+        split.setRight(null);
+        recycle(split);
+        for (BSTNode<T> node = parent; node != null; node = node.getUp()) {
+            update(node);
+        }
+        publish(TreeChangeFeed.Type.BULK, null, null);
+        dispatchChanges();
+        return sizeBefore - size();
+    }
+
+    /**
+     * Cuts the part of a subtree that lies inside a range away from it.
+     * With keepBelow, every value of the subtree is < the range's upper
+     * bound, and the values >= bound are cut; otherwise every value is >=
+     * the lower bound, and the values < bound are cut. A null bound cuts
+     * everything. Kept nodes are chained together along one spine, and
+     * each node that is cut takes its whole subtree on the inside with it.
+     * @return the root of what is kept, with no parent, or null
+     */
+    private BSTNode<T> keepOutside(BSTNode<T> subtree, Comparable<T> bound, boolean keepBelow) {
+        BSTNode<T> kept = null;
+        BSTNode<T> attach = null; // the last node kept, whose inner child is still open
+        BSTNode<T> node = subtree;
+        while (node != null) {
+            boolean keep = bound != null
+                    && (keepBelow ? compare(bound, node.getData()) > 0 : compare(bound, node.getData()) <= 0);
+            if (keep) {
+                if (attach == null) {
+                    kept = node;
+                }
+                else if (keepBelow) {
+                    attach.setRight(node);
+                }
+                else {
+                    attach.setLeft(node);
+                }
+                node.setUp(attach);
+                attach = node;
+                node = keepBelow ? node.getRight() : node.getLeft();
+            }
+            else {
+                // node and its inner subtree are in the range, go around them
+                node = keepBelow ? node.getLeft() : node.getRight();
+            }
+        }
+        if (attach != null) {
+            if (keepBelow) {
+                attach.setRight(null);
+            }
+            else {
+                attach.setLeft(null);
+            }
+            for (BSTNode<T> spine = attach; spine != null; spine = spine.getUp()) {
+                update(spine);
+            }
+        }
+        return kept;
+    }
+
+    /**
+     *
+     * @param node the node to get children from and delete
+    private void clear(BSTNode<T> node) {
+        if (node != null) {
+            clear(node.getLeft());
+            clear(node.getRight());
+            node = null;
+        }
+    }
+    */
+
+    /**
+     * @return the greatest value <= data, or null if there is none
+     */
+    public T floor(Comparable<T> data) {
+        return dataOf(floorNode(data));
+    }
+
+    /**
+     * @return the least value >= data, or null if there is none
+     */
+    public T ceiling(Comparable<T> data) {
+        return dataOf(ceilingNode(data));
+    }
+
+    /**
+     * @return the greatest value < data, or null if there is none
+     */
+    public T lower(Comparable<T> data) {
+        return dataOf(lowerNode(data));
+    }
+
+    /**
+     * @return the least value > data, or null if there is none
+     */
+    public T higher(Comparable<T> data) {
+        return dataOf(higherNode(data));
+    }
+
+    /**
+     * Scans [from, to) by descending once to the first value >= from and
+     * then following successor references, so the whole scan takes
+     * O(height + number of values returned).
+     * @param from the least value to include, or null to start at the smallest
+     * @param to the value to stop before, or null to run to the largest
+     * @return a fail-fast iterator over the values in [from, to) in sorted order
+     */
+    public Iterator<T> range(Comparable<T> from, Comparable<T> to) {
+        return new InOrderIterator(from == null ? first() : ceilingNode(from), to);
+    }
+
+    private static <T> T dataOf(BSTNode<T> node) {
+        return node == null ? null : node.getData();
+    }
+
+    /**
+     * @return the rightmost node whose value is <= data, or null if there is none
+     */
+    protected BSTNode<T> floorNode(Comparable<T> data) {
+        BSTNode<T> node = this.root;
+        BSTNode<T> found = null;
+        while (node != null) {
+            if (compare(data, node.getData()) >= 0) {
+                found = node;
+                node = node.getRight();
+            }
+            else {
+                node = node.getLeft();
+            }
+        }
+        return found;
+    }
+
+    /**
+     * @return the leftmost node whose value is >= data, or null if there is none
+     */
+    protected BSTNode<T> ceilingNode(Comparable<T> data) {
+        BSTNode<T> node = this.root;
+        BSTNode<T> found = null;
+        while (node != null) {
+            if (compare(data, node.getData()) <= 0) {
+                found = node;
+                node = node.getLeft();
+            }
+            else {
+                node = node.getRight();
+            }
+        }
+        return found;
+    }
+
+    /**
+     * @return the rightmost node whose value is < data, or null if there is none
+     */
+    protected BSTNode<T> lowerNode(Comparable<T> data) {
+        BSTNode<T> node = this.root;
+        BSTNode<T> found = null;
+        while (node != null) {
+            if (compare(data, node.getData()) > 0) {
+                found = node;
+                node = node.getRight();
+            }
+            else {
+                node = node.getLeft();
+            }
+        }
+        return found;
+    }
+
+    /**
+     * @return the leftmost node whose value is > data, or null if there is none
+     */
+    protected BSTNode<T> higherNode(Comparable<T> data) {
+        BSTNode<T> node = this.root;
+        BSTNode<T> found = null;
+        while (node != null) {
+            if (compare(data, node.getData()) < 0) {
+                found = node;
+                node = node.getLeft();
+            }
+            else {
+                node = node.getRight();
+            }
+        }
+        return found;
+    }
+
+    /**
+     * @return the rightmost (greatest) node in the tree, or null if it is empty
+     */
+    protected BSTNode<T> last() {
+        BSTNode<T> node = this.root;
+        if (node == null) {
+            return null;
+        }
+        while (node.getRight() != null) {
+            node = node.getRight();
+        }
+        return node;
+    }
+
+    /**
+     * @return the leftmost (smallest) node in the tree, or null if it is empty
+     */
+    protected BSTNode<T> first() {
+        BSTNode<T> node = this.root;
+        if (node == null) {
+            return null;
+        }
+        while (node.getLeft() != null) {
+            node = node.getLeft();
+        }
+        return node;
+    }
+
+    /**
+     * Returns an iterator over the values in this tree in sorted order. The
+     * iterator walks the tree with BSTNode.successor, so it needs O(1) extra
+     * memory. It is fail-fast: once the tree is structurally changed by
+     * anything other than the iterator, next() throws a
+     * ConcurrentModificationException.
+     * @return an in-order iterator over this tree
+     */
+    @Override
+    public Iterator<T> iterator() {
+        return new InOrderIterator(first(), null);
+    }
+
+    /**
+     * Returns a spliterator over the values in this tree in sorted order. It
+     * splits at subtree boundaries: each split hands off the values before
+     * the topmost node of the remaining range, and the exact size of both
+     * halves is known from the subtree sizes, so parallel streams divide the
+     * work evenly without copying the values anywhere first.
+     * @return a SIZED, SUBSIZED, SORTED spliterator over this tree
+     */
+    @Override
+    public Spliterator<T> spliterator() {
+        BSTNode<T> first = first();
+        return new InOrderSpliterator(first, first == null ? 0 : first.count, 0, size(), this.modCount);
+    }
+
+    /**
+     * @return a sequential stream over the values in this tree in sorted order
+     */
+    public Stream<T> stream() {
+        return StreamSupport.stream(spliterator(), false);
+    }
+
+    /**
+     * @return a parallel stream over the values in this tree in sorted order
+     */
+    public Stream<T> parallelStream() {
+        return StreamSupport.stream(spliterator(), true);
+    }
+
+    /**
+     * Copies the values in this tree into an immutable FrozenTree, which
+     * answers the same queries from one array in the implicit Eytzinger
+     * layout instead of following node references. Meant for trees that
+     * stop changing after they are loaded. Later changes to this tree do
+     * not show in the copy.
+     * @return a frozen copy of the current values, in the same order
+     */
+    public FrozenTree<T> freeze() {
+        return new FrozenTree<>(iterator(), size(), this.comparator);
+    }
+
+    /**
+     * Combines every value in this tree in sorted order, like
+     * Stream.reduce, splitting the work across the common ForkJoinPool at
+     * subtree boundaries (see SubtreeTask). The accumulator and combiner
+     * must be associative, and identity must be an identity for both.
+     * @param identity the result for an empty tree or subtree
+     * @param accumulator folds one more value into a partial result
+     * @param combiner joins the results of two neighbouring parts of the tree
+     * @return the combined result
+     * @throws ConcurrentModificationException if the tree changed meanwhile
+     */
+    public <R> R parallelReduce(R identity, BiFunction<R, ? super T, R> accumulator, BinaryOperator<R> combiner) {
+        return runParallel(subtree -> fold(subtree, identity, accumulator), node -> {
+            R result = identity;
+            for (int i = 0; i < node.getCount(); i++) {
+                result = accumulator.apply(result, node.getData());
+            }
+            return result;
+        }, combiner);
+    }
+
+    /**
+     * Passes every value in this tree to action, from several threads of
+     * the common ForkJoinPool and in no particular order.
+     * @param action the consumer of the values, must be thread-safe
+     * @throws ConcurrentModificationException if the tree changed meanwhile
+     */
+    public void parallelForEach(Consumer<? super T> action) {
+        Function<BSTNode<T>, Void> visitNode = node -> {
+            for (int i = 0; i < node.getCount(); i++) {
+                action.accept(node.getData());
+            }
+            return null;
+        };
+        runParallel(subtree -> {
+            visit(subtree, visitNode);
+            return null;
+        }, visitNode, (a, b) -> null);
+    }
+
+    /**
+     * Counts the values in this tree that match predicate, testing them
+     * from several threads of the common ForkJoinPool.
+     * @param predicate the test, must be thread-safe
+     * @return the number of matching values, duplicates counted separately
+     * @throws ConcurrentModificationException if the tree changed meanwhile
+     */
+    public long parallelCount(Predicate<? super T> predicate) {
+        Function<BSTNode<T>, Long> countNode = node -> predicate.test(node.getData()) ? (long) node.getCount() : 0L;
+        return runParallel(subtree -> {
+            long[] count = new long[1];
+            visit(subtree, node -> {
+                if (predicate.test(node.getData())) {
+                    count[0] += node.getCount();
+                }
+                return null;
+            });
+            return count[0];
+        }, countNode, Long::sum);
+    }
+
+    private <R> R runParallel(Function<BSTNode<T>, R> subtree, Function<BSTNode<T>, R> node,
+            BinaryOperator<R> combiner) {
+        int expectedModCount = this.modCount;
+        R result = new SubtreeTask<R>(this.root, subtree, node, combiner).invoke();
+        if (this.modCount != expectedModCount) {
+            throw new ConcurrentModificationException();
+        }
+        return result;
+    }
+
+    /**
+     * Folds the values of a subtree in sorted order on the current thread.
+     */
+    private <R> R fold(BSTNode<T> subtree, R identity, BiFunction<R, ? super T, R> accumulator) {
+        R result = identity;
+        ArrayDeque<BSTNode<T>> stack = new ArrayDeque<>();
+        BSTNode<T> current = subtree;
+        while (current != null || !stack.isEmpty()) {
+            while (current != null) {
+                stack.push(current);
+                current = current.getLeft();
+            }
+            current = stack.pop();
+            for (int i = 0; i < current.getCount(); i++) {
+                result = accumulator.apply(result, current.getData());
+            }
+            current = current.getRight();
+        }
+        return result;
+    }
+
+    /**
+     * Passes every node of a subtree to visitor in sorted order on the
+     * current thread.
+     */
+    private void visit(BSTNode<T> subtree, Function<BSTNode<T>, ?> visitor) {
+        ArrayDeque<BSTNode<T>> stack = new ArrayDeque<>();
+        BSTNode<T> current = subtree;
+        while (current != null || !stack.isEmpty()) {
+            while (current != null) {
+                stack.push(current);
+                current = current.getLeft();
+            }
+            current = stack.pop();
+            visitor.apply(current);
+            current = current.getRight();
+        }
+    }
+
+    /**
+     * Computes a result for a subtree in parallel. Instead of forking both
+     * children, a task forks the smaller child and keeps going into the
+     * larger one itself, until what is left is at most SEQUENTIAL_CUTOFF
+     * values. The task's own stack stays flat even on an unbalanced tree,
+     * and no more tasks are forked than there are cutoff-sized pieces.
+     * The pieces are combined in sorted order, so the combiner only has to
+     * be associative.
+     */
+    private class SubtreeTask<R> extends RecursiveTask<R> {
+        private static final long serialVersionUID = 1L;
+
+        private final BSTNode<T> subtree;
+        private final Function<BSTNode<T>, R> subtreeResult;
+        private final Function<BSTNode<T>, R> nodeResult;
+        private final BinaryOperator<R> combiner;
+
+        private SubtreeTask(BSTNode<T> subtree, Function<BSTNode<T>, R> subtreeResult,
+                Function<BSTNode<T>, R> nodeResult, BinaryOperator<R> combiner) {
+            this.subtree = subtree;
+            this.subtreeResult = subtreeResult;
+            this.nodeResult = nodeResult;
+            this.combiner = combiner;
+        }
+
+        private Supplier<R> fork(BSTNode<T> child) {
+            SubtreeTask<R> task = new SubtreeTask<>(child, this.subtreeResult, this.nodeResult, this.combiner);
+            task.fork();
+            return task::join;
+        }
+
+        @Override
+        protected R compute() {
+            // the pieces left of the remaining subtree in order, and the
+            // pieces right of it from the outside in
+            List<Supplier<R>> before = new ArrayList<>();
+            List<Supplier<R>> after = new ArrayList<>();
+            BSTNode<T> node = this.subtree;
+            while (node != null && node.getSize() > SEQUENTIAL_CUTOFF) {
+                R value = this.nodeResult.apply(node);
+                if (BSTNode.sizeOf(node.getLeft()) >= BSTNode.sizeOf(node.getRight())) {
+                    if (node.getRight() != null) {
+                        after.add(fork(node.getRight()));
+                    }
+                    after.add(() -> value);
+                    node = node.getLeft();
+                }
+                else {
+                    if (node.getLeft() != null) {
+                        before.add(fork(node.getLeft()));
+                    }
+                    before.add(() -> value);
+                    node = node.getRight();
+                }
+            }
+            R result = this.subtreeResult.apply(node);
+            for (int i = before.size() - 1; i >= 0; i--) {
+                result = this.combiner.apply(before.get(i).get(), result);
+            }
+            for (int i = after.size() - 1; i >= 0; i--) {
+                result = this.combiner.apply(result, after.get(i).get());
+            }
+            return result;
+        }
+    }
+
+    /**
+     * Iterates in order by following successor references from one node to
+     * the next, returning each node's value as many times as it is counted,
+     * and stopping before the first value that is >= to.
+     */
+    private class InOrderIterator implements Iterator<T> {
+        private BSTNode<T> next;
+        private int repeats; // times next's value is still to be returned
+        private final Comparable<T> to;
+        private final int expectedModCount = BinarySearchTree.this.modCount;
+
+        private InOrderIterator(BSTNode<T> first, Comparable<T> to) {
+            this.to = to;
+            moveTo(first);
+        }
+
+        /**
+         * Makes node the next one to return, or ends the iteration when node
+         * is null or past the end of the range.
+         */
+        private void moveTo(BSTNode<T> node) {
+            if (node != null && this.to != null && compare(this.to, node.getData()) <= 0) {
+                node = null;
+            }
+            this.next = node;
+            this.repeats = node == null ? 0 : node.count;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return this.next != null;
+        }
+
+        @Override
+        public T next() {
+            if (BinarySearchTree.this.modCount != this.expectedModCount) {
+                throw new ConcurrentModificationException();
+            }
+            if (this.next == null) {
+                throw new NoSuchElementException();
+            }
+            T data = this.next.getData();
+            if (--this.repeats == 0) {
+                moveTo(this.next.successor());
+            }
+            return data;
+        }
+    }
+
+    /**
+     * Covers the in-order positions [index, fence) of the tree, where a node
+     * counted c times takes up c positions. current is the node at position
+     * index, and repeats is how many of its positions are still to come.
+     */
+    private class InOrderSpliterator implements Spliterator<T> {
+        private BSTNode<T> current;
+        private int repeats;
+        private int index;
+        private final int fence;
+        private final int expectedModCount;
+
+        private InOrderSpliterator(BSTNode<T> current, int repeats, int index, int fence, int expectedModCount) {
+            this.current = current;
+            this.repeats = repeats;
+            this.index = index;
+            this.fence = fence;
+            this.expectedModCount = expectedModCount;
+        }
+
+        @Override
+        public boolean tryAdvance(Consumer<? super T> action) {
+            if (this.index >= this.fence) {
+                return false;
+            }
+            action.accept(this.current.getData());
+            this.index++;
+            if (--this.repeats == 0 && this.index < this.fence) {
+                this.current = this.current.successor();
+                this.repeats = this.current.count;
+            }
+            if (BinarySearchTree.this.modCount != this.expectedModCount) {
+                throw new ConcurrentModificationException();
+            }
             return true;
         }
-        if (data.compareTo(node.getData()) < 0) {
-            return contains(node.getLeft(), data);
+
+        @Override
+        public void forEachRemaining(Consumer<? super T> action) {
+            BSTNode<T> node = this.current;
+            int repeats = this.repeats;
+            for (int i = this.index; i < this.fence; i++) {
+                action.accept(node.getData());
+                if (--repeats == 0 && i + 1 < this.fence) {
+                    node = node.successor();
+                    repeats = node.count;
+                }
+            }
+            this.current = node;
+            this.repeats = repeats;
+            this.index = this.fence;
+            if (BinarySearchTree.this.modCount != this.expectedModCount) {
+                throw new ConcurrentModificationException();
+            }
         }
-        else {
-            return contains(node.getRight(), data);
+
+        /**
+         * Finds the topmost node whose first position lies strictly inside
+         * (index, fence), which is a subtree boundary of the range, and hands
+         * the positions before it to a new spliterator.
+         */
+        @Override
+        public Spliterator<T> trySplit() {
+            if (this.fence - this.index < 2) {
+                return null;
+            }
+            BSTNode<T> node = BinarySearchTree.this.root;
+            int before = 0; // number of positions before node's subtree
+            while (node != null) {
+                int position = before + BSTNode.sizeOf(node.getLeft());
+                if (position <= this.index) {
+                    before = position + node.count;
+                    node = node.getRight();
+                }
+                else if (position >= this.fence) {
+                    node = node.getLeft();
+                }
+                else {
+                    Spliterator<T> prefix = new InOrderSpliterator(this.current, this.repeats, this.index,
+                            position, this.expectedModCount);
+                    this.current = node;
+                    this.repeats = node.count;
+                    this.index = position;
+                    return prefix;
+                }
+            }
+            return null; // the whole range is copies of a single counted value
         }
-    }
 
-    /**
-     * Checks the size of the tree by recursively counting each node and its children
-     * @return the number of nodes in the BST
-     */
-    public int size() {
-        if (this.root == null) {
-            return 0;
+        @Override
+        public long estimateSize() {
+            return this.fence - this.index;
         }
-        return this.size(this.root);
-    }
 
-    private int size(BSTNode<T> node) {
-        if (node == null) {
-            return 0;
+        @Override
+        public int characteristics() {
+            return Spliterator.ORDERED | Spliterator.SORTED | Spliterator.SIZED | Spliterator.SUBSIZED
+                    | Spliterator.NONNULL;
         }
-        return 1 + size(node.getLeft()) + size(node.getRight());
-    }
 
-    /**
-     * @return true if the tree has any non-null nodes, otherwise false
-     */
-    public boolean isEmpty() {
-        return this.root == null;
+        @Override
+        public Comparator<? super T> getComparator() {
+            return BinarySearchTree.this.comparator; // null for the natural ordering
+        }
     }
 
     /**
-     * Removes all nodes from the tree
+     * Prints the values in this BST in sorted order, then level order (to System)
      */
-    public void clear() {
-        this.root = null;
-        // if the above isn't acceptable, then...
-        // clear(this.root);
-    }
-
-    /**
-     *
-     * @param node the node to get children from and delete
-    private void clear(BSTNode<T> node) {
-        if (node != null) {
-            clear(node.getLeft());
-            clear(node.getRight());
-            node = null;
-        }
+    public void print() {
+        print(Integer.MAX_VALUE, Integer.MAX_VALUE);
     }
-    */
 
     /**
-     * Prints the values in this BST in sorted order, then level order (to System)
+     * Prints at most maxNodes values of this BST in sorted order, then in
+     * level order, leaving out levels below maxDepth (to System). The values
+     * are streamed out one at a time, so even a full dump of a large tree
+     * does not build its text in memory.
+     * @param maxNodes the largest number of values printed per line
+     * @param maxDepth the deepest level printed, the root being level 1
      */
-    public void print() {
+    public void print(int maxNodes, int maxDepth) {
         if (this.root == null) {
             return;
         }
-        System.out.println(this.root.toInOrderString());
-        System.out.println(this.root.toLevelOrderString());
+        try {
+            this.root.writeInOrder(System.out, maxNodes, maxDepth);
+            System.out.println();
+            this.root.writeLevelOrder(System.out, maxNodes, maxDepth);
+            System.out.println();
+        }
+        catch (IOException e) {
+            // System.out records errors instead of throwing them
+            throw new UncheckedIOException(e);
+        }
     }
 
     /**
@@ -240,4 +2093,625 @@ public class BinarySearchTree <T extends Comparable<T>> implements SortedCollect
         }
         return true;
     }
+
+    /**
+     * Checks the subtree sizes maintained by insert, and select and rank on a
+     * tree that holds duplicates.
+     */
+    public boolean test4() {
+        var bst = new BinarySearchTree<Integer>();
+        bst.insert(50);
+        bst.insert(30);
+        bst.insert(70);
+        bst.insert(30);
+        bst.insert(60);
+        bst.insert(80);
+        bst.insert(10);
+        // tree structure is:
+        //           50
+        //      30        70
+        //    30        60   80
+        //  10
+        if (bst.size() != 7 || bst.root.getSize() != 7 || bst.root.getLeft().getSize() != 3) {
+            return false;
+        }
+        int[] sorted = {10, 30, 30, 50, 60, 70, 80};
+        for (int i = 0; i < sorted.length; i++) {
+            if (bst.select(i) != sorted[i]) {
+                return false;
+            }
+        }
+        if (bst.rank(10) != 0 || bst.rank(30) != 1 || bst.rank(31) != 3 || bst.rank(50) != 3
+                || bst.rank(100) != 7) {
+            return false;
+        }
+        try {
+            bst.select(7);
+            return false;
+        }
+        catch (IndexOutOfBoundsException e) {
+            return true;
+        }
+    }
+
+    /**
+     * Builds degenerate trees from sorted and reverse-sorted input, deep
+     * enough that recursive insert and contains would overflow the stack.
+     */
+    public boolean test5() {
+        var bst = new BinarySearchTree<Integer>();
+        for (int i = 0; i < 20000; i++) {
+            bst.insert(i);
+        }
+        if (bst.size() != 20000 || !bst.contains(0) || !bst.contains(19999) || bst.contains(20000)) {
+            return false;
+        }
+        bst.clear();
+        for (int i = 20000; i > 0; i--) {
+            bst.insert(i);
+        }
+        return bst.size() == 20000 && bst.contains(1) && bst.contains(20000) && !bst.contains(0);
+    }
+
+    /**
+     * Iterates over a tree with duplicates in order, checks that the iterator
+     * fails fast after an insert, and sums the values with a parallel stream
+     * over a tree big enough to be split many times.
+     */
+    public boolean test6() {
+        var bst = new BinarySearchTree<Integer>();
+        int[] values = {8, 3, 10, 1, 6, 14, 4, 7, 13, 6};
+        for (int value : values) {
+            bst.insert(value);
+        }
+        StringBuilder order = new StringBuilder();
+        for (int value : bst) {
+            order.append(value).append(' ');
+        }
+        if (!order.toString().equals("1 3 4 6 6 7 8 10 13 14 ")) {
+            return false;
+        }
+        Iterator<Integer> iterator = bst.iterator();
+        iterator.next();
+        bst.insert(2);
+        try {
+            iterator.next();
+            return false;
+        }
+        catch (ConcurrentModificationException e) {
+            // expected
+        }
+
+        var big = new BinarySearchTree<Long>();
+        // insert a shuffled permutation of 0 .. 99999 to get a bushy tree
+        for (long i = 0; i < 100000; i++) {
+            big.insert((i * 7919) % 100000);
+        }
+        long expected = 99999L * 100000 / 2;
+        if (big.parallelStream().mapToLong(Long::longValue).sum() != expected) {
+            return false;
+        }
+        // the parallel stream must keep the encounter order
+        return big.parallelStream().skip(500).findFirst().orElse(-1L) == 500L
+                && big.stream().count() == 100000;
+    }
+
+    /**
+     * Checks floor, ceiling, lower and higher around stored values, between
+     * them and past both ends, and range scans that are bounded, open-ended
+     * and empty.
+     */
+    public boolean test7() {
+        var bst = new BinarySearchTree<Integer>();
+        for (int value : new int[] {40, 20, 60, 10, 30, 50, 70, 30}) {
+            bst.insert(value);
+        }
+        if (bst.floor(30) != 30 || bst.floor(35) != 30 || bst.floor(5) != null || bst.floor(99) != 70) {
+            return false;
+        }
+        if (bst.ceiling(30) != 30 || bst.ceiling(35) != 40 || bst.ceiling(5) != 10 || bst.ceiling(71) != null) {
+            return false;
+        }
+        if (bst.lower(30) != 20 || bst.lower(10) != null || bst.higher(30) != 40 || bst.higher(70) != null) {
+            return false;
+        }
+        StringBuilder scanned = new StringBuilder();
+        for (Iterator<Integer> range = bst.range(20, 50); range.hasNext(); ) {
+            scanned.append(range.next()).append(' ');
+        }
+        scanned.append("| ");
+        for (Iterator<Integer> range = bst.range(null, 25); range.hasNext(); ) {
+            scanned.append(range.next()).append(' ');
+        }
+        scanned.append("| ");
+        for (Iterator<Integer> range = bst.range(55, null); range.hasNext(); ) {
+            scanned.append(range.next()).append(' ');
+        }
+        return scanned.toString().equals("20 30 30 40 | 10 20 | 60 70 ")
+                && !bst.range(31, 39).hasNext() && !bst.range(50, 50).hasNext();
+    }
+
+    /**
+     * Bulk loads sorted values into a perfectly balanced tree, merges more
+     * sorted values into it, and rejects values that are out of order.
+     */
+    public boolean test8() {
+        var bst = new BinarySearchTree<Integer>();
+        var values = new ArrayList<Integer>();
+        for (int i = 1; i <= 1000; i++) {
+            values.add(i * 10);
+        }
+        bst.bulkLoad(values.iterator(), values.size());
+        if (bst.size() != 1000 || bst.height() != 10 || bst.select(0) != 10 || bst.select(999) != 10000) {
+            return false;
+        }
+        var added = List.of(5, 10, 15, 20000);
+        bst.bulkInsert(added.iterator(), added.size());
+        if (bst.size() != 1004 || bst.height() != 10 || bst.select(0) != 5 || bst.select(2) != 10
+                || bst.select(3) != 15 || !bst.contains(20000)) {
+            return false;
+        }
+        try {
+            bst.bulkLoad(List.of(1, 3, 2).iterator(), 3);
+            return false;
+        }
+        catch (IllegalArgumentException e) {
+            // expected, and the tree is left as it was
+        }
+        return bst.size() == 1004;
+    }
+
+    /**
+     * Checks counted mode: duplicates share a node, but size, select, rank,
+     * count, iteration and bulk loading all still see every duplicate.
+     */
+    public boolean test9() {
+        var bst = new BinarySearchTree<String>(true);
+        for (String word : new String[] {"m", "c", "x", "c", "m", "c", "a"}) {
+            bst.insert(word);
+        }
+        // tree structure is:
+        //        m(2)
+        //    c(3)     x
+        //  a
+        if (bst.size() != 7 || bst.height() != 3 || bst.root.getSize() != 7 || bst.root.getCount() != 2) {
+            return false;
+        }
+        if (bst.count("c") != 3 || bst.count("x") != 1 || bst.count("b") != 0) {
+            return false;
+        }
+        if (bst.rank("c") != 1 || bst.rank("m") != 4 || !"c".equals(bst.select(3)) || !"m".equals(bst.select(4))) {
+            return false;
+        }
+        if (!String.join(" ", bst).equals("a c c c m m x")
+                || bst.parallelStream().filter("c"::equals).count() != 3) {
+            return false;
+        }
+        var plain = new BinarySearchTree<String>();
+        for (String word : new String[] {"m", "c", "x", "c", "m", "c", "a"}) {
+            plain.insert(word);
+        }
+        if (plain.count("c") != 3 || plain.count("m") != 2) {
+            return false;
+        }
+        bst.bulkLoad(List.of("a", "a", "b", "b", "b", "c").iterator(), 6);
+        return bst.size() == 6 && bst.root.getSize() == 6 && bst.height() == 2 && bst.count("b") == 3;
+    }
+
+    /**
+     * Checks the streaming traversal writers against the string versions,
+     * and their node and depth limits, on a perfect tree of 1 to 15.
+     */
+    public boolean test10() {
+        var bst = new BinarySearchTree<Integer>();
+        List<Integer> values = new ArrayList<>();
+        for (int i = 1; i <= 15; i++) {
+            values.add(i);
+        }
+        bst.bulkLoad(values.iterator(), values.size());
+        try {
+            StringWriter inOrder = new StringWriter();
+            bst.root.writeInOrder(inOrder);
+            StringWriter levelOrder = new StringWriter();
+            bst.root.writeLevelOrder(levelOrder);
+            if (!inOrder.toString().equals(bst.root.toInOrderString())
+                    || !levelOrder.toString().equals("[ 8, 4, 12, 2, 6, 10, 14, 1, 3, 5, 7, 9, 11, 13, 15 ]")) {
+                return false;
+            }
+            StringBuilder limited = new StringBuilder();
+            bst.root.writeInOrder(limited, 3, Integer.MAX_VALUE);
+            bst.root.writeInOrder(limited, Integer.MAX_VALUE, 2);
+            bst.root.writeLevelOrder(limited, 4, Integer.MAX_VALUE);
+            bst.root.writeLevelOrder(limited, Integer.MAX_VALUE, 2);
+            bst.root.writeLevelOrder(limited, 15, 4);
+            bst.root.writeInOrder(limited, 0, 0);
+            return limited.toString().equals("[ 1, 2, 3, ... ]" + "[ 4, 8, 12, ... ]" + "[ 8, 4, 12, 2, ... ]"
+                    + "[ 8, 4, 12, ... ]" + levelOrder + "[ ... ]");
+        }
+        catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Checks the parallel operations against sequential results, on a
+     * balanced tree, a degenerate chain (which must not overflow the stack)
+     * and a counted tree.
+     */
+    public boolean test11() {
+        var balanced = new BinarySearchTree<Integer>();
+        List<Integer> values = new ArrayList<>();
+        for (int i = 0; i < 200000; i++) {
+            values.add(i);
+        }
+        balanced.bulkLoad(values.iterator(), values.size());
+        var chain = new BinarySearchTree<Integer>();
+        for (int i = 0; i < 50000; i++) {
+            chain.insert(i);
+        }
+        for (var tree : List.of(balanced, chain)) {
+            long n = tree.size();
+            if (tree.parallelReduce(0L, (sum, value) -> sum + value, Long::sum) != n * (n - 1) / 2
+                    || tree.parallelCount(value -> value % 3 == 0) != (n + 2) / 3) {
+                return false;
+            }
+            // string concatenation is associative but not commutative, so this checks the order
+            String digits = tree.parallelReduce("", (text, value) -> text + value % 10, String::concat);
+            if (!digits.equals(tree.stream().map(value -> String.valueOf(value % 10)).reduce("", String::concat))) {
+                return false;
+            }
+            var visited = new java.util.concurrent.atomic.LongAdder();
+            tree.parallelForEach(value -> visited.increment());
+            if (visited.sum() != n) {
+                return false;
+            }
+        }
+        var counted = new BinarySearchTree<String>(true);
+        for (String word : new String[] {"b", "a", "b", "c", "b"}) {
+            counted.insert(word);
+        }
+        return counted.parallelCount("b"::equals) == 3
+                && counted.parallelReduce("", String::concat, String::concat).equals("abbbc")
+                && new BinarySearchTree<Integer>().parallelCount(value -> true) == 0;
+    }
+
+    /**
+     * Checks the metrics counters and shape statistics on a degenerate tree,
+     * reading them both directly and through JMX.
+     */
+    public boolean test12() {
+        var bst = new BinarySearchTree<Integer>();
+        if (bst.getMetrics() != null || bst.shape().height != 0) {
+            return false;
+        }
+        TreeMetrics metrics = bst.enableMetrics();
+        for (int i = 0; i < 500; i++) {
+            bst.insert(i);
+        }
+        // the i-th insert compares against the i nodes of the chain so far
+        if (metrics.getInserts() != 500 || metrics.getComparisons() != 500 * 499 / 2
+                || metrics.getInsertLatency().count() != 500) {
+            return false;
+        }
+        bst.contains(499);
+        bst.contains(-1);
+        if (metrics.getLookups() != 2 || metrics.getComparisons() != 500 * 499 / 2 + 501) {
+            return false;
+        }
+        TreeMetrics.Shape shape = bst.shape();
+        if (shape.nodes != 500 || shape.height != 500 || shape.averageDepth != 250.5
+                || shape.minimumHeight() != 9 || shape.balanceFactor() < 50) {
+            return false;
+        }
+        // the shape is measured once until the tree changes
+        if (metrics.shape() != metrics.shape() || metrics.getHeight() != 500) {
+            return false;
+        }
+        try {
+            var server = java.lang.management.ManagementFactory.getPlatformMBeanServer();
+            var name = new javax.management.ObjectName("CS400:type=TreeMetrics,name=\"test12\"");
+            var shapeName = new javax.management.ObjectName("CS400:type=TreeShape,name=\"test12\"");
+            metrics.register("test12");
+            boolean opted = server.isRegistered(shapeName);
+            metrics.unregister();
+            metrics.register("test12", true);
+            boolean visible = server.getAttribute(name, "Inserts").equals(500L)
+                    && server.getAttribute(shapeName, "Height").equals(500)
+                    && server.getAttribute(shapeName, "Nodes").equals(500);
+            metrics.unregister();
+            if (opted || !visible || server.isRegistered(name) || server.isRegistered(shapeName)) {
+                return false;
+            }
+        }
+        catch (javax.management.JMException e) {
+            return false;
+        }
+        bst.disableMetrics();
+        bst.insert(500);
+        return bst.getMetrics() == null && metrics.getInserts() == 500 && metrics.getHeight() == 501;
+    }
+
+    /**
+     * Removes values one at a time and by range from random trees, checking
+     * the remaining values, subtree sizes and parent references against a
+     * sorted list after each step.
+     */
+    public boolean test13() {
+        var random = new java.util.Random(17);
+        for (int round = 0; round < 50; round++) {
+            var bst = new BinarySearchTree<Integer>(round % 2 == 0);
+            List<Integer> expected = new ArrayList<>();
+            for (int i = 0; i < 200; i++) {
+                int value = random.nextInt(100);
+                bst.insert(value);
+                expected.add(value);
+            }
+            expected.sort(null);
+            Integer value = random.nextInt(100);
+            if (bst.remove(value) != expected.remove(value)) {
+                return false;
+            }
+            if (!bst.removeMin().equals(expected.remove(0))
+                    || !bst.removeMax().equals(expected.remove(expected.size() - 1))) {
+                return false;
+            }
+            int from = random.nextInt(100);
+            int to = from + random.nextInt(40);
+            Integer lower = round % 5 == 0 ? null : from;
+            Integer upper = round % 7 == 0 ? null : to;
+            int removed = bst.removeRange(lower, upper);
+            int before = expected.size();
+            expected.removeIf(v -> (lower == null || v >= lower) && (upper == null || v < upper));
+            if (removed != before - expected.size() || bst.size() != expected.size()
+                    || (bst.root != null && bst.root.getUp() != null)) {
+                return false;
+            }
+            // iteration follows parent references, select follows subtree sizes
+            List<Integer> actual = new ArrayList<>();
+            bst.forEach(actual::add);
+            for (int i = 0; i < expected.size(); i++) {
+                if (!bst.select(i).equals(expected.get(i))) {
+                    return false;
+                }
+            }
+            if (!actual.equals(expected)) {
+                return false;
+            }
+        }
+        var empty = new BinarySearchTree<String>();
+        return empty.removeMin() == null && empty.removeMax() == null && empty.removeRange(null, null) == 0;
+    }
+
+    /**
+     * Clears a pooled tree and fills it again: the new values go into the
+     * nodes the old ones left behind, and removals feed the pool too.
+     */
+    public boolean test14() {
+        var bst = new BinarySearchTree<Integer>(true);
+        bst.enableNodePool(150);
+        for (int i = 0; i < 200; i++) {
+            bst.insert(i % 100);
+        }
+        // each node made for a duplicate goes to the pool, and the next insert takes it back out
+        if (bst.pooledNodes() != 1 || bst.size() != 200) {
+            return false;
+        }
+        BSTNode<Integer> oldRoot = bst.root;
+        bst.clear();
+        if (bst.pooledNodes() != 101 || oldRoot.getData() != null || !bst.isEmpty()) {
+            return false;
+        }
+        for (int i = 0; i < 150; i++) {
+            bst.insert(i * 7 % 150);
+        }
+        // the first 101 values went into pooled nodes, the old root among them
+        if (bst.pooledNodes() != 0 || oldRoot.getData() == null) {
+            return false;
+        }
+        if (bst.removeMin() != 0 || !bst.remove(75) || bst.removeMax() != 149 || bst.pooledNodes() != 3) {
+            return false;
+        }
+        bst.insert(1000);
+        int previous = -1;
+        for (int value : bst) {
+            if (value <= previous) {
+                return false;
+            }
+            previous = value;
+        }
+        bst.disableNodePool();
+        bst.clear();
+        return bst.pooledNodes() == 0 && previous == 1000;
+    }
+
+    /**
+     * A listener subscribed with batches of 3, called right away, gets the
+     * inserts, removals and the clear in order, a partial batch only when
+     * it is flushed, and nothing after it unsubscribes. A listener on a
+     * thread pool gets every batch, in order, one at a time.
+     */
+    public boolean test15() {
+        var bst = new BinarySearchTree<Integer>(true);
+        List<List<TreeChangeFeed.Event<Integer>>> batches = new ArrayList<>();
+        TreeChangeFeed.Subscription<Integer> subscription = bst.subscribe(batches::add, Runnable::run, 3);
+        bst.insert(5);
+        bst.insert(3);
+        bst.insert(5);
+        bst.remove(5);
+        if (batches.size() != 1 || batches.get(0).size() != 3
+                || !batches.get(0).get(2).toString().equals("INSERT 5")) {
+            return false;
+        }
+        bst.clear();
+        bst.flushChanges();
+        if (batches.size() != 2 || !batches.get(1).toString().equals("[REMOVE 5, CLEAR]")) {
+            return false;
+        }
+        bst.insert(1);
+        if (!bst.unsubscribe(subscription) || bst.unsubscribe(subscription) || bst.changes != null) {
+            return false;
+        }
+        bst.insert(2);
+        bst.flushChanges();
+        if (batches.size() != 3 || batches.get(2).size() != 1) {
+            return false;
+        }
+        java.util.concurrent.ExecutorService pool = java.util.concurrent.Executors.newFixedThreadPool(4);
+        List<Integer> delivered = java.util.Collections.synchronizedList(new ArrayList<>());
+        java.util.concurrent.atomic.AtomicInteger running = new java.util.concurrent.atomic.AtomicInteger();
+        java.util.concurrent.atomic.AtomicBoolean overlapped = new java.util.concurrent.atomic.AtomicBoolean();
+        bst.subscribe(events -> {
+            overlapped.compareAndSet(false, running.incrementAndGet() > 1);
+            for (TreeChangeFeed.Event<Integer> event : events) {
+                delivered.add(event.getValue());
+            }
+            running.decrementAndGet();
+        }, pool, 7);
+        for (int i = 0; i < 1000; i++) {
+            bst.insert(i);
+        }
+        bst.flushChanges();
+        pool.shutdown();
+        try {
+            pool.awaitTermination(10, java.util.concurrent.TimeUnit.SECONDS);
+        }
+        catch (InterruptedException e) {
+            return false;
+        }
+        for (int i = 0; i < 1000; i++) {
+            if (delivered.size() != 1000 || delivered.get(i) != i) {
+                return false;
+            }
+        }
+        return !overlapped.get();
+    }
+
+    /**
+     * Keeps the sum of the values as an aggregate through random inserts
+     * and removals, in counted mode and not, and compares the sums of
+     * random ranges with sums over the in-order values.
+     */
+    public boolean test16() {
+        var random = new java.util.Random(25);
+        for (boolean counted : new boolean[] {false, true}) {
+            var bst = new BinarySearchTree<Integer>(counted);
+            TreeAggregate<Integer, Long> sum = TreeAggregate.sum(Integer::longValue);
+            for (int i = 0; i < 300; i++) {
+                bst.insert(random.nextInt(200));
+            }
+            bst.enableAggregate(sum);
+            for (int round = 0; round < 200; round++) {
+                if (random.nextBoolean()) {
+                    bst.insert(random.nextInt(200));
+                }
+                else {
+                    bst.remove(random.nextInt(200));
+                }
+                Integer from = random.nextInt(10) == 0 ? null : random.nextInt(220) - 10;
+                Integer to = random.nextInt(10) == 0 ? null : random.nextInt(220) - 10;
+                long expected = 0;
+                boolean any = false;
+                for (int value : bst) {
+                    if ((from == null || value >= from) && (to == null || value < to)) {
+                        expected += value;
+                        any = true;
+                    }
+                }
+                Long actual = bst.aggregate(sum, from, to);
+                if (any ? actual == null || actual != expected : actual != null) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Inserts 100,000 sorted values, which makes a plain BST a chain, and
+     * checks that measuring its height does not overflow the stack.
+     */
+    public boolean test17() {
+        var bst = new BinarySearchTree<Integer>();
+        for (int i = 0; i < 100000; i++) {
+            bst.insert(i);
+        }
+        return bst.height() == 100000 && bst.shape().height == 100000;
+    }
+
+    /**
+     * Inserts batches with insertAll and the same values one at a time in
+     * ascending order, into copies of a random tree, in both duplicate
+     * modes: the finger searches must link every value in where insert
+     * does, leaving the same nodes with the same counts, sizes and sums.
+     */
+    public boolean test18() {
+        var random = new java.util.Random(18);
+        TreeAggregate<Integer, Long> sum = TreeAggregate.sum(Integer::longValue);
+        for (boolean counted : new boolean[] {false, true}) {
+            var batched = new BinarySearchTree<Integer>(counted);
+            var single = new BinarySearchTree<Integer>(counted);
+            batched.enableAggregate(sum);
+            single.enableAggregate(sum);
+            for (int i = 0; i < 2000; i++) {
+                int value = random.nextInt(5000);
+                batched.insert(value);
+                single.insert(value);
+            }
+            for (int size : new int[] {1, 10, 300, 5000}) {
+                List<Integer> batch = new ArrayList<>();
+                for (int i = 0; i < size; i++) {
+                    batch.add(random.nextInt(6000) - 500);
+                }
+                batched.insertAll(batch);
+                batch.sort(null);
+                for (int value : batch) {
+                    single.insert(value);
+                }
+            }
+            // pairs of nodes in the same place, the one-at-a-time tree's first
+            ArrayDeque<BSTNode<Integer>> stack = new ArrayDeque<>();
+            stack.push(batched.root);
+            stack.push(single.root);
+            while (!stack.isEmpty()) {
+                BSTNode<Integer> expected = stack.pop();
+                BSTNode<Integer> actual = stack.pop();
+                if (!actual.getData().equals(expected.getData()) || actual.count != expected.count
+                        || actual.size != expected.size || !actual.aggregate.equals(expected.aggregate)
+                        || (actual.getLeft() == null) != (expected.getLeft() == null)
+                        || (actual.getRight() == null) != (expected.getRight() == null)) {
+                    return false;
+                }
+                if (actual.getLeft() != null) {
+                    stack.push(actual.getLeft());
+                    stack.push(expected.getLeft());
+                }
+                if (actual.getRight() != null) {
+                    stack.push(actual.getRight());
+                    stack.push(expected.getRight());
+                }
+            }
+        }
+        return true;
+    }
+
+    public void main() {
+        System.out.println("Test 1 results: " + test1());
+        System.out.println("Test 2 results: " + test2());
+        System.out.println("Test 3 results: " + test3());
+        System.out.println("Test 4 results: " + test4());
+        System.out.println("Test 5 results: " + test5());
+        System.out.println("Test 6 results: " + test6());
+        System.out.println("Test 7 results: " + test7());
+        System.out.println("Test 8 results: " + test8());
+        System.out.println("Test 9 results: " + test9());
+        System.out.println("Test 10 results: " + test10());
+        System.out.println("Test 11 results: " + test11());
+        System.out.println("Test 12 results: " + test12());
+        System.out.println("Test 13 results: " + test13());
+        System.out.println("Test 14 results: " + test14());
+        System.out.println("Test 15 results: " + test15());
+        System.out.println("Test 16 results: " + test16());
+        System.out.println("Test 17 results: " + test17());
+        System.out.println("Test 18 results: " + test18());
+    }
 }
@@ -0,0 +1,1154 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Spliterator;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.StampedLock;
+import java.util.function.BiFunction;
+import java.util.function.BinaryOperator;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+
+/**
+ * A thread-safe RedBlackTree. Inserts lock only the part of the tree they
+ * are changing: they go down from the root latching each node and letting
+ * go of the ones more than three levels above (lock coupling), and rebalance
+ * top-down on the way, so the rotations never reach above the latches they
+ * hold. Any number of them run at once, in different parts of the tree,
+ * as a group that holds the write side of a StampedLock between them.
+ * Everything else that changes the tree (removals, bulk loads, set
+ * operations) takes the write lock for itself, and so does an insert while
+ * the tree counts duplicates or keeps aggregates, metrics, subscribers or a
+ * node pool, which all need the whole tree.
+ *
+ * contains, size and isEmpty never block: they read the tree optimistically
+ * and only fall back when the tree changed while they were reading, contains
+ * by joining the group and latching its way down like an insert. The other
+ * queries share the read lock, so readers only ever wait for writers, never
+ * for each other.
+ *
+ * Iterators, spliterators and range scans work on a copy of the values that
+ * is taken under the read lock, so they never see a half-finished update and
+ * never throw a ConcurrentModificationException.
+ */
+public class ConcurrentRedBlackTree<T extends Comparable<T>> extends RedBlackTree<T> {
+
+    // a red-black tree with fewer than 2^31 values is never taller than this
+    // (2 * log2(n + 1)), so a longer walk must be reading a half-finished rotation
+    private static final int MAX_HEIGHT = 64;
+
+    protected final StampedLock lock = new StampedLock();
+
+    // the thread holding the write lock, if any. StampedLock is not
+    // reentrant, so reads made from within a write (bulkInsert iterates the
+    // tree, for example) must skip locking. Only the writer itself ever
+    // sees its own thread here.
+    private Thread writer = null;
+
+    // orders the write locks of trees that are locked together, see join
+    private static final AtomicLong LOCK_ORDER = new AtomicLong();
+    private final long lockOrder = LOCK_ORDER.getAndIncrement();
+
+    // the number of inserts and lookups in the latched group, 0 while there
+    // is none. While there is one, it holds the write lock with groupStamp
+    private final AtomicInteger latched = new AtomicInteger();
+    private long groupStamp;
+
+    // the number of threads blocked on the lock for an operation of their
+    // own. While there are any, nothing more joins the latched group, so a
+    // steady stream of inserts cannot keep them waiting for good
+    private final AtomicInteger waiting = new AtomicInteger();
+
+    // latched to change the root reference, as if it were the root's parent
+    private final RBTNode<T> header = new RBTNode<>(null);
+
+    @SuppressWarnings({"rawtypes", "unchecked"})
+    private static final AtomicIntegerFieldUpdater<RBTNode<?>> LATCH =
+            (AtomicIntegerFieldUpdater) AtomicIntegerFieldUpdater.newUpdater(RBTNode.class, "latch");
+
+    /**
+     * Creates an empty tree that stores every value in its own node.
+     */
+    public ConcurrentRedBlackTree() {
+        super();
+    }
+
+    /**
+     * Creates an empty tree.
+     * @param countDuplicates true to store duplicates as counts on one node
+     */
+    public ConcurrentRedBlackTree(boolean countDuplicates) {
+        super(countDuplicates);
+    }
+
+    /**
+     * Creates an empty tree that keeps its values in the order of a
+     * comparator, see BinarySearchTree(Comparator).
+     * @param comparator the order to keep values in, or null for their
+     *     natural order
+     */
+    public ConcurrentRedBlackTree(Comparator<? super T> comparator) {
+        super(comparator);
+    }
+
+    /**
+     * Creates an empty tree.
+     * @param countDuplicates true to store duplicates as counts on one node
+     * @param comparator the order to keep values in, or null for their
+     *     natural order
+     */
+    public ConcurrentRedBlackTree(boolean countDuplicates, Comparator<? super T> comparator) {
+        super(countDuplicates, comparator);
+    }
+
+    /**
+     * Checks whether data is stored in the tree without taking a lock. The
+     * search runs against whatever state the tree is in, and the result is
+     * only used when no writer held the lock in the meantime. A torn read
+     * can throw or wander, so exceptions and overly long walks also mean
+     * "retry", latching the nodes on the way down in the latched group, so
+     * a lookup never waits for inserts in other parts of the tree. With
+     * metrics enabled, every lookup takes the read lock so it is measured
+     * once.
+     * @param data the value to check for in the collection
+     * @return true if the tree contains data one or more times
+     */
+    @Override
+    public boolean contains(Comparable<T> data) {
+        if (this.writer == Thread.currentThread()) {
+            return super.contains(data);
+        }
+        if (this.metrics != null) {
+            return read(() -> super.contains(data));
+        }
+        long stamp = this.lock.tryOptimisticRead();
+        if (stamp != 0) {
+            try {
+                Boolean found = null; // stays null when the walk is cut short
+                BSTNode<T> node = this.root;
+                for (int depth = 0; depth <= MAX_HEIGHT; depth++) {
+                    if (node == null) {
+                        found = false;
+                        break;
+                    }
+                    int comparison = compare(data, node.data);
+                    if (comparison == 0) {
+                        found = true;
+                        break;
+                    }
+                    node = comparison < 0 ? node.left : node.right;
+                }
+                if (found != null && this.lock.validate(stamp)) {
+                    return found;
+                }
+            }
+            catch (RuntimeException e) {
+                // torn read of a node that was being linked in or rotated, retry latched
+            }
+        }
+        enterLatched();
+        try {
+            return containsLatched(data);
+        }
+        finally {
+            exitLatched();
+        }
+    }
+
+    /**
+     * @return the number of values in the tree, read without blocking
+     */
+    @Override
+    public int size() {
+        if (this.writer == Thread.currentThread()) {
+            return super.size();
+        }
+        long stamp = this.lock.tryOptimisticRead();
+        int size = super.size();
+        if (this.lock.validate(stamp)) {
+            return size;
+        }
+        return read(super::size);
+    }
+
+    /**
+     * @return true if the tree holds no values, read without blocking
+     */
+    @Override
+    public boolean isEmpty() {
+        if (this.writer == Thread.currentThread()) {
+            return super.isEmpty();
+        }
+        long stamp = this.lock.tryOptimisticRead();
+        boolean empty = super.isEmpty();
+        if (this.lock.validate(stamp)) {
+            return empty;
+        }
+        return read(super::isEmpty);
+    }
+
+    /**
+     * Inserts data in the latched group when the tree allows it, see
+     * insertLatched, and under the write lock when it does not.
+     * @param data the new value being inserted
+     * @throws NullPointerException if data is null
+     */
+    @Override
+    public void insert(T data) throws NullPointerException {
+        if (data == null) {
+            throw new NullPointerException();
+        }
+        if (this.writer != Thread.currentThread() && latchable()) {
+            enterLatched();
+            try {
+                // a writer may have changed that before this thread got in
+                if (latchable()) {
+                    insertLatched(data);
+                    return;
+                }
+            }
+            finally {
+                exitLatched();
+            }
+        }
+        write(() -> {
+            super.insert(data);
+            return null;
+        });
+    }
+
+    @Override
+    public boolean remove(T data) {
+        return write(() -> super.remove(data));
+    }
+
+    @Override
+    public T removeMin() {
+        return write(super::removeMin);
+    }
+
+    @Override
+    public T removeMax() {
+        return write(super::removeMax);
+    }
+
+    @Override
+    public int removeRange(Comparable<T> from, Comparable<T> to) {
+        return write(() -> super.removeRange(from, to));
+    }
+
+    /**
+     * Copies the nodes of this tree under the read lock. The set operations
+     * copy the other operand before they take the write lock on this tree,
+     * so two trees combined with each other from two threads cannot
+     * deadlock.
+     */
+    @Override
+    protected RBTNode<T> copyNodes() {
+        return read(super::copyNodes);
+    }
+
+    @Override
+    protected void combine(SetOperation operation, RBTNode<T> nodes, TreeAggregate<T, Object> aggregated) {
+        write(() -> {
+            super.combine(operation, nodes, aggregated);
+            return null;
+        });
+    }
+
+    @Override
+    public RedBlackTree<T> split(Comparable<T> key) {
+        return write(() -> super.split(key));
+    }
+
+    /**
+     * Appends other while holding the write locks of both trees. The locks
+     * are taken in the order the trees were created in, whichever tree
+     * join is called on, so a.join(b) and b.join(a) from two threads
+     * cannot deadlock.
+     */
+    @Override
+    public void join(RedBlackTree<T> other) throws IllegalArgumentException {
+        Supplier<Void> join = () -> {
+            super.join(other);
+            return null;
+        };
+        if (!(other instanceof ConcurrentRedBlackTree) || other == this) {
+            write(join);
+        }
+        else {
+            ConcurrentRedBlackTree<T> that = (ConcurrentRedBlackTree<T>) other;
+            if (this.lockOrder < that.lockOrder) {
+                write(() -> that.write(join));
+            }
+            else {
+                that.write(() -> write(join));
+            }
+        }
+    }
+
+    /**
+     * @return a new empty ConcurrentRedBlackTree, for split to move values into
+     */
+    @Override
+    protected RedBlackTree<T> emptyTree() {
+        return new ConcurrentRedBlackTree<T>(this.countDuplicates, this.comparator);
+    }
+
+    @Override
+    public void enableNodePool(int capacity) throws IllegalArgumentException {
+        write(() -> {
+            super.enableNodePool(capacity);
+            return null;
+        });
+    }
+
+    @Override
+    public void disableNodePool() {
+        write(() -> {
+            super.disableNodePool();
+            return null;
+        });
+    }
+
+    @Override
+    public int pooledNodes() {
+        return read(super::pooledNodes);
+    }
+
+    @Override
+    public void clear() {
+        write(() -> {
+            super.clear();
+            return null;
+        });
+    }
+
+    @Override
+    public void bulkLoad(Iterator<? extends T> sorted, int n) throws IllegalArgumentException {
+        write(() -> {
+            super.bulkLoad(sorted, n);
+            return null;
+        });
+    }
+
+    @Override
+    public void bulkInsert(Iterator<? extends T> sorted, int n) throws IllegalArgumentException {
+        write(() -> {
+            super.bulkInsert(sorted, n);
+            return null;
+        });
+    }
+
+    @Override
+    public void insertAll(Collection<? extends T> values) throws NullPointerException {
+        write(() -> {
+            super.insertAll(values);
+            return null;
+        });
+    }
+
+    @Override
+    public boolean containsAll(Collection<? extends T> values) {
+        return read(() -> super.containsAll(values));
+    }
+
+    @Override
+    public BitSet containsEach(List<? extends T> values) {
+        return read(() -> super.containsEach(values));
+    }
+
+    @Override
+    public <R> R parallelReduce(R identity, BiFunction<R, ? super T, R> accumulator, BinaryOperator<R> combiner) {
+        return read(() -> super.parallelReduce(identity, accumulator, combiner));
+    }
+
+    @Override
+    public void parallelForEach(Consumer<? super T> action) {
+        read(() -> {
+            super.parallelForEach(action);
+            return null;
+        });
+    }
+
+    @Override
+    public long parallelCount(Predicate<? super T> predicate) {
+        return read(() -> super.parallelCount(predicate));
+    }
+
+    @Override
+    public TreeChangeFeed.Subscription<T> subscribe(TreeChangeFeed.Listener<T> listener, Executor executor,
+            int batchSize, Consumer<? super Throwable> errorHandler)
+            throws IllegalArgumentException, NullPointerException {
+        return write(() -> super.subscribe(listener, executor, batchSize, errorHandler));
+    }
+
+    @Override
+    public boolean unsubscribe(TreeChangeFeed.Subscription<T> subscription) {
+        return write(() -> super.unsubscribe(subscription));
+    }
+
+    /**
+     * Takes the write lock, since the buffers belong to the writers.
+     */
+    @Override
+    public void flushChanges() {
+        write(() -> {
+            super.flushChanges();
+            return null;
+        });
+    }
+
+    @Override
+    public <A> void enableAggregate(TreeAggregate<T, A> aggregate) throws NullPointerException {
+        write(() -> {
+            super.enableAggregate(aggregate);
+            return null;
+        });
+    }
+
+    @Override
+    public void disableAggregate() {
+        write(() -> {
+            super.disableAggregate();
+            return null;
+        });
+    }
+
+    @Override
+    public <A> A aggregate(TreeAggregate<T, A> aggregate, Comparable<T> from, Comparable<T> to)
+            throws IllegalStateException {
+        return read(() -> super.aggregate(aggregate, from, to));
+    }
+
+    @Override
+    public TreeMetrics enableMetrics() {
+        return write(super::enableMetrics);
+    }
+
+    @Override
+    public void disableMetrics() {
+        write(() -> {
+            super.disableMetrics();
+            return null;
+        });
+    }
+
+    @Override
+    public TreeMetrics.Shape shape() {
+        return read(super::shape);
+    }
+
+    @Override
+    public T floor(Comparable<T> data) {
+        return read(() -> super.floor(data));
+    }
+
+    @Override
+    public T ceiling(Comparable<T> data) {
+        return read(() -> super.ceiling(data));
+    }
+
+    @Override
+    public T lower(Comparable<T> data) {
+        return read(() -> super.lower(data));
+    }
+
+    @Override
+    public T higher(Comparable<T> data) {
+        return read(() -> super.higher(data));
+    }
+
+    @Override
+    public T select(int k) throws IndexOutOfBoundsException {
+        return read(() -> super.select(k));
+    }
+
+    @Override
+    public int rank(Comparable<T> data) {
+        return read(() -> super.rank(data));
+    }
+
+    @Override
+    public int count(Comparable<T> data) {
+        return read(() -> super.count(data));
+    }
+
+    @Override
+    public int height() {
+        return read(super::height);
+    }
+
+    @Override
+    public void validate() throws IllegalStateException {
+        read(() -> {
+            super.validate();
+            return null;
+        });
+    }
+
+    @Override
+    public void print() {
+        read(() -> {
+            super.print();
+            return null;
+        });
+    }
+
+    /**
+     * @return an iterator over a copy of the values in [from, to), taken
+     *     under the read lock
+     */
+    @Override
+    public Iterator<T> range(Comparable<T> from, Comparable<T> to) {
+        return read(() -> {
+            List<T> copy = new ArrayList<>();
+            super.range(from, to).forEachRemaining(copy::add);
+            return copy;
+        }).iterator();
+    }
+
+    /**
+     * @return an iterator over a copy of all values, taken under the read lock
+     */
+    @Override
+    public Iterator<T> iterator() {
+        return snapshot().iterator();
+    }
+
+    /**
+     * @return a spliterator over a copy of all values, taken under the read lock
+     */
+    @Override
+    public Spliterator<T> spliterator() {
+        return snapshot().spliterator();
+    }
+
+    /**
+     * @return a frozen copy of all values, taken under the read lock
+     */
+    @Override
+    public FrozenTree<T> freeze() {
+        return read(() -> new FrozenTree<>(super.iterator(), super.size(), this.comparator));
+    }
+
+    private List<T> snapshot() {
+        return read(() -> {
+            List<T> copy = new ArrayList<>(super.size());
+            super.iterator().forEachRemaining(copy::add);
+            return copy;
+        });
+    }
+
+    /**
+     * Runs operation while holding the read lock, or directly when this
+     * thread already holds the write lock.
+     */
+    protected <R> R read(Supplier<R> operation) {
+        if (this.writer == Thread.currentThread()) {
+            return operation.get();
+        }
+        long stamp = this.lock.tryReadLock();
+        if (stamp == 0) {
+            this.waiting.incrementAndGet();
+            stamp = this.lock.readLock();
+            this.waiting.decrementAndGet();
+        }
+        try {
+            return operation.get();
+        }
+        finally {
+            this.lock.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * Runs operation while holding the write lock.
+     */
+    protected <R> R write(Supplier<R> operation) {
+        if (this.writer == Thread.currentThread()) {
+            return operation.get();
+        }
+        long stamp = this.lock.tryWriteLock();
+        if (stamp == 0) {
+            this.waiting.incrementAndGet();
+            stamp = this.lock.writeLock();
+            this.waiting.decrementAndGet();
+        }
+        this.writer = Thread.currentThread();
+        try {
+            return operation.get();
+        }
+        finally {
+            this.writer = null;
+            this.lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * @return true if an insert only has to link a node in and rebalance,
+     *     so it can run in the latched group: not while the tree counts
+     *     duplicates, or keeps aggregates, metrics, subscribers, a node pool
+     *     or invariant checks, which all need the whole tree
+     */
+    private boolean latchable() {
+        return !this.countDuplicates && this.aggregate == null && this.metrics == null && this.changes == null
+                && this.pool == null && !this.checkInvariants;
+    }
+
+    /**
+     * Joins the latched group: the inserts and lookups that share the write
+     * lock between them and keep out of each other's way by latching the
+     * nodes they work on. The first one in takes the write lock for the
+     * group, and the last one out lets go of it. In between, others join
+     * without touching the lock, unless another operation is waiting for
+     * it; then they queue up behind that one instead.
+     */
+    private void enterLatched() {
+        while (true) {
+            int members = this.latched.get();
+            if (members == 0 || this.waiting.get() > 0) {
+                long stamp = this.lock.writeLock();
+                // no group can have members now, it would hold the lock
+                this.groupStamp = stamp;
+                this.latched.set(1);
+                return;
+            }
+            if (this.latched.compareAndSet(members, members + 1)) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Leaves the latched group, and releases the write lock when this was
+     * the last member.
+     */
+    private void exitLatched() {
+        while (true) {
+            int members = this.latched.get();
+            if (members > 1) {
+                if (this.latched.compareAndSet(members, members - 1)) {
+                    return;
+                }
+            }
+            else if (this.latched.compareAndSet(1, 0)) {
+                this.lock.unlockWrite(this.groupStamp);
+                return;
+            }
+        }
+    }
+
+    /**
+     * Inserts data top-down, the way Guibas and Sedgewick's red-black trees
+     * do: on the way down, a node with two red children turns red and its
+     * children black, and when that puts two reds in a row, they are rotated
+     * right there. Nothing below can then make changes further up than the
+     * great-grandparent of the node it happens at, so the walk keeps the
+     * latches of the current node, its children and its three nearest
+     * ancestors, and lets go of the rest as it goes. The subtree size of
+     * each node is incremented as the walk leaves it for one of its
+     * children. Only runs in the latched group.
+     * @param data the new value being inserted
+     */
+    private void insertLatched(T data) {
+        RBTNode<T> node = (RBTNode<T>) createNode(data);
+        Latches held = new Latches();
+        held.add(this.header);
+        try {
+            this.modCount++;
+            RBTNode<T> current = (RBTNode<T>) this.root;
+            if (current == null) {
+                node.isBlack = true;
+                this.root = node;
+                return;
+            }
+            RBTNode<T> parent = this.header;
+            RBTNode<T> grandparent = null;
+            RBTNode<T> greatGrandparent = null;
+            held.add(current);
+            while (true) {
+                RBTNode<T> left = current.getLeft();
+                RBTNode<T> right = current.getRight();
+                if (left != null) {
+                    held.add(left);
+                }
+                if (right != null) {
+                    held.add(right);
+                }
+                if (!isBlack(left) && !isBlack(right)) {
+                    current.isBlack = false;
+                    left.isBlack = true;
+                    right.isBlack = true;
+                    if (parent == this.header) {
+                        current.isBlack = true; // the root stays black
+                    }
+                    else if (!parent.isBlack) {
+                        if (rotateRedPair(current, parent, grandparent, true) == parent) {
+                            grandparent = greatGrandparent; // parent took the grandparent's place
+                        }
+                        else {
+                            parent = greatGrandparent; // current took the grandparent's place
+                            grandparent = null;
+                        }
+                        // neither needs the node above: the top of the rotation is black
+                        greatGrandparent = null;
+                    }
+                }
+                boolean goLeft = compare(data, current.data) <= 0; // nodes less than OR equal to go on the left
+                RBTNode<T> child = goLeft ? current.getLeft() : current.getRight();
+                current.size++;
+                if (child == null) {
+                    if (goLeft) {
+                        current.setLeft(node);
+                    }
+                    else {
+                        current.setRight(node);
+                    }
+                    node.setUp(current);
+                    if (!current.isBlack) {
+                        rotateRedPair(node, current, parent, false);
+                    }
+                    return;
+                }
+                greatGrandparent = grandparent;
+                grandparent = parent;
+                parent = current;
+                current = child;
+                held.keep(greatGrandparent, grandparent, parent, current);
+            }
+        }
+        finally {
+            held.releaseAll();
+        }
+    }
+
+    /**
+     * Rotates a red node and its red parent under their black grandparent,
+     * with one rotation when they lean the same way and two when they do
+     * not, and colors the node that ends up on top black and the other two
+     * red. The grandparent's parent must be latched too, its child changes.
+     * @param node the red child of a red parent
+     * @param parent the red parent
+     * @param grandparent the black parent of parent
+     * @param pending true if node is on the way down of an insert that is
+     *     not linked in yet, and parent stays above it
+     * @return the node that ends up on top: parent or node
+     */
+    private RBTNode<T> rotateRedPair(RBTNode<T> node, RBTNode<T> parent, RBTNode<T> grandparent, boolean pending) {
+        grandparent.isBlack = false;
+        RBTNode<T> top;
+        if ((parent.getLeft() == node) == (grandparent.getLeft() == parent)) {
+            rotate(parent, grandparent);
+            top = parent;
+            if (pending) {
+                // rotate recomputed the size from the children, without the value on its way down
+                parent.size++;
+            }
+        }
+        else {
+            rotate(node, parent);
+            rotate(node, grandparent);
+            top = node;
+        }
+        top.isBlack = true;
+        return top;
+    }
+
+    /**
+     * Looks data up, latching each node before letting go of its parent,
+     * so no rotation can move a node while the walk is on it. Only runs in
+     * the latched group.
+     * @param data the value to look for
+     * @return true if the tree contains data
+     */
+    private boolean containsLatched(Comparable<T> data) {
+        RBTNode<T> held = this.header;
+        latch(held);
+        try {
+            RBTNode<T> node = (RBTNode<T>) this.root;
+            while (node != null) {
+                latch(node);
+                unlatch(held);
+                held = node;
+                int comparison = compare(data, node.data);
+                if (comparison == 0) {
+                    return true;
+                }
+                node = comparison < 0 ? node.getLeft() : node.getRight();
+            }
+            return false;
+        }
+        finally {
+            unlatch(held);
+        }
+    }
+
+    /**
+     * Latches node, spinning while another insert or lookup has it. They
+     * only ever hold on to a node for a few steps of their walk down.
+     */
+    private static void latch(RBTNode<?> node) {
+        for (int spins = 0; !LATCH.compareAndSet(node, 0, 1); spins++) {
+            if (spins < 64) {
+                Thread.onSpinWait();
+            }
+            else {
+                Thread.yield();
+            }
+        }
+    }
+
+    private static void unlatch(RBTNode<?> node) {
+        LATCH.set(node, 0);
+    }
+
+    /**
+     * The nodes an insert has latched, at most the window insertLatched
+     * keeps plus the children of its lowest node.
+     */
+    private static final class Latches {
+        private final RBTNode<?>[] nodes = new RBTNode<?>[8];
+        private int count = 0;
+
+        void add(RBTNode<?> node) {
+            latch(node);
+            this.nodes[this.count++] = node;
+        }
+
+        /**
+         * Lets go of every latched node except the given ones, any of
+         * which may be null.
+         */
+        void keep(RBTNode<?> a, RBTNode<?> b, RBTNode<?> c, RBTNode<?> d) {
+            int kept = 0;
+            for (int i = 0; i < this.count; i++) {
+                RBTNode<?> node = this.nodes[i];
+                if (node == a || node == b || node == c || node == d) {
+                    this.nodes[kept++] = node;
+                }
+                else {
+                    unlatch(node);
+                }
+            }
+            Arrays.fill(this.nodes, kept, this.count, null);
+            this.count = kept;
+        }
+
+        void releaseAll() {
+            keep(null, null, null, null);
+        }
+    }
+
+    /**
+     * Eight threads insert interleaved values while eight others keep
+     * checking that values which were already inserted are found.
+     */
+    public boolean test1() {
+        var tree = new ConcurrentRedBlackTree<Integer>();
+        int writers = 8;
+        int perWriter = 20000;
+        var failed = new AtomicBoolean(false);
+        var progress = new AtomicIntegerArray(writers);
+        List<Thread> threads = new ArrayList<>();
+        for (int w = 0; w < writers; w++) {
+            int writer = w;
+            threads.add(new Thread(() -> {
+                for (int i = 0; i < perWriter; i++) {
+                    tree.insert(i * writers + writer);
+                    progress.set(writer, i + 1);
+                }
+            }));
+        }
+        for (int r = 0; r < writers; r++) {
+            int reader = r;
+            threads.add(new Thread(() -> {
+                for (int i = 0; i < perWriter; i++) {
+                    // every value this writer reported as inserted must be found
+                    int inserted = progress.get(reader);
+                    if (inserted > 0 && !tree.contains((inserted - 1) * writers + reader)) {
+                        failed.set(true);
+                    }
+                    if (tree.contains(-1)) {
+                        failed.set(true);
+                    }
+                }
+            }));
+        }
+        threads.forEach(Thread::start);
+        for (Thread thread : threads) {
+            try {
+                thread.join();
+            }
+            catch (InterruptedException e) {
+                return false;
+            }
+        }
+        tree.validate();
+        return !failed.get() && tree.size() == writers * perWriter && tree.select(12345) == 12345;
+    }
+
+    /**
+     * Mixes inserts and removes of the same values from several threads and
+     * checks that every value ends up there exactly as often as it should.
+     */
+    public boolean test2() {
+        var tree = new ConcurrentRedBlackTree<Integer>(true);
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < 4; t++) {
+            threads.add(new Thread(() -> {
+                for (int i = 0; i < 10000; i++) {
+                    tree.insert(i % 100);
+                    tree.insert(i % 100);
+                    tree.remove(i % 100);
+                }
+            }));
+        }
+        threads.forEach(Thread::start);
+        for (Thread thread : threads) {
+            try {
+                thread.join();
+            }
+            catch (InterruptedException e) {
+                return false;
+            }
+        }
+        tree.validate();
+        // each thread leaves 100 copies of each value behind
+        int copies = 0;
+        for (int value : tree) {
+            if (value == 42) {
+                copies++;
+            }
+        }
+        return tree.size() == 40000 && tree.count(42) == 400 && copies == 400;
+    }
+
+    /**
+     * Freezes the tree while another thread inserts into it: the frozen
+     * copy holds exactly the values of some state the tree was in.
+     */
+    public boolean test3() {
+        var tree = new ConcurrentRedBlackTree<Long>();
+        Thread writer = new Thread(() -> {
+            for (long i = 0; i < 100000; i++) {
+                tree.insert(i);
+            }
+        });
+        writer.start();
+        FrozenTree<Long> frozen = tree.freeze();
+        try {
+            writer.join();
+        }
+        catch (InterruptedException e) {
+            return false;
+        }
+        long expected = 0;
+        for (long value : frozen) {
+            if (value != expected++) {
+                return false;
+            }
+        }
+        return expected == frozen.size() && !frozen.contains(expected)
+                && (frozen.isEmpty() || frozen.contains(expected - 1)) && tree.freeze().size() == 100000;
+    }
+
+    /**
+     * Joins two trees into each other from two threads at once, a.join(b)
+     * on one and b.join(a) on the other. One of the trees is always empty,
+     * so every join is valid, and the values end up moving back and forth
+     * without a deadlock.
+     */
+    public boolean test4() {
+        var a = new ConcurrentRedBlackTree<Integer>();
+        var b = new ConcurrentRedBlackTree<Integer>();
+        for (int i = 0; i < 1000; i++) {
+            a.insert(i);
+        }
+        List<Thread> threads = List.of(
+                new Thread(() -> {
+                    for (int i = 0; i < 20000; i++) {
+                        a.join(b);
+                    }
+                }),
+                new Thread(() -> {
+                    for (int i = 0; i < 20000; i++) {
+                        b.join(a);
+                    }
+                }));
+        for (Thread thread : threads) {
+            // a deadlocked thread must not keep the tests from exiting
+            thread.setDaemon(true);
+            thread.start();
+        }
+        try {
+            for (Thread thread : threads) {
+                thread.join(10000);
+                if (thread.isAlive()) {
+                    return false;
+                }
+            }
+        }
+        catch (InterruptedException e) {
+            return false;
+        }
+        a.validate();
+        b.validate();
+        return a.size() + b.size() == 1000 && (a.isEmpty() || b.isEmpty());
+    }
+
+    /**
+     * A value whose comparisons can be made to stop half-way through an
+     * insert: the first time it is compared with a value below 4, it counts
+     * stalled down and waits for resume.
+     */
+    private static final class Key implements Comparable<Key> {
+        private final int value;
+        private final CountDownLatch stalled;
+        private final CountDownLatch resume;
+
+        private Key(int value, CountDownLatch stalled, CountDownLatch resume) {
+            this.value = value;
+            this.stalled = stalled;
+            this.resume = resume;
+        }
+
+        @Override
+        public int compareTo(Key other) {
+            if (this.stalled != null && other.value < 4 && this.stalled.getCount() > 0) {
+                this.stalled.countDown();
+                try {
+                    this.resume.await();
+                }
+                catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            return Integer.compare(this.value, other.value);
+        }
+    }
+
+    /**
+     * Stops one insert deep down the left side of the tree, in the middle
+     * of a comparison, and checks that inserts and lookups on the right
+     * side still go through: an insert only latches the few nodes around
+     * where it is.
+     */
+    public boolean test5() {
+        var tree = new ConcurrentRedBlackTree<Key>();
+        for (int i = 0; i < 1024; i++) {
+            tree.insert(new Key(i, null, null));
+        }
+        var stalled = new CountDownLatch(1);
+        var resume = new CountDownLatch(1);
+        Thread slow = new Thread(() -> tree.insert(new Key(-1, stalled, resume)));
+        Thread fast = new Thread(() -> {
+            for (int i = 5000; i < 5010; i++) {
+                tree.insert(new Key(i, null, null));
+            }
+        });
+        // a stuck thread must not keep the tests from exiting
+        slow.setDaemon(true);
+        fast.setDaemon(true);
+        boolean overtaken;
+        try {
+            slow.start();
+            stalled.await();
+            fast.start();
+            fast.join(10000);
+            overtaken = !fast.isAlive() && tree.contains(new Key(5009, null, null))
+                    && !tree.contains(new Key(4999, null, null));
+            resume.countDown();
+            slow.join(10000);
+            if (slow.isAlive()) {
+                return false;
+            }
+        }
+        catch (InterruptedException e) {
+            return false;
+        }
+        tree.validate();
+        return overtaken && tree.size() == 1035 && tree.select(0).value == -1 && tree.select(1034).value == 5009;
+    }
+
+    /**
+     * Inserts and removes from several threads while others look values
+     * up and iterate, so latched inserts keep taking turns with removals
+     * and reads that take the lock, then checks every value and size.
+     */
+    public boolean test6() {
+        var tree = new ConcurrentRedBlackTree<Integer>();
+        int writers = 4;
+        int perWriter = 20000;
+        var failed = new AtomicBoolean(false);
+        var done = new AtomicInteger(0);
+        List<Thread> threads = new ArrayList<>();
+        for (int w = 0; w < writers; w++) {
+            int writer = w;
+            threads.add(new Thread(() -> {
+                for (int i = 0; i < perWriter; i++) {
+                    tree.insert(i * writers + writer);
+                    // takes back every fourth value inserted, two inserts later
+                    if (i % 4 == 3 && !tree.remove((i - 2) * writers + writer)) {
+                        failed.set(true);
+                    }
+                }
+                done.incrementAndGet();
+            }));
+        }
+        for (int r = 0; r < 2; r++) {
+            threads.add(new Thread(() -> {
+                while (done.get() < writers) {
+                    int previous = Integer.MIN_VALUE;
+                    for (int value : tree) {
+                        if (value <= previous) {
+                            failed.set(true);
+                        }
+                        previous = value;
+                    }
+                    if (tree.contains(-1) || tree.rank(perWriter * writers) > tree.size()) {
+                        failed.set(true);
+                    }
+                }
+            }));
+        }
+        threads.forEach(Thread::start);
+        for (Thread thread : threads) {
+            try {
+                thread.join();
+            }
+            catch (InterruptedException e) {
+                return false;
+            }
+        }
+        tree.validate();
+        for (int i = 0; i < perWriter; i++) {
+            for (int w = 0; w < writers; w++) {
+                if (tree.contains(i * writers + w) != (i % 4 != 1)) {
+                    return false;
+                }
+            }
+        }
+        return !failed.get() && tree.size() == writers * perWriter / 4 * 3;
+    }
+
+    public void main() {
+        System.out.println("Test 1 results: " + test1());
+        System.out.println("Test 2 results: " + test2());
+        System.out.println("Test 3 results: " + test3());
+        System.out.println("Test 4 results: " + test4());
+        System.out.println("Test 5 results: " + test5());
+        System.out.println("Test 6 results: " + test6());
+    }
+}
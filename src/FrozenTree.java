@@ -0,0 +1,339 @@
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Objects;
+
+/**
+ * An immutable SortedCollection that stores its values in a single array,
+ * in the implicit binary search tree layout also known as the Eytzinger
+ * or BFS layout: the root is at index 1, and the children of index k are
+ * at 2k and 2k + 1. A search follows indexes instead of node references,
+ * so it never touches anything but the array and the values themselves,
+ * and the top levels of the tree, which every search visits, share a few
+ * cache lines at the front of the array.
+ *
+ * A search does not stop when it finds an equal value. It runs down to a
+ * leaf, choosing each child with k = 2k + (go right ? 1 : 0), which the
+ * JIT compiles without a branch to mispredict, and then reads the answer
+ * off the bits of k: every 1 bit is a step to the right. When the values
+ * are all Integers or all Longs in their natural order, the search
+ * compares a parallel long[] of the keys and never dereferences a value.
+ *
+ * Created by BinarySearchTree.freeze(). insert and clear throw
+ * UnsupportedOperationException.
+ */
+public class FrozenTree<T extends Comparable<T>> implements SortedCollection<T>, Iterable<T> {
+
+    // 2k + 1 must not overflow for any index k <= size
+    private static final int MAX_SIZE = (1 << 30) - 1;
+
+    // values[k] for k in 1 .. size, values[0] is unused
+    private final T[] values;
+    private final int size;
+    private final Comparator<? super T> comparator;
+    // keys[k] is values[k] as a long when keyClass is Integer or Long, else null
+    private final long[] keys;
+    private final Class<?> keyClass;
+
+    /**
+     * Builds a frozen tree of n values taken from an iterator that produces
+     * them in ascending order.
+     * @param sorted the values in ascending order of comparator
+     * @param n the number of values to take from sorted
+     * @param comparator the order of the values, or null for their natural order
+     * @throws IllegalArgumentException if n is negative or too large, or
+     *     sorted has fewer than n values
+     */
+    @SuppressWarnings("unchecked")
+    public FrozenTree(Iterator<? extends T> sorted, int n, Comparator<? super T> comparator)
+            throws IllegalArgumentException {
+        if (n < 0 || n > MAX_SIZE) {
+            throw new IllegalArgumentException("cannot freeze " + n + " values");
+        }
+        this.values = (T[]) new Comparable<?>[n + 1];
+        this.size = n;
+        this.comparator = comparator;
+        fill(sorted, 1);
+        this.keyClass = comparator == null ? primitiveClass() : null;
+        if (this.keyClass != null) {
+            this.keys = new long[n + 1];
+            for (int k = 1; k <= n; k++) {
+                this.keys[k] = ((Number) this.values[k]).longValue();
+            }
+        }
+        else {
+            this.keys = null;
+        }
+    }
+
+    /**
+     * Fills the subtree rooted at index k in order: its left subtree, k,
+     * then its right subtree. Recurses as deep as the tree, about log2(n).
+     */
+    private void fill(Iterator<? extends T> sorted, int k) {
+        if (k > this.size) {
+            return;
+        }
+        fill(sorted, 2 * k);
+        if (!sorted.hasNext()) {
+            throw new IllegalArgumentException("fewer values than expected");
+        }
+        this.values[k] = sorted.next();
+        fill(sorted, 2 * k + 1);
+    }
+
+    /**
+     * @return Integer.class or Long.class if every value is one, else null
+     */
+    private Class<?> primitiveClass() {
+        if (this.size == 0) {
+            return null;
+        }
+        Class<?> type = this.values[1].getClass();
+        if (type != Integer.class && type != Long.class) {
+            return null;
+        }
+        for (int k = 2; k <= this.size; k++) {
+            if (this.values[k].getClass() != type) {
+                return null;
+            }
+        }
+        return type;
+    }
+
+    @SuppressWarnings("unchecked")
+    private int compare(Comparable<T> data, T stored) {
+        return this.comparator == null ? data.compareTo(stored) : this.comparator.compare((T) data, stored);
+    }
+
+    /**
+     * Runs a search from the root down past a leaf, going right past the
+     * values less than data, or also past those equal to it when inclusive.
+     * @return the index past the leaf, whose bits record the path
+     */
+    private int descend(Comparable<T> data, boolean inclusive) {
+        int n = this.size;
+        int k = 1;
+        if (this.keyClass != null && data.getClass() == this.keyClass) {
+            long[] keys = this.keys;
+            long key = ((Number) data).longValue();
+            if (inclusive) {
+                while (k <= n) {
+                    k = 2 * k + (keys[k] <= key ? 1 : 0);
+                }
+            }
+            else {
+                while (k <= n) {
+                    k = 2 * k + (keys[k] < key ? 1 : 0);
+                }
+            }
+        }
+        else {
+            T[] values = this.values;
+            // compare(data, value) reaches this when the search goes right
+            int right = inclusive ? 0 : 1;
+            while (k <= n) {
+                k = 2 * k + (compare(data, values[k]) >= right ? 1 : 0);
+            }
+        }
+        return k;
+    }
+
+    /**
+     * @return the last index the path to k went left from, or 0 if none:
+     *     strips the trailing steps to the right, then the step to the left
+     */
+    private static int lastLeft(int k) {
+        return k >>> (Integer.numberOfTrailingZeros(~k) + 1);
+    }
+
+    /**
+     * @return the last index the path to k went right from, or 0 if none
+     */
+    private static int lastRight(int k) {
+        return k >>> (Integer.numberOfTrailingZeros(k) + 1);
+    }
+
+    private T valueAt(int k) {
+        return k == 0 ? null : this.values[k];
+    }
+
+    /**
+     * @throws UnsupportedOperationException always, a frozen tree cannot change
+     */
+    @Override
+    public void insert(T data) throws UnsupportedOperationException {
+        throw new UnsupportedOperationException("insert");
+    }
+
+    @Override
+    public boolean contains(Comparable<T> data) {
+        int k = lastLeft(descend(data, false));
+        return k != 0 && compare(data, this.values[k]) == 0;
+    }
+
+    @Override
+    public T floor(Comparable<T> data) {
+        return valueAt(lastRight(descend(data, true)));
+    }
+
+    @Override
+    public T ceiling(Comparable<T> data) {
+        return valueAt(lastLeft(descend(data, false)));
+    }
+
+    @Override
+    public T lower(Comparable<T> data) {
+        return valueAt(lastRight(descend(data, false)));
+    }
+
+    @Override
+    public T higher(Comparable<T> data) {
+        return valueAt(lastLeft(descend(data, true)));
+    }
+
+    /**
+     * @return the index of the next value in order after index k, or 0
+     */
+    private int successor(int k) {
+        if (2 * k + 1 <= this.size) {
+            k = 2 * k + 1;
+            while (2 * k <= this.size) {
+                k = 2 * k;
+            }
+            return k;
+        }
+        return lastLeft(k);
+    }
+
+    @Override
+    public Iterator<T> range(Comparable<T> from, Comparable<T> to) {
+        int first;
+        if (from != null) {
+            first = lastLeft(descend(from, false));
+        }
+        else {
+            first = this.size == 0 ? 0 : Integer.highestOneBit(this.size);
+        }
+        return new Iterator<T>() {
+            private int next = first;
+
+            @Override
+            public boolean hasNext() {
+                return this.next != 0 && (to == null || compare(to, values[this.next]) > 0);
+            }
+
+            @Override
+            public T next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                T value = values[this.next];
+                this.next = successor(this.next);
+                return value;
+            }
+        };
+    }
+
+    @Override
+    public Iterator<T> iterator() {
+        return range(null, null);
+    }
+
+    @Override
+    public int size() {
+        return this.size;
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return this.size == 0;
+    }
+
+    /**
+     * @throws UnsupportedOperationException always, a frozen tree cannot change
+     */
+    @Override
+    public void clear() throws UnsupportedOperationException {
+        throw new UnsupportedOperationException("clear");
+    }
+
+    /**
+     * Checks every query against the red-black tree that was frozen,
+     * with duplicates, for Integers (which search the long[] keys) and for
+     * Strings (which search the values).
+     */
+    public boolean test1() {
+        var random = new java.util.Random(21);
+        for (int n : new int[] {0, 1, 2, 3, 7, 8, 100, 1000}) {
+            var ints = new RedBlackTree<Integer>();
+            var strings = new RedBlackTree<String>();
+            for (int i = 0; i < n; i++) {
+                int value = random.nextInt(2 * n + 1);
+                ints.insert(value);
+                strings.insert(Integer.toString(value));
+            }
+            FrozenTree<Integer> frozenInts = ints.freeze();
+            FrozenTree<String> frozenStrings = strings.freeze();
+            if (frozenInts.keys == null && n > 0 || frozenStrings.keys != null
+                    || frozenInts.size() != n || frozenStrings.size() != n) {
+                return false;
+            }
+            for (int query = -1; query <= 2 * n + 1; query++) {
+                String text = Integer.toString(query);
+                if (frozenInts.contains(query) != ints.contains(query)
+                        || !Objects.equals(frozenInts.floor(query), ints.floor(query))
+                        || !Objects.equals(frozenInts.ceiling(query), ints.ceiling(query))
+                        || !Objects.equals(frozenInts.lower(query), ints.lower(query))
+                        || !Objects.equals(frozenInts.higher(query), ints.higher(query))
+                        || frozenStrings.contains(text) != strings.contains(text)
+                        || !Objects.equals(frozenStrings.floor(text), strings.floor(text))
+                        || !Objects.equals(frozenStrings.higher(text), strings.higher(text))) {
+                    return false;
+                }
+            }
+            List<Integer> expected = new ArrayList<>();
+            ints.range(n / 4, n / 2).forEachRemaining(expected::add);
+            List<Integer> actual = new ArrayList<>();
+            frozenInts.range(n / 4, n / 2).forEachRemaining(actual::add);
+            List<Integer> all = new ArrayList<>();
+            frozenInts.forEach(all::add);
+            List<Integer> allExpected = new ArrayList<>();
+            ints.forEach(allExpected::add);
+            if (!actual.equals(expected) || !all.equals(allExpected)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * A tree with a comparator freezes in its order and searches the values,
+     * and a frozen tree cannot be changed.
+     */
+    public boolean test2() {
+        var tree = new RedBlackTree<Integer>(Comparator.reverseOrder());
+        for (int i = 0; i < 100; i++) {
+            tree.insert(i);
+        }
+        FrozenTree<Integer> frozen = tree.freeze();
+        boolean unchanged;
+        try {
+            frozen.insert(5);
+            unchanged = false;
+        }
+        catch (UnsupportedOperationException e) {
+            unchanged = true;
+        }
+        return unchanged && frozen.keys == null && frozen.iterator().next() == 99
+                && frozen.contains(42) && !frozen.contains(100) && frozen.floor(-5) == 0
+                && frozen.higher(50) == 49 && frozen.ceiling(200) == 99 && frozen.lower(99) == null;
+    }
+
+    public void main() {
+        System.out.println("Test 1 results: " + test1());
+        System.out.println("Test 2 results: " + test2());
+    }
+}
@@ -0,0 +1,572 @@
+import java.util.Arrays;
+import java.util.function.LongConsumer;
+
+/**
+ * A red-black tree of primitive long values that keeps its nodes in parallel
+ * arrays (struct-of-arrays) instead of BSTNode objects. A node is an index
+ * into those arrays: keys[i] is its value, left[i], right[i] and up[i] are
+ * the indexes of its relatives (or NIL), and black[i] is its color. That is
+ * 21 bytes per value with no object headers, no references for the garbage
+ * collector to trace and no boxing, against a boxed key plus an RBTNode for
+ * RedBlackTree<Long>.
+ *
+ * Slots of removed values are kept on a free list (chained through left[])
+ * and reused by later inserts, so the arrays only grow when the tree holds
+ * more values than it ever has before. The balancing follows RedBlackTree.
+ */
+public class LongRedBlackTree implements LongSortedCollection {
+
+    // the index used for a missing node, like null for BSTNode references
+    protected static final int NIL = -1;
+
+    protected long[] keys;
+    protected int[] left;
+    protected int[] right;
+    protected int[] up;
+    protected boolean[] black;
+
+    protected int root = NIL;
+    protected int size = 0;
+    // slots [0, allocated) have been handed out at some point
+    protected int allocated = 0;
+    // first slot on the free list, whose left[] links to the next one
+    protected int free = NIL;
+
+    /**
+     * Creates an empty tree with room for 16 values before growing.
+     */
+    public LongRedBlackTree() {
+        this(16);
+    }
+
+    /**
+     * Creates an empty tree.
+     * @param initialCapacity the number of values to make room for up front
+     */
+    public LongRedBlackTree(int initialCapacity) {
+        int capacity = Math.max(1, initialCapacity);
+        this.keys = new long[capacity];
+        this.left = new int[capacity];
+        this.right = new int[capacity];
+        this.up = new int[capacity];
+        this.black = new boolean[capacity];
+    }
+
+    /**
+     * Inserts a new value and then restores the red-black properties.
+     * @param data the new value being inserted
+     */
+    @Override
+    public void insert(long data) {
+        int node = allocate(data);
+        this.size++;
+        if (this.root == NIL) {
+            this.root = node;
+            this.black[node] = true;
+            return;
+        }
+        int parent = this.root;
+        while (true) {
+            if (data <= this.keys[parent]) { // values less than OR equal to go on the left
+                if (this.left[parent] == NIL) {
+                    this.left[parent] = node;
+                    break;
+                }
+                parent = this.left[parent];
+            }
+            else {
+                if (this.right[parent] == NIL) {
+                    this.right[parent] = node;
+                    break;
+                }
+                parent = this.right[parent];
+            }
+        }
+        this.up[node] = parent;
+        fixAfterInsert(node);
+    }
+
+    /**
+     * @return true if data is stored in the tree one or more times
+     */
+    @Override
+    public boolean contains(long data) {
+        return find(data) != NIL;
+    }
+
+    /**
+     * Removes one occurrence of data and then restores the red-black
+     * properties. The freed slot goes on the free list.
+     * @param data the value to remove
+     * @return true if a value was removed, false if data was not in the tree
+     */
+    @Override
+    public boolean remove(long data) {
+        int node = find(data);
+        if (node == NIL) {
+            return false;
+        }
+        removeNode(node);
+        release(node);
+        this.size--;
+        return true;
+    }
+
+    /**
+     * Passes the values to action in ascending order, walking the tree with
+     * up[] links instead of a stack.
+     */
+    @Override
+    public void forEach(LongConsumer action) {
+        for (int node = first(); node != NIL; node = successor(node)) {
+            action.accept(this.keys[node]);
+        }
+    }
+
+    /**
+     * @return the values in ascending order
+     */
+    public long[] toArray() {
+        long[] values = new long[this.size];
+        int i = 0;
+        for (int node = first(); node != NIL; node = successor(node)) {
+            values[i++] = this.keys[node];
+        }
+        return values;
+    }
+
+    @Override
+    public int size() {
+        return this.size;
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return this.size == 0;
+    }
+
+    /**
+     * Removes all values. The arrays are kept, so refilling the tree up to
+     * its previous size allocates nothing.
+     */
+    @Override
+    public void clear() {
+        this.root = NIL;
+        this.size = 0;
+        this.allocated = 0;
+        this.free = NIL;
+    }
+
+    /**
+     * @return the number of values the tree can hold before its arrays grow
+     */
+    public int capacity() {
+        return this.keys.length;
+    }
+
+    /**
+     * @return the index of a node holding data, or NIL
+     */
+    private int find(long data) {
+        int node = this.root;
+        while (node != NIL) {
+            long key = this.keys[node];
+            if (data == key) {
+                return node;
+            }
+            node = data < key ? this.left[node] : this.right[node];
+        }
+        return NIL;
+    }
+
+    /**
+     * Takes a slot from the free list, or the next unused one, growing the
+     * arrays by half when they are full, and initializes it as a red leaf.
+     */
+    private int allocate(long data) {
+        int node;
+        if (this.free != NIL) {
+            node = this.free;
+            this.free = this.left[node];
+        }
+        else {
+            if (this.allocated == this.keys.length) {
+                int capacity = this.keys.length + (this.keys.length >> 1) + 1;
+                this.keys = Arrays.copyOf(this.keys, capacity);
+                this.left = Arrays.copyOf(this.left, capacity);
+                this.right = Arrays.copyOf(this.right, capacity);
+                this.up = Arrays.copyOf(this.up, capacity);
+                this.black = Arrays.copyOf(this.black, capacity);
+            }
+            node = this.allocated++;
+        }
+        this.keys[node] = data;
+        this.left[node] = NIL;
+        this.right[node] = NIL;
+        this.up[node] = NIL;
+        this.black[node] = false;
+        return node;
+    }
+
+    private void release(int node) {
+        this.left[node] = this.free;
+        this.free = node;
+    }
+
+    private boolean isBlack(int node) {
+        return node == NIL || this.black[node];
+    }
+
+    private boolean isRightChild(int node) {
+        int parent = this.up[node];
+        return parent != NIL && this.right[parent] == node;
+    }
+
+    private int first() {
+        int node = this.root;
+        if (node == NIL) {
+            return NIL;
+        }
+        while (this.left[node] != NIL) {
+            node = this.left[node];
+        }
+        return node;
+    }
+
+    private int successor(int node) {
+        if (this.right[node] != NIL) {
+            node = this.right[node];
+            while (this.left[node] != NIL) {
+                node = this.left[node];
+            }
+            return node;
+        }
+        while (isRightChild(node)) {
+            node = this.up[node];
+        }
+        return this.up[node];
+    }
+
+    /**
+     * Rotates child above parent, like BSTRotation.rotate: a right rotation
+     * when child is the left child of parent, otherwise a left rotation.
+     */
+    private void rotate(int child, int parent) {
+        int grandparent = this.up[parent];
+        if (grandparent == NIL) {
+            this.root = child;
+        }
+        else if (this.left[grandparent] == parent) {
+            this.left[grandparent] = child;
+        }
+        else {
+            this.right[grandparent] = child;
+        }
+        this.up[child] = grandparent;
+        if (this.left[parent] == child) {
+            int moved = this.right[child];
+            this.left[parent] = moved;
+            if (moved != NIL) {
+                this.up[moved] = parent;
+            }
+            this.right[child] = parent;
+        }
+        else {
+            int moved = this.left[child];
+            this.right[parent] = moved;
+            if (moved != NIL) {
+                this.up[moved] = parent;
+            }
+            this.left[child] = parent;
+        }
+        this.up[parent] = child;
+    }
+
+    /**
+     * Resolves a red node with a red parent, see
+     * RedBlackTree.enforceRBTreePropertiesAfterInsert.
+     */
+    private void fixAfterInsert(int node) {
+        int parent = this.up[node];
+        while (parent != NIL && !this.black[parent]) {
+            int grandparent = this.up[parent];
+            int aunt = isRightChild(parent) ? this.left[grandparent] : this.right[grandparent];
+            if (!isBlack(aunt)) {
+                this.black[parent] = true;
+                this.black[aunt] = true;
+                this.black[grandparent] = false;
+                node = grandparent;
+                parent = this.up[node];
+            }
+            else {
+                if (isRightChild(node) != isRightChild(parent)) {
+                    rotate(node, parent);
+                    int temp = node;
+                    node = parent;
+                    parent = temp;
+                }
+                rotate(parent, grandparent);
+                this.black[parent] = true;
+                this.black[grandparent] = false;
+                break;
+            }
+        }
+        this.black[this.root] = true;
+    }
+
+    /**
+     * Unlinks node, splicing in its successor when it has two children, see
+     * RedBlackTree.removeNode.
+     */
+    private void removeNode(int node) {
+        int replacement;
+        int replacementParent;
+        boolean removedBlack = this.black[node];
+        if (this.left[node] == NIL) {
+            replacement = this.right[node];
+            replacementParent = this.up[node];
+            transplant(node, replacement);
+        }
+        else if (this.right[node] == NIL) {
+            replacement = this.left[node];
+            replacementParent = this.up[node];
+            transplant(node, replacement);
+        }
+        else {
+            int successor = this.right[node];
+            while (this.left[successor] != NIL) {
+                successor = this.left[successor];
+            }
+            removedBlack = this.black[successor];
+            replacement = this.right[successor];
+            if (this.up[successor] == node) {
+                replacementParent = successor;
+            }
+            else {
+                replacementParent = this.up[successor];
+                transplant(successor, replacement);
+                this.right[successor] = this.right[node];
+                this.up[this.right[successor]] = successor;
+            }
+            transplant(node, successor);
+            this.left[successor] = this.left[node];
+            this.up[this.left[successor]] = successor;
+            this.black[successor] = this.black[node];
+        }
+        if (removedBlack) {
+            fixAfterRemove(replacement, replacementParent);
+        }
+    }
+
+    private void transplant(int node, int replacement) {
+        int parent = this.up[node];
+        if (parent == NIL) {
+            this.root = replacement;
+        }
+        else if (this.left[parent] == node) {
+            this.left[parent] = replacement;
+        }
+        else {
+            this.right[parent] = replacement;
+        }
+        if (replacement != NIL) {
+            this.up[replacement] = parent;
+        }
+    }
+
+    /**
+     * Resolves the missing black below parent after a black node was
+     * removed, see RedBlackTree.enforceRBTreePropertiesAfterRemove.
+     */
+    private void fixAfterRemove(int node, int parent) {
+        while (node != this.root && isBlack(node)) {
+            if (node == this.left[parent]) {
+                int sibling = this.right[parent];
+                if (!this.black[sibling]) {
+                    this.black[sibling] = true;
+                    this.black[parent] = false;
+                    rotate(sibling, parent);
+                    sibling = this.right[parent];
+                }
+                if (isBlack(this.left[sibling]) && isBlack(this.right[sibling])) {
+                    this.black[sibling] = false;
+                    node = parent;
+                    parent = this.up[node];
+                }
+                else {
+                    if (isBlack(this.right[sibling])) {
+                        this.black[this.left[sibling]] = true;
+                        this.black[sibling] = false;
+                        rotate(this.left[sibling], sibling);
+                        sibling = this.right[parent];
+                    }
+                    this.black[sibling] = this.black[parent];
+                    this.black[parent] = true;
+                    this.black[this.right[sibling]] = true;
+                    rotate(sibling, parent);
+                    node = this.root;
+                    parent = NIL;
+                }
+            }
+            else {
+                int sibling = this.left[parent];
+                if (!this.black[sibling]) {
+                    this.black[sibling] = true;
+                    this.black[parent] = false;
+                    rotate(sibling, parent);
+                    sibling = this.left[parent];
+                }
+                if (isBlack(this.left[sibling]) && isBlack(this.right[sibling])) {
+                    this.black[sibling] = false;
+                    node = parent;
+                    parent = this.up[node];
+                }
+                else {
+                    if (isBlack(this.left[sibling])) {
+                        this.black[this.right[sibling]] = true;
+                        this.black[sibling] = false;
+                        rotate(this.right[sibling], sibling);
+                        sibling = this.left[parent];
+                    }
+                    this.black[sibling] = this.black[parent];
+                    this.black[parent] = true;
+                    this.black[this.left[sibling]] = true;
+                    rotate(sibling, parent);
+                    node = this.root;
+                    parent = NIL;
+                }
+            }
+        }
+        if (node != NIL) {
+            this.black[node] = true;
+        }
+    }
+
+    /**
+     * Walks the whole tree and checks the ordering, the up[] links, the
+     * number of values, and every red-black property.
+     * @throws IllegalStateException describing the first violation found
+     */
+    public void validate() throws IllegalStateException {
+        if (this.root == NIL) {
+            if (this.size != 0) {
+                throw new IllegalStateException("empty tree with size " + this.size);
+            }
+            return;
+        }
+        if (this.up[this.root] != NIL || !this.black[this.root]) {
+            throw new IllegalStateException("root has a parent or is red");
+        }
+        int[] counted = new int[1];
+        validate(this.root, counted);
+        if (counted[0] != this.size) {
+            throw new IllegalStateException(counted[0] + " values reachable but size is " + this.size);
+        }
+    }
+
+    /**
+     * @return the black-height of the subtree rooted at node
+     */
+    private int validate(int node, int[] counted) {
+        if (node == NIL) {
+            return 1;
+        }
+        counted[0]++;
+        int l = this.left[node];
+        int r = this.right[node];
+        if ((l != NIL && (this.up[l] != node || this.keys[l] > this.keys[node]))
+                || (r != NIL && (this.up[r] != node || this.keys[r] < this.keys[node]))) {
+            throw new IllegalStateException("broken link or order below " + this.keys[node]);
+        }
+        if (!this.black[node] && (!isBlack(l) || !isBlack(r))) {
+            throw new IllegalStateException("red node " + this.keys[node] + " has a red child");
+        }
+        int leftHeight = validate(l, counted);
+        if (leftHeight != validate(r, counted)) {
+            throw new IllegalStateException("unequal black-heights below " + this.keys[node]);
+        }
+        return leftHeight + (this.black[node] ? 1 : 0);
+    }
+
+    /**
+     * Inserts ascending and descending runs, including negative values and
+     * duplicates, and checks the sorted order and the red-black properties.
+     */
+    public boolean test1() {
+        var tree = new LongRedBlackTree();
+        for (int i = 0; i < 5000; i++) {
+            tree.insert(i);
+            tree.insert(-i);
+        }
+        tree.validate();
+        if (tree.size() != 10000 || !tree.contains(0) || !tree.contains(-4999) || tree.contains(5000)) {
+            return false;
+        }
+        long[] values = tree.toArray();
+        for (int i = 1; i < values.length; i++) {
+            if (values[i - 1] > values[i]) {
+                return false;
+            }
+        }
+        // 0 was inserted twice
+        return values[4999] == 0 && values[5000] == 0 && values[0] == -4999;
+    }
+
+    /**
+     * Removes values in a scattered order, validating as it goes, and
+     * checks that reinserting reuses the freed slots instead of growing.
+     */
+    public boolean test2() {
+        var tree = new LongRedBlackTree(1000);
+        for (int i = 0; i < 1000; i++) {
+            tree.insert((i * 389) % 1000);
+        }
+        for (int i = 0; i < 1000; i += 2) {
+            if (!tree.remove((i * 7) % 1000)) {
+                return false;
+            }
+            if (i % 100 == 0) {
+                tree.validate();
+            }
+        }
+        tree.validate();
+        if (tree.size() != 500 || tree.contains(14) || !tree.contains(7) || tree.remove(14)) {
+            return false;
+        }
+        for (int i = 0; i < 500; i++) {
+            tree.insert(2000 + i);
+        }
+        tree.validate();
+        return tree.size() == 1000 && tree.capacity() == 1000;
+    }
+
+    /**
+     * Empties a tree with clear and with removes, then reuses it.
+     */
+    public boolean test3() {
+        var tree = new LongRedBlackTree();
+        for (int i = 0; i < 100; i++) {
+            tree.insert(i % 10);
+        }
+        tree.clear();
+        if (!tree.isEmpty() || tree.contains(5)) {
+            return false;
+        }
+        tree.insert(Long.MAX_VALUE);
+        tree.insert(Long.MIN_VALUE);
+        if (!tree.remove(Long.MAX_VALUE) || !tree.remove(Long.MIN_VALUE) || !tree.isEmpty()) {
+            return false;
+        }
+        tree.insert(3);
+        tree.validate();
+        long[] sum = new long[1];
+        tree.forEach(value -> sum[0] += value);
+        return tree.size() == 1 && sum[0] == 3;
+    }
+
+    public void main() {
+        System.out.println("Test 1 results: " + test1());
+        System.out.println("Test 2 results: " + test2());
+        System.out.println("Test 3 results: " + test3());
+    }
+}
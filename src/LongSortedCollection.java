@@ -0,0 +1,55 @@
+import java.util.function.LongConsumer;
+
+/**
+ * This interface defines an ADT for data structures that store a collection
+ * of primitive long values in ascending order, without boxing them.
+ */
+public interface LongSortedCollection {
+
+    /**
+     * Inserts a new value into the sorted collection.
+     * @param data the new value being inserted
+     */
+    public void insert(long data);
+
+    /**
+     * Check whether data is stored in the collection.
+     * @param data the value to check for in the collection
+     * @return true if the collection contains data one or more times,
+     * and false otherwise
+     */
+    public boolean contains(long data);
+
+    /**
+     * Removes one occurrence of data from the collection.
+     * @param data the value to remove
+     * @return true if a value was removed, false if data was not there
+     */
+    public boolean remove(long data);
+
+    /**
+     * Passes every value in the collection to action in ascending order,
+     * each duplicate value being passed separately.
+     * @param action the consumer of the values
+     */
+    public void forEach(LongConsumer action);
+
+    /**
+     * Counts the number of values in the collection, with each duplicate value
+     * being counted separately within the value returned.
+     * @return the number of values in the collection, including duplicates
+     */
+    public int size();
+
+    /**
+     * Checks if the collection is empty.
+     * @return true if the collection contains 0 values, false otherwise
+     */
+    public boolean isEmpty();
+
+    /**
+     * Removes all values and duplicates from the collection.
+     */
+    public void clear();
+
+}
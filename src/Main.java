@@ -1,6 +1,29 @@
 public class Main {
     public static void main(String[] args) {
-        var bst = new BSTRotation<String>();
+        var bst = new BinarySearchTree<String>();
         bst.main();
+        var rotation = new BSTRotation<String>();
+        rotation.main();
+        var rbt = new RedBlackTree<String>();
+        rbt.main();
+        var concurrent = new ConcurrentRedBlackTree<String>();
+        concurrent.main();
+        var ints = new IntRedBlackTree();
+        ints.main();
+        var longs = new LongRedBlackTree();
+        longs.main();
+        MappedSortedCollection.main();
+        var bplus = new BPlusTree<String>();
+        bplus.main();
+        var persistent = new PersistentTree<String>();
+        persistent.main();
+        var splay = new SplayTree<String>();
+        splay.main();
+        var strings = new StringRedBlackTree();
+        strings.main();
+        var frozen = new RedBlackTree<String>().freeze();
+        frozen.main();
+        var treap = new Treap<String>();
+        treap.main();
     }
 }
\ No newline at end of file
@@ -0,0 +1,771 @@
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * A SortedCollection that lives in a file and is read through memory-mapped
+ * pages instead of being rebuilt on the heap. The file holds the values in
+ * ascending order, which is an implicit perfectly balanced tree: lookups
+ * binary search it directly in the mapped pages (the middle record is the
+ * root, and so on), and in-order scans read it front to back. Opening a file
+ * maps it and reads the header, whatever its size, so startup does not
+ * depend on the number of values.
+ *
+ * File layout (all numbers big-endian):
+ *   header, 64 bytes: magic "BST1", format version, log2 of the segment
+ *     size, generation, number of values (long), position of the offset
+ *     table (long), then zeros
+ *   records: for each value, its encoded length (int) and its encoded bytes;
+ *     a record never crosses a segment boundary, padding fills the gap
+ *   offset table: the position of each record (long), 8-byte aligned
+ * Files larger than 2 GB are mapped as several segments, since one
+ * MappedByteBuffer cannot address more.
+ *
+ * Values inserted after the file was written are appended to a write-ahead
+ * log next to it (the file name plus ".wal") and kept in an in-heap
+ * RedBlackTree, which every read merges with the mapped values. Opening the
+ * file replays the log, and compact() folds it into a new file.
+ *
+ * Like BinarySearchTree, this class is not safe for concurrent use.
+ */
+public class MappedSortedCollection<T extends Comparable<T>> implements SortedCollection<T>, Iterable<T>, Closeable {
+
+    /**
+     * Converts values to and from the bytes stored in the file.
+     */
+    public interface KeyCodec<T> {
+
+        /**
+         * @return the bytes that represent value
+         */
+        byte[] encode(T value);
+
+        /**
+         * Reads a value back from a mapped page, without moving its position.
+         * @param source the page holding the value
+         * @param position where the value's bytes start within source
+         * @param length the number of bytes the value takes
+         * @return the value
+         */
+        T decode(ByteBuffer source, int position, int length);
+
+        /**
+         * Compares key with a stored value. Codecs for fixed-width keys
+         * override this to compare in place without decoding anything.
+         * @return a negative number, zero, or a positive number as key is
+         *     less than, equal to, or greater than the stored value
+         */
+        default int compare(Comparable<T> key, ByteBuffer source, int position, int length) {
+            return key.compareTo(decode(source, position, length));
+        }
+
+        /**
+         * @return the fewest bytes a value can take, so shorter records in
+         *     the log are recognized as garbage
+         */
+        default int minLength() {
+            return 0;
+        }
+
+        KeyCodec<Integer> INTEGER = new KeyCodec<>() {
+            public byte[] encode(Integer value) {
+                return ByteBuffer.allocate(Integer.BYTES).putInt(value).array();
+            }
+
+            public Integer decode(ByteBuffer source, int position, int length) {
+                return source.getInt(position);
+            }
+
+            public int compare(Comparable<Integer> key, ByteBuffer source, int position, int length) {
+                if (key instanceof Integer) {
+                    return Integer.compare((Integer) key, source.getInt(position));
+                }
+                return KeyCodec.super.compare(key, source, position, length);
+            }
+
+            public int minLength() {
+                return Integer.BYTES;
+            }
+        };
+
+        KeyCodec<Long> LONG = new KeyCodec<>() {
+            public byte[] encode(Long value) {
+                return ByteBuffer.allocate(Long.BYTES).putLong(value).array();
+            }
+
+            public Long decode(ByteBuffer source, int position, int length) {
+                return source.getLong(position);
+            }
+
+            public int compare(Comparable<Long> key, ByteBuffer source, int position, int length) {
+                if (key instanceof Long) {
+                    return Long.compare((Long) key, source.getLong(position));
+                }
+                return KeyCodec.super.compare(key, source, position, length);
+            }
+
+            public int minLength() {
+                return Long.BYTES;
+            }
+        };
+
+        KeyCodec<String> STRING = new KeyCodec<>() {
+            public byte[] encode(String value) {
+                return value.getBytes(StandardCharsets.UTF_8);
+            }
+
+            public String decode(ByteBuffer source, int position, int length) {
+                byte[] bytes = new byte[length];
+                source.get(position, bytes);
+                return new String(bytes, StandardCharsets.UTF_8);
+            }
+        };
+    }
+
+    private static final int MAGIC = 0x42535431; // "BST1"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 64;
+    private static final int LOG_HEADER_SIZE = 8;
+    // 1 GB segments, so every position within a segment fits in an int
+    private static final int DEFAULT_SEGMENT_SHIFT = 30;
+
+    private final Path file;
+    private final Path logFile;
+    private final KeyCodec<T> codec;
+
+    // the mapped file, split into segments of 2^segmentShift bytes
+    private MappedByteBuffer[] segments;
+    private int segmentShift;
+    private int generation;
+    private long count;
+    private long offsetsPosition;
+
+    // values inserted since the file was written, also in the log
+    private final RedBlackTree<T> overlay = new RedBlackTree<>();
+    private FileChannel log;
+
+    private MappedSortedCollection(Path file, KeyCodec<T> codec) {
+        this.file = file;
+        this.logFile = file.resolveSibling(file.getFileName() + ".wal");
+        this.codec = codec;
+    }
+
+    /**
+     * Writes values to a new tree file, replacing any file that was there.
+     * @param file where to write the tree
+     * @param sorted the values in ascending order, a BinarySearchTree for example
+     * @param codec converts the values to bytes
+     * @return the number of values written
+     * @throws IllegalArgumentException if the values are not in ascending order
+     * @throws IOException if the file cannot be written
+     */
+    public static <T extends Comparable<T>> long write(Path file, Iterable<? extends T> sorted, KeyCodec<T> codec)
+            throws IOException {
+        return write(file, sorted.iterator(), codec, DEFAULT_SEGMENT_SHIFT, 0);
+    }
+
+    /**
+     * Writes the tree file. The record positions are collected in a
+     * temporary file while the records are written, so memory use does not
+     * grow with the number of values, and are appended as the offset table
+     * at the end. The header is filled in last.
+     */
+    static <T extends Comparable<T>> long write(Path file, Iterator<? extends T> sorted, KeyCodec<T> codec,
+            int segmentShift, int generation) throws IOException {
+        if (segmentShift < 6 || segmentShift > DEFAULT_SEGMENT_SHIFT) {
+            throw new IllegalArgumentException("segment shift out of range: " + segmentShift);
+        }
+        long segmentSize = 1L << segmentShift;
+        Path directory = file.toAbsolutePath().getParent();
+        Path offsetsFile = Files.createTempFile(directory, file.getFileName().toString(), ".offsets");
+        try {
+            long count = 0;
+            long offsetsPosition;
+            try (DataOutputStream data = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(file)));
+                    DataOutputStream offsets = new DataOutputStream(
+                            new BufferedOutputStream(Files.newOutputStream(offsetsFile)))) {
+                data.write(new byte[HEADER_SIZE]);
+                long position = HEADER_SIZE;
+                T previous = null;
+                while (sorted.hasNext()) {
+                    T value = sorted.next();
+                    if (value == null) {
+                        throw new NullPointerException();
+                    }
+                    if (previous != null && previous.compareTo(value) > 0) {
+                        throw new IllegalArgumentException(value + " comes after " + previous);
+                    }
+                    previous = value;
+                    byte[] bytes = codec.encode(value);
+                    long recordSize = Integer.BYTES + (long) bytes.length;
+                    if (recordSize > segmentSize) {
+                        throw new IllegalArgumentException("encoded value does not fit in a segment: " + value);
+                    }
+                    long room = segmentSize - (position & (segmentSize - 1));
+                    if (recordSize > room) {
+                        // pad to the next segment so the record is in one piece
+                        data.write(new byte[(int) room]);
+                        position += room;
+                    }
+                    offsets.writeLong(position);
+                    data.writeInt(bytes.length);
+                    data.write(bytes);
+                    position += recordSize;
+                    count++;
+                }
+                // 8-byte aligned entries never cross a segment boundary
+                int padding = (int) (-position & 7);
+                data.write(new byte[padding]);
+                offsetsPosition = position + padding;
+                offsets.flush();
+                Files.copy(offsetsFile, data);
+            }
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+                ByteBuffer header = ByteBuffer.allocate(32);
+                header.putInt(MAGIC).putInt(VERSION).putInt(segmentShift).putInt(generation);
+                header.putLong(count).putLong(offsetsPosition);
+                header.flip();
+                while (header.hasRemaining()) {
+                    channel.write(header, header.position());
+                }
+                channel.force(true);
+            }
+            return count;
+        }
+        finally {
+            Files.deleteIfExists(offsetsFile);
+        }
+    }
+
+    /**
+     * Opens a tree file that was written by write, maps it, and replays its
+     * write-ahead log, creating the log if there is none yet.
+     * @param file the tree file
+     * @param codec converts the values from bytes, must match the one used to write
+     * @return the opened collection
+     * @throws IOException if the file cannot be read or is not a tree file
+     */
+    public static <T extends Comparable<T>> MappedSortedCollection<T> open(Path file, KeyCodec<T> codec)
+            throws IOException {
+        MappedSortedCollection<T> collection = new MappedSortedCollection<>(file, codec);
+        collection.map();
+        collection.openLog();
+        return collection;
+    }
+
+    private void map() throws IOException {
+        try (FileChannel channel = FileChannel.open(this.file, StandardOpenOption.READ)) {
+            long fileSize = channel.size();
+            ByteBuffer header = ByteBuffer.allocate(32);
+            while (header.hasRemaining() && channel.read(header, header.position()) > 0) {
+                // keep reading until the header is complete or the file ends
+            }
+            header.flip();
+            if (fileSize < HEADER_SIZE || header.getInt() != MAGIC) {
+                throw new IOException(this.file + " is not a tree file");
+            }
+            if (header.getInt() != VERSION) {
+                throw new IOException(this.file + " has an unsupported format version");
+            }
+            this.segmentShift = header.getInt();
+            this.generation = header.getInt();
+            this.count = header.getLong();
+            this.offsetsPosition = header.getLong();
+            long segmentSize = 1L << this.segmentShift;
+            int segmentCount = (int) ((fileSize + segmentSize - 1) >>> this.segmentShift);
+            this.segments = new MappedByteBuffer[segmentCount];
+            for (int i = 0; i < segmentCount; i++) {
+                long start = i * segmentSize;
+                this.segments[i] = channel.map(FileChannel.MapMode.READ_ONLY, start,
+                        Math.min(segmentSize, fileSize - start));
+            }
+        }
+    }
+
+    /**
+     * Opens the log and inserts every complete record from it into the
+     * overlay. A log written for an older generation of the file was
+     * already folded into it by compact, and a record cut short by a crash
+     * was never acknowledged, so both are discarded. So is everything from
+     * the first record that cannot be one (a length that is negative, too
+     * short for the codec or runs past the end of the log, or bytes the
+     * codec cannot decode): the file system may leave zeros or garbage
+     * after the last write that reached the disk.
+     */
+    private void openLog() throws IOException {
+        this.log = FileChannel.open(this.logFile, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        long size = this.log.size();
+        long valid = 0;
+        if (size >= LOG_HEADER_SIZE) {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(this.log)));
+            if (in.readInt() == MAGIC && in.readInt() == this.generation) {
+                valid = LOG_HEADER_SIZE;
+                while (size - valid >= Integer.BYTES) {
+                    int length = in.readInt();
+                    if (length < this.codec.minLength() || length > size - valid - Integer.BYTES) {
+                        break;
+                    }
+                    byte[] bytes = new byte[length];
+                    in.readFully(bytes);
+                    T value = decodeLogged(bytes);
+                    if (value == null) {
+                        break;
+                    }
+                    this.overlay.insert(value);
+                    valid += Integer.BYTES + length;
+                }
+            }
+        }
+        if (valid == 0) {
+            resetLog();
+        }
+        else {
+            this.log.truncate(valid);
+            this.log.position(valid);
+        }
+    }
+
+    /**
+     * @return the value a log record holds, or null if the codec rejects
+     *     its bytes
+     */
+    private T decodeLogged(byte[] bytes) {
+        try {
+            return this.codec.decode(ByteBuffer.wrap(bytes), 0, bytes.length);
+        }
+        catch (RuntimeException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Empties the log and starts it over for the current generation.
+     */
+    private void resetLog() throws IOException {
+        this.log.truncate(0);
+        ByteBuffer header = ByteBuffer.allocate(LOG_HEADER_SIZE).putInt(MAGIC).putInt(this.generation);
+        header.flip();
+        this.log.position(0);
+        while (header.hasRemaining()) {
+            this.log.write(header);
+        }
+        this.log.force(true);
+    }
+
+    /**
+     * Appends data to the write-ahead log and adds it to the in-heap
+     * overlay. The log is written through the operating system's page
+     * cache, call sync to force it to disk.
+     * @param data the new value being inserted
+     * @throws NullPointerException if data is null
+     * @throws UncheckedIOException if the log cannot be written
+     */
+    @Override
+    public void insert(T data) throws NullPointerException {
+        if (data == null) {
+            throw new NullPointerException();
+        }
+        byte[] bytes = this.codec.encode(data);
+        ByteBuffer record = ByteBuffer.allocate(Integer.BYTES + bytes.length).putInt(bytes.length).put(bytes);
+        record.flip();
+        try {
+            while (record.hasRemaining()) {
+                this.log.write(record);
+            }
+        }
+        catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        this.overlay.insert(data);
+    }
+
+    /**
+     * Forces every logged insert to disk.
+     * @throws IOException if the log cannot be written
+     */
+    public void sync() throws IOException {
+        this.log.force(false);
+    }
+
+    /**
+     * Rewrites the tree file with the logged values merged in, and empties
+     * the log. The new file is written next to the old one and moved over
+     * it, and it carries the next generation number, so a crash at any
+     * point leaves either the old file and its log or the new file.
+     * @throws IOException if the new file cannot be written
+     */
+    public void compact() throws IOException {
+        rewrite(iterator());
+    }
+
+    private void rewrite(Iterator<T> values) throws IOException {
+        Path compacted = this.file.resolveSibling(this.file.getFileName() + ".compact");
+        write(compacted, values, this.codec, this.segmentShift, this.generation + 1);
+        Files.move(compacted, this.file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        this.overlay.clear();
+        map();
+        resetLog();
+    }
+
+    /**
+     * Removes all values by rewriting the tree file empty.
+     * @throws UncheckedIOException if the file cannot be rewritten
+     */
+    @Override
+    public void clear() {
+        try {
+            rewrite(Collections.emptyIterator());
+        }
+        catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Closes the log. The mapped pages are released once this collection
+     * is garbage collected.
+     */
+    @Override
+    public void close() throws IOException {
+        this.log.close();
+    }
+
+    private ByteBuffer segment(long position) {
+        return this.segments[(int) (position >>> this.segmentShift)];
+    }
+
+    private int local(long position) {
+        return (int) (position & ((1L << this.segmentShift) - 1));
+    }
+
+    private long recordPosition(long index) {
+        long entry = this.offsetsPosition + index * Long.BYTES;
+        return segment(entry).getLong(local(entry));
+    }
+
+    /**
+     * Compares key with the index-th stored value, in the mapped page.
+     */
+    private int compareAt(Comparable<T> key, long index) {
+        long position = recordPosition(index);
+        ByteBuffer page = segment(position);
+        int local = local(position);
+        return this.codec.compare(key, page, local + Integer.BYTES, page.getInt(local));
+    }
+
+    private T valueAt(long index) {
+        long position = recordPosition(index);
+        ByteBuffer page = segment(position);
+        int local = local(position);
+        return this.codec.decode(page, local + Integer.BYTES, page.getInt(local));
+    }
+
+    /**
+     * Binary searches the mapped values.
+     * @return the index of the first stored value that is >= key (or, when
+     *     not inclusive, > key), or count when there is none
+     */
+    private long search(Comparable<T> key, boolean inclusive) {
+        long low = 0;
+        long high = this.count;
+        while (low < high) {
+            long middle = (low + high) >>> 1;
+            int comparison = compareAt(key, middle);
+            if (comparison > 0 || (comparison == 0 && !inclusive)) {
+                low = middle + 1;
+            }
+            else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    @Override
+    public boolean contains(Comparable<T> data) {
+        long index = search(data, true);
+        return (index < this.count && compareAt(data, index) == 0) || this.overlay.contains(data);
+    }
+
+    @Override
+    public T floor(Comparable<T> data) {
+        long index = search(data, false) - 1;
+        return max(index >= 0 ? valueAt(index) : null, this.overlay.floor(data));
+    }
+
+    @Override
+    public T ceiling(Comparable<T> data) {
+        long index = search(data, true);
+        return min(index < this.count ? valueAt(index) : null, this.overlay.ceiling(data));
+    }
+
+    @Override
+    public T lower(Comparable<T> data) {
+        long index = search(data, true) - 1;
+        return max(index >= 0 ? valueAt(index) : null, this.overlay.lower(data));
+    }
+
+    @Override
+    public T higher(Comparable<T> data) {
+        long index = search(data, false);
+        return min(index < this.count ? valueAt(index) : null, this.overlay.higher(data));
+    }
+
+    private T max(T a, T b) {
+        return a == null ? b : b == null || a.compareTo(b) >= 0 ? a : b;
+    }
+
+    private T min(T a, T b) {
+        return a == null ? b : b == null || a.compareTo(b) <= 0 ? a : b;
+    }
+
+    /**
+     * Scans [from, to) by reading the mapped records between the two bounds
+     * in file order, merged with the logged values in that range.
+     */
+    @Override
+    public Iterator<T> range(Comparable<T> from, Comparable<T> to) {
+        long start = from == null ? 0 : search(from, true);
+        long end = to == null ? this.count : search(to, true);
+        Iterator<T> mapped = new Iterator<T>() {
+            private long index = start;
+
+            @Override
+            public boolean hasNext() {
+                return this.index < end;
+            }
+
+            @Override
+            public T next() {
+                if (this.index >= end) {
+                    throw new NoSuchElementException();
+                }
+                return valueAt(this.index++);
+            }
+        };
+        return new MergingIterator<>(mapped, this.overlay.range(from, to));
+    }
+
+    /**
+     * @return an iterator over every value in ascending order
+     */
+    @Override
+    public Iterator<T> iterator() {
+        return range(null, null);
+    }
+
+    /**
+     * @return the number of values in the file and the log together
+     * @throws ArithmeticException if that does not fit in an int
+     */
+    @Override
+    public int size() {
+        return Math.toIntExact(this.count + this.overlay.size());
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return this.count == 0 && this.overlay.isEmpty();
+    }
+
+    /**
+     * Deletes a tree file and its log.
+     */
+    private static void delete(Path file) throws IOException {
+        Files.deleteIfExists(file);
+        Files.deleteIfExists(file.resolveSibling(file.getFileName() + ".wal"));
+    }
+
+    /**
+     * Writes 100000 values with 4 KB segments, so records are padded at
+     * many segment boundaries, and checks lookups between and at stored
+     * values, the neighbour queries and a range scan.
+     */
+    public static boolean test1() {
+        try {
+            Path file = Files.createTempFile("mapped", ".tree");
+            try {
+                var tree = new RedBlackTree<Integer>();
+                for (int i = 0; i < 100000; i++) {
+                    tree.insert(2 * i);
+                }
+                write(file, tree.iterator(), KeyCodec.INTEGER, 12, 0);
+                try (var mapped = open(file, KeyCodec.INTEGER)) {
+                    if (mapped.size() != 100000 || !mapped.contains(0) || !mapped.contains(199998)
+                            || mapped.contains(7) || mapped.contains(-2) || mapped.contains(200000)) {
+                        return false;
+                    }
+                    if (mapped.floor(7) != 6 || mapped.ceiling(7) != 8 || mapped.lower(6) != 4
+                            || mapped.higher(6) != 8 || mapped.floor(-1) != null || mapped.higher(199998) != null) {
+                        return false;
+                    }
+                    int scanned = 0;
+                    for (Iterator<Integer> range = mapped.range(1000, 2000); range.hasNext(); range.next()) {
+                        scanned++;
+                    }
+                    return scanned == 500;
+                }
+            }
+            finally {
+                delete(file);
+            }
+        }
+        catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Inserts through the write-ahead log, reopens the file to replay it,
+     * then compacts the log into the file and reopens again.
+     */
+    public static boolean test2() {
+        try {
+            Path file = Files.createTempFile("mapped", ".tree");
+            try {
+                write(file, java.util.List.of(10, 20, 30), KeyCodec.INTEGER);
+                try (var mapped = open(file, KeyCodec.INTEGER)) {
+                    mapped.insert(15);
+                    mapped.insert(40);
+                    mapped.insert(20);
+                    mapped.sync();
+                }
+                try (var mapped = open(file, KeyCodec.INTEGER)) {
+                    StringBuilder values = new StringBuilder();
+                    mapped.forEach(value -> values.append(value).append(' '));
+                    if (!values.toString().equals("10 15 20 20 30 40 ") || mapped.ceiling(16) != 20) {
+                        return false;
+                    }
+                    mapped.compact();
+                    mapped.insert(5);
+                }
+                try (var mapped = open(file, KeyCodec.INTEGER)) {
+                    // 6 values in the file, and only 5 in the new log
+                    return mapped.size() == 7 && mapped.contains(5) && mapped.contains(40)
+                            && Files.size(file.resolveSibling(file.getFileName() + ".wal"))
+                            == LOG_HEADER_SIZE + Integer.BYTES + Integer.BYTES;
+                }
+            }
+            finally {
+                delete(file);
+            }
+        }
+        catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Stores variable-length strings, rejects values out of order, and
+     * clears the file.
+     */
+    public static boolean test3() {
+        try {
+            Path file = Files.createTempFile("mapped", ".tree");
+            try {
+                var words = new RedBlackTree<String>();
+                for (int i = 0; i < 2000; i++) {
+                    words.insert("https://example.com/" + "x".repeat(i % 50) + i);
+                }
+                write(file, words.iterator(), KeyCodec.STRING, 10, 0);
+                try (var mapped = open(file, KeyCodec.STRING)) {
+                    if (mapped.size() != 2000 || !mapped.contains("https://example.com/" + "x".repeat(7) + 1957)
+                            || mapped.contains("https://example.com/")) {
+                        return false;
+                    }
+                    mapped.clear();
+                    if (!mapped.isEmpty() || mapped.iterator().hasNext()) {
+                        return false;
+                    }
+                }
+                try {
+                    write(file, java.util.List.of("b", "a"), KeyCodec.STRING);
+                    return false;
+                }
+                catch (IllegalArgumentException e) {
+                    return true;
+                }
+            }
+            finally {
+                delete(file);
+            }
+        }
+        catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Appends garbage after the last logged record (zeros, a negative
+     * length, a length that runs past the end) and reopens: the records
+     * before it are replayed, the garbage is cut off, and new inserts go
+     * where it was.
+     */
+    public static boolean test4() {
+        byte[][] tails = {
+            new byte[4],
+            new byte[8],
+            { (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xF0 },
+            { 0, 0, 0, 4, 1, 2 },
+            { 0, 0 }
+        };
+        try {
+            Path file = Files.createTempFile("mapped", ".tree");
+            Path logFile = file.resolveSibling(file.getFileName() + ".wal");
+            try {
+                for (byte[] tail : tails) {
+                    write(file, java.util.List.of(10, 20), KeyCodec.INTEGER);
+                    try (var mapped = open(file, KeyCodec.INTEGER)) {
+                        mapped.insert(15);
+                        mapped.insert(25);
+                    }
+                    long good = Files.size(logFile);
+                    Files.write(logFile, tail, StandardOpenOption.APPEND);
+                    try (var mapped = open(file, KeyCodec.INTEGER)) {
+                        if (mapped.size() != 4 || !mapped.contains(25) || Files.size(logFile) != good) {
+                            return false;
+                        }
+                        mapped.insert(30);
+                    }
+                    try (var mapped = open(file, KeyCodec.INTEGER)) {
+                        if (mapped.size() != 5 || !mapped.contains(30)) {
+                            return false;
+                        }
+                    }
+                    delete(file);
+                }
+                return true;
+            }
+            finally {
+                delete(file);
+            }
+        }
+        catch (IOException e) {
+            return false;
+        }
+    }
+
+    public static void main() {
+        System.out.println("Test 1 results: " + test1());
+        System.out.println("Test 2 results: " + test2());
+        System.out.println("Test 3 results: " + test3());
+        System.out.println("Test 4 results: " + test4());
+    }
+}
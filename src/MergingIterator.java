@@ -0,0 +1,60 @@
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Merges two iterators that each produce values in ascending order into one
+ * iterator that produces all of their values in ascending order. When both
+ * have equal values, the ones from the first iterator come first. The
+ * iterators may instead be ordered by a comparator.
+ */
+public class MergingIterator<T extends Comparable<T>> implements Iterator<T> {
+
+    private final Iterator<? extends T> first;
+    private final Iterator<? extends T> second;
+    // the next value of each iterator, or null once it is used up
+    private T nextFirst;
+    private T nextSecond;
+    // the order of both iterators, or null for the natural order
+    private final Comparator<? super T> comparator;
+
+    public MergingIterator(Iterator<? extends T> first, Iterator<? extends T> second) {
+        this(first, second, null);
+    }
+
+    public MergingIterator(Iterator<? extends T> first, Iterator<? extends T> second,
+            Comparator<? super T> comparator) {
+        this.comparator = comparator;
+        this.first = first;
+        this.second = second;
+        this.nextFirst = first.hasNext() ? first.next() : null;
+        this.nextSecond = second.hasNext() ? second.next() : null;
+    }
+
+    @Override
+    public boolean hasNext() {
+        return this.nextFirst != null || this.nextSecond != null;
+    }
+
+    @Override
+    public T next() {
+        T next;
+        if (this.nextFirst != null
+                && (this.nextSecond == null || compare(this.nextFirst, this.nextSecond) <= 0)) {
+            next = this.nextFirst;
+            this.nextFirst = this.first.hasNext() ? this.first.next() : null;
+        }
+        else if (this.nextSecond != null) {
+            next = this.nextSecond;
+            this.nextSecond = this.second.hasNext() ? this.second.next() : null;
+        }
+        else {
+            throw new NoSuchElementException();
+        }
+        return next;
+    }
+
+    private int compare(T a, T b) {
+        return this.comparator == null ? a.compareTo(b) : this.comparator.compare(a, b);
+    }
+}
@@ -0,0 +1,485 @@
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * A red-black tree made of immutable nodes. Adding a value never changes
+ * an existing node: plus() copies only the nodes on the path from the root
+ * to the new value (rebalancing as it goes, after Okasaki, "Red-Black
+ * Trees in a Functional Setting") and returns a new version that shares
+ * every other node with the old one. So a version costs O(log n) new
+ * nodes, and every version stays valid and unchanged for as long as it is
+ * referenced.
+ *
+ * The nodes have no parent references, since a shared node has a
+ * different parent in every version that contains it; iteration keeps its
+ * own stack of the path instead.
+ *
+ * A PersistentTree is a handle on the latest version. insert() moves the
+ * handle to the next version with a compare-and-set, so it is safe to
+ * call from several threads, and snapshot() returns a handle on the
+ * current version in O(1). Readers can scan a snapshot at their own pace
+ * while writers keep inserting into the original handle, without locks,
+ * copies, or ConcurrentModificationExceptions.
+ */
+public class PersistentTree<T extends Comparable<T>> implements SortedCollection<T>, Iterable<T> {
+
+    /**
+     * An immutable red-black tree node that knows the size of its subtree.
+     */
+    private static final class Node<T> {
+        private final T data;
+        private final Node<T> left;
+        private final Node<T> right;
+        private final boolean black;
+        private final int size;
+
+        private Node(boolean black, Node<T> left, T data, Node<T> right) {
+            this.data = data;
+            this.left = left;
+            this.right = right;
+            this.black = black;
+            this.size = 1 + sizeOf(left) + sizeOf(right);
+        }
+
+        private static int sizeOf(Node<?> node) {
+            return node == null ? 0 : node.size;
+        }
+
+        private static boolean isRed(Node<?> node) {
+            return node != null && !node.black;
+        }
+    }
+
+    private final AtomicReference<Node<T>> root;
+
+    /**
+     * Creates an empty tree.
+     */
+    public PersistentTree() {
+        this(null);
+    }
+
+    private PersistentTree(Node<T> root) {
+        this.root = new AtomicReference<>(root);
+    }
+
+    /**
+     * Returns a new version of this tree with data added. This tree is not
+     * changed.
+     * @param data the new value
+     * @return the new version
+     * @throws NullPointerException if data is null
+     */
+    public PersistentTree<T> plus(T data) throws NullPointerException {
+        if (data == null) {
+            throw new NullPointerException();
+        }
+        return new PersistentTree<>(plus(this.root.get(), data));
+    }
+
+    /**
+     * @return the root of a version of the tree rooted at root with data added
+     */
+    private static <T extends Comparable<T>> Node<T> plus(Node<T> root, T data) {
+        Node<T> inserted = insert(root, data);
+        // a red root is always safe to blacken
+        return inserted.black ? inserted : new Node<>(true, inserted.left, inserted.data, inserted.right);
+    }
+
+    /**
+     * Copies the path from node down to where data belongs and hangs a new
+     * red node there. Equal values go to the left, like in BinarySearchTree.
+     * The recursion is as deep as the tree, which is O(log n).
+     */
+    private static <T extends Comparable<T>> Node<T> insert(Node<T> node, T data) {
+        if (node == null) {
+            return new Node<>(false, null, data, null);
+        }
+        if (data.compareTo(node.data) <= 0) {
+            return balance(node.black, insert(node.left, data), node.data, node.right);
+        }
+        return balance(node.black, node.left, node.data, insert(node.right, data));
+    }
+
+    /**
+     * Builds a node from its parts, fixing a red child with a red child of
+     * its own below a black node. The four shapes that can arise all become
+     * the same one: a red node with two black children.
+     */
+    private static <T> Node<T> balance(boolean black, Node<T> left, T data, Node<T> right) {
+        if (black) {
+            if (Node.isRed(left) && Node.isRed(left.left)) {
+                return red(left.left.left, left.left.data, left.left.right, left.data, left.right, data, right);
+            }
+            if (Node.isRed(left) && Node.isRed(left.right)) {
+                return red(left.left, left.data, left.right.left, left.right.data, left.right.right, data, right);
+            }
+            if (Node.isRed(right) && Node.isRed(right.left)) {
+                return red(left, data, right.left.left, right.left.data, right.left.right, right.data, right.right);
+            }
+            if (Node.isRed(right) && Node.isRed(right.right)) {
+                return red(left, data, right.left, right.data, right.right.left, right.right.data, right.right.right);
+            }
+        }
+        return new Node<>(black, left, data, right);
+    }
+
+    /**
+     * @return a red node holding y with black children holding x and z,
+     *     over the subtrees a, b, c and d in order
+     */
+    private static <T> Node<T> red(Node<T> a, T x, Node<T> b, T y, Node<T> c, T z, Node<T> d) {
+        return new Node<>(false, new Node<>(true, a, x, b), y, new Node<>(true, c, z, d));
+    }
+
+    /**
+     * Adds data to this tree by moving it to the version plus(data). Safe
+     * to call from several threads: a writer that loses the race retries on
+     * top of the winner's version.
+     * @param data the new value being inserted
+     * @throws NullPointerException if data is null
+     */
+    @Override
+    public void insert(T data) throws NullPointerException {
+        if (data == null) {
+            throw new NullPointerException();
+        }
+        Node<T> current;
+        Node<T> next;
+        do {
+            current = this.root.get();
+            next = plus(current, data);
+        } while (!this.root.compareAndSet(current, next));
+    }
+
+    /**
+     * @return a tree holding the current version of this one, which later
+     *     inserts into either tree do not affect
+     */
+    public PersistentTree<T> snapshot() {
+        return new PersistentTree<>(this.root.get());
+    }
+
+    @Override
+    public boolean contains(Comparable<T> data) {
+        Node<T> node = this.root.get();
+        while (node != null) {
+            int comparison = data.compareTo(node.data);
+            if (comparison == 0) {
+                return true;
+            }
+            node = comparison < 0 ? node.left : node.right;
+        }
+        return false;
+    }
+
+    @Override
+    public T floor(Comparable<T> data) {
+        T found = null;
+        for (Node<T> node = this.root.get(); node != null;) {
+            if (data.compareTo(node.data) >= 0) {
+                found = node.data;
+                node = node.right;
+            }
+            else {
+                node = node.left;
+            }
+        }
+        return found;
+    }
+
+    @Override
+    public T ceiling(Comparable<T> data) {
+        T found = null;
+        for (Node<T> node = this.root.get(); node != null;) {
+            if (data.compareTo(node.data) <= 0) {
+                found = node.data;
+                node = node.left;
+            }
+            else {
+                node = node.right;
+            }
+        }
+        return found;
+    }
+
+    @Override
+    public T lower(Comparable<T> data) {
+        T found = null;
+        for (Node<T> node = this.root.get(); node != null;) {
+            if (data.compareTo(node.data) > 0) {
+                found = node.data;
+                node = node.right;
+            }
+            else {
+                node = node.left;
+            }
+        }
+        return found;
+    }
+
+    @Override
+    public T higher(Comparable<T> data) {
+        T found = null;
+        for (Node<T> node = this.root.get(); node != null;) {
+            if (data.compareTo(node.data) < 0) {
+                found = node.data;
+                node = node.left;
+            }
+            else {
+                node = node.right;
+            }
+        }
+        return found;
+    }
+
+    /**
+     * Returns the k-th smallest value, counting from 0.
+     * @throws IndexOutOfBoundsException if k is not between 0 and size() - 1
+     */
+    public T select(int k) throws IndexOutOfBoundsException {
+        Node<T> node = this.root.get();
+        if (k < 0 || k >= Node.sizeOf(node)) {
+            throw new IndexOutOfBoundsException("index " + k + " out of bounds for size " + Node.sizeOf(node));
+        }
+        while (true) {
+            int leftSize = Node.sizeOf(node.left);
+            if (k < leftSize) {
+                node = node.left;
+            }
+            else if (k == leftSize) {
+                return node.data;
+            }
+            else {
+                k -= leftSize + 1;
+                node = node.right;
+            }
+        }
+    }
+
+    /**
+     * Scans [from, to) of the version that is current when this is called.
+     */
+    @Override
+    public Iterator<T> range(Comparable<T> from, Comparable<T> to) {
+        return new InOrderIterator(this.root.get(), from, to);
+    }
+
+    /**
+     * @return an iterator over the version that is current when this is
+     *     called, which inserts made while iterating do not affect
+     */
+    @Override
+    public Iterator<T> iterator() {
+        return range(null, null);
+    }
+
+    /**
+     * Iterates over one version in order. Without parent references, it
+     * keeps the nodes whose right subtrees are still to be visited on a
+     * stack, which holds at most one path of the tree.
+     */
+    private class InOrderIterator implements Iterator<T> {
+        private final ArrayDeque<Node<T>> stack = new ArrayDeque<>();
+        private final Comparable<T> to;
+
+        private InOrderIterator(Node<T> root, Comparable<T> from, Comparable<T> to) {
+            this.to = to;
+            // push the path to the first value >= from, skipping the smaller ones
+            for (Node<T> node = root; node != null;) {
+                if (from == null || from.compareTo(node.data) <= 0) {
+                    this.stack.push(node);
+                    node = node.left;
+                }
+                else {
+                    node = node.right;
+                }
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            return !this.stack.isEmpty() && (this.to == null || this.to.compareTo(this.stack.peek().data) > 0);
+        }
+
+        @Override
+        public T next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            Node<T> node = this.stack.pop();
+            for (Node<T> next = node.right; next != null; next = next.left) {
+                this.stack.push(next);
+            }
+            return node.data;
+        }
+    }
+
+    @Override
+    public int size() {
+        return Node.sizeOf(this.root.get());
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return this.root.get() == null;
+    }
+
+    /**
+     * Moves this tree to the empty version. Snapshots are not affected.
+     */
+    @Override
+    public void clear() {
+        this.root.set(null);
+    }
+
+    /**
+     * @return the number of nodes on the longest path from the root to a leaf
+     */
+    public int height() {
+        return height(this.root.get());
+    }
+
+    private static int height(Node<?> node) {
+        return node == null ? 0 : 1 + Math.max(height(node.left), height(node.right));
+    }
+
+    /**
+     * Checks the order of the values, the subtree sizes, that no red node
+     * has a red child and that every path has the same number of black
+     * nodes, in the current version.
+     * @throws IllegalStateException describing the first violation found
+     */
+    public void validate() {
+        Node<T> root = this.root.get();
+        if (Node.isRed(root)) {
+            throw new IllegalStateException("red root");
+        }
+        validate(root, null, null);
+    }
+
+    /**
+     * @return the black height of the subtree rooted at node
+     */
+    private int validate(Node<T> node, T low, T high) {
+        if (node == null) {
+            return 1;
+        }
+        if ((low != null && node.data.compareTo(low) < 0) || (high != null && node.data.compareTo(high) > 0)) {
+            throw new IllegalStateException(node.data + " is out of order");
+        }
+        if (node.size != 1 + Node.sizeOf(node.left) + Node.sizeOf(node.right)) {
+            throw new IllegalStateException("wrong size at " + node.data);
+        }
+        if (Node.isRed(node) && (Node.isRed(node.left) || Node.isRed(node.right))) {
+            throw new IllegalStateException("red node " + node.data + " has a red child");
+        }
+        int leftBlackHeight = validate(node.left, low, node.data);
+        int rightBlackHeight = validate(node.right, node.data, high);
+        if (leftBlackHeight != rightBlackHeight) {
+            throw new IllegalStateException("black heights differ below " + node.data);
+        }
+        return leftBlackHeight + (node.black ? 1 : 0);
+    }
+
+    /**
+     * Builds versions with plus and checks that each old version is
+     * unchanged, and that a new version shares all but O(log n) nodes.
+     */
+    public boolean test1() {
+        var empty = new PersistentTree<Integer>();
+        var version = empty;
+        List<PersistentTree<Integer>> versions = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            version = version.plus(i);
+            versions.add(version);
+        }
+        for (int i = 0; i < 1000; i += 111) {
+            PersistentTree<Integer> old = versions.get(i);
+            old.validate();
+            if (old.size() != i + 1 || !old.contains(i) || old.contains(i + 1) || old.select(i) != i) {
+                return false;
+            }
+        }
+        // count the nodes of the new version that are not in the old one
+        var next = version.plus(500);
+        var oldNodes = java.util.Collections.newSetFromMap(new java.util.IdentityHashMap<Node<Integer>, Boolean>());
+        collect(version.root.get(), oldNodes);
+        var newNodes = java.util.Collections.newSetFromMap(new java.util.IdentityHashMap<Node<Integer>, Boolean>());
+        collect(next.root.get(), newNodes);
+        newNodes.removeAll(oldNodes);
+        return empty.isEmpty() && next.size() == 1001 && newNodes.size() <= 3 * next.height();
+    }
+
+    private static <T> void collect(Node<T> node, java.util.Set<Node<T>> nodes) {
+        if (node != null) {
+            nodes.add(node);
+            collect(node.left, nodes);
+            collect(node.right, nodes);
+        }
+    }
+
+    /**
+     * Scans a snapshot while another thread keeps inserting into the
+     * original tree: the scan sees exactly the snapshot's values.
+     */
+    public boolean test2() {
+        var tree = new PersistentTree<Integer>();
+        for (int i = 0; i < 10000; i++) {
+            tree.insert(2 * i);
+        }
+        var snapshot = tree.snapshot();
+        Thread writer = new Thread(() -> {
+            for (int i = 0; i < 10000; i++) {
+                tree.insert(2 * i + 1);
+            }
+        });
+        writer.start();
+        int expected = 0;
+        for (Integer value : snapshot) {
+            if (value != expected) {
+                return false;
+            }
+            expected += 2;
+        }
+        try {
+            writer.join();
+        }
+        catch (InterruptedException e) {
+            return false;
+        }
+        tree.validate();
+        return expected == 20000 && snapshot.size() == 10000 && tree.size() == 20000 && tree.height() <= 28;
+    }
+
+    /**
+     * Checks the neighbour queries, ranges and duplicates.
+     */
+    public boolean test3() {
+        var tree = new PersistentTree<String>();
+        for (String word : new String[] {"m", "c", "x", "c", "q", "a"}) {
+            tree.insert(word);
+        }
+        tree.validate();
+        if (!tree.floor("d").equals("c") || !tree.ceiling("d").equals("m") || !tree.lower("c").equals("a")
+                || !tree.higher("m").equals("q") || tree.higher("x") != null || tree.lower("a") != null) {
+            return false;
+        }
+        StringBuilder scanned = new StringBuilder();
+        tree.range("c", "q").forEachRemaining(scanned::append);
+        tree.range(null, null).forEachRemaining(scanned::append);
+        var snapshot = tree.snapshot();
+        tree.clear();
+        return scanned.toString().equals("ccmaccmqx") && tree.isEmpty() && snapshot.size() == 6;
+    }
+
+    public void main() {
+        System.out.println("Test 1 results: " + test1());
+        System.out.println("Test 2 results: " + test2());
+        System.out.println("Test 3 results: " + test3());
+    }
+}
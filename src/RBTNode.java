@@ -0,0 +1,64 @@
+/**
+ * This class represents a node for a Red-Black Tree. On top of everything a
+ * BSTNode stores, it keeps track of its own color: every node starts out red
+ * when it is inserted and may be recolored black while the tree rebalances.
+ */
+public class RBTNode<T> extends BSTNode<T> {
+
+    // true when this node is black, false when it is red
+    protected boolean isBlack = false;
+
+    // 1 while a ConcurrentRedBlackTree insert or lookup has this node
+    // latched, see there. With compressed references it fits in the space
+    // the object is padded with after isBlack
+    volatile int latch = 0;
+
+    /**
+     * Constructor that creates a new red node with the value data.
+     * @param data the value the new node stores
+     */
+    public RBTNode(T data) { super(data); }
+
+    /**
+     * @return true when this node is black, false when it is red
+     */
+    public boolean isBlack() { return this.isBlack; }
+
+    /**
+     * Recolors this node.
+     * @param black true to make this node black, false to make it red
+     */
+    public void setBlack(boolean black) { this.isBlack = black; }
+
+    /**
+     * Resets this node like BSTNode.reset, and makes it red like a new node.
+     * @param newData the value the node holds from now on
+     */
+    @Override
+    public void reset(T newData) {
+        super.reset(newData);
+        this.isBlack = false;
+    }
+
+    /**
+     * @return the reference to the parent of this node,
+     * or null if it has no parent
+     */
+    @Override
+    public RBTNode<T> getUp() { return (RBTNode<T>) this.up; }
+
+    /**
+     * @return the reference to the left child of this node,
+     * or null if this node has no left child
+     */
+    @Override
+    public RBTNode<T> getLeft() { return (RBTNode<T>) this.left; }
+
+    /**
+     * @return the reference to the right child of this node,
+     * or null if this node has no right child
+     */
+    @Override
+    public RBTNode<T> getRight() { return (RBTNode<T>) this.right; }
+
+}
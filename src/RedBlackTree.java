@@ -0,0 +1,1513 @@
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * A self-balancing Red-Black Tree implementation of SortedCollection. Every
+ * insert and remove is followed by recoloring and BSTRotation.rotate calls
+ * that restore the red-black properties, so the height of the tree stays
+ * within 2 * log2(n + 1) no matter what order the values arrive in:
+ *   - the root is black
+ *   - a red node never has a red child
+ *   - every path from a node down to a null child passes the same number
+ *     of black nodes
+ */
+public class RedBlackTree<T extends Comparable<T>> extends BSTRotation<T> {
+
+    // when true, the red-black and binary search tree properties are checked
+    // after every insert and remove
+    protected boolean checkInvariants = false;
+
+    /**
+     * Creates an empty red-black tree that stores every value in its own node.
+     */
+    public RedBlackTree() {
+        super();
+    }
+
+    /**
+     * Creates an empty red-black tree.
+     * @param countDuplicates true to store duplicates as counts on one node,
+     *     see BinarySearchTree(boolean)
+     */
+    public RedBlackTree(boolean countDuplicates) {
+        super(countDuplicates);
+    }
+
+    /**
+     * Creates an empty red-black tree that keeps its values in the order of a
+     * comparator, see BinarySearchTree(Comparator).
+     * @param comparator the order to keep values in, or null for their
+     *     natural order
+     */
+    public RedBlackTree(Comparator<? super T> comparator) {
+        super(comparator);
+    }
+
+    /**
+     * Creates an empty red-black tree.
+     * @param countDuplicates true to store duplicates as counts on one node
+     * @param comparator the order to keep values in, or null for their
+     *     natural order
+     */
+    public RedBlackTree(boolean countDuplicates, Comparator<? super T> comparator) {
+        super(countDuplicates, comparator);
+    }
+
+    /**
+     * Turns the invariant checks that run after every insert and remove on or
+     * off. These checks walk the whole tree, so they are meant for tests.
+     * @param enabled true to validate the tree after every update
+     */
+    public void setInvariantChecking(boolean enabled) {
+        this.checkInvariants = enabled;
+    }
+
+    /**
+     * Inserts a new data value into the tree and then restores the
+     * red-black properties.
+     * @param data the new value being inserted
+     * @throws NullPointerException if data argument is null
+     */
+    @Override
+    public void insert(T data) throws NullPointerException {
+        if (data == null) {
+            throw new NullPointerException();
+        }
+        long start = this.metrics == null ? 0 : System.nanoTime();
+        this.modCount++;
+        RBTNode<T> newNode = (RBTNode<T>) createNode(data);
+        if (this.root == null) {
+            this.root = newNode;
+            updatePath(newNode);
+            enforceRBTreePropertiesAfterInsert(newNode);
+        }
+        // in counted mode a duplicate only bumps a count, nothing to rebalance
+        else if (insertHelper(newNode, this.root) == newNode) {
+            enforceRBTreePropertiesAfterInsert(newNode);
+        }
+        else {
+            recycle(newNode);
+        }
+        if (this.checkInvariants) {
+            validate();
+        }
+        publish(TreeChangeFeed.Type.INSERT, data, null);
+        dispatchChanges();
+        if (this.metrics != null) {
+            this.metrics.recordInsert(System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Inserts a batch of values. When the batch is large next to the tree
+     * (m * log2(n) >= n for a batch of m values and a tree of n), it is
+     * bulk loaded into a tree of its own, which is then merged in with the
+     * join-based union, in O(m log(n / m + 1)) time. Smaller batches are
+     * linked in one after the other by BinarySearchTree.insertAll and then
+     * rebalanced, see rebalanceInserted.
+     * @param values the new values being inserted, in any order
+     * @throws NullPointerException if any of the values is null
+     */
+    @Override
+    public void insertAll(Collection<? extends T> values) throws NullPointerException {
+        int n = size();
+        if (n == 0 || (long) values.size() * (32 - Integer.numberOfLeadingZeros(n)) < n) {
+            super.insertAll(values);
+            return;
+        }
+        List<T> sorted = sortBatch(values);
+        RedBlackTree<T> batch = new RedBlackTree<T>(this.countDuplicates, this.comparator);
+        batch.aggregate = this.aggregate;
+        batch.bulkLoad(sorted.iterator(), sorted.size());
+        combine(SetOperation.UNION, batch.detachRoot(), this.aggregate);
+        if (this.checkInvariants) {
+            validate();
+        }
+    }
+
+    /**
+     * Repairs the red-black properties around each node insertAll linked
+     * in, the way insert does. The nodes come before the new nodes below
+     * them, so each one is repaired in a tree that is valid everywhere
+     * except below it: new nodes are red and hang where null children
+     * were, which leaves the black heights as they were.
+     */
+    @Override
+    protected void rebalanceInserted(List<BSTNode<T>> added) {
+        for (BSTNode<T> node : added) {
+            // an earlier repair may have recolored it
+            if (!((RBTNode<T>) node).isBlack) {
+                enforceRBTreePropertiesAfterInsert((RBTNode<T>) node);
+            }
+        }
+        if (this.checkInvariants) {
+            validate();
+        }
+    }
+
+    /**
+     * Red-black trees are made of RBTNodes, which start out red.
+     * @param data the value the new node stores
+     * @return a new red RBTNode
+     */
+    @Override
+    protected BSTNode<T> createNode(T data) {
+        BSTNode<T> node = reuseNode(data);
+        return node != null ? node : new RBTNode<>(data);
+    }
+
+    /**
+     * Colors a tree that BinarySearchTree.bulkLoad built perfectly balanced:
+     * every node is black except the ones on the deepest level, which are
+     * red. All null children sit on the last two levels of a tree built
+     * this way, so every path passes the same number of black nodes.
+     */
+    @Override
+    protected void afterBulkLoad() {
+        int deepest = height() - 1;
+        color((RBTNode<T>) this.root, 0, deepest);
+        if (this.checkInvariants) {
+            validate();
+        }
+    }
+
+    private void color(RBTNode<T> node, int depth, int deepest) {
+        if (node == null) {
+            return;
+        }
+        node.isBlack = depth == 0 || depth < deepest;
+        color(node.getLeft(), depth + 1, deepest);
+        color(node.getRight(), depth + 1, deepest);
+    }
+
+    /**
+     * Checks whether the newly inserted (red) node has a red parent, and
+     * resolves that red-red violation by recoloring when the node's aunt is
+     * red, or by one or two rotations when the aunt is black. Recoloring may
+     * push the violation up to the grandparent, so this repeats until the
+     * violation is gone. The root is always left black.
+     * @param newNode the red node that was just added to the tree
+     */
+    protected void enforceRBTreePropertiesAfterInsert(RBTNode<T> newNode) {
+        repairRedParent(newNode, (RBTNode<T>) this.root, true).isBlack = true;
+    }
+
+    /**
+     * Resolves the violation a red node may have with its parent, the way
+     * enforceRBTreePropertiesAfterInsert describes, in the tree whose root
+     * is top. When attached, that is this tree, and the rotations go
+     * through rotate, which keeps this.root, the metrics and the change
+     * feed up to date. Otherwise top is a detached tree being joined, and
+     * its nodes are relinked directly, so nothing else is touched.
+     * @return the root of the tree afterwards, which is left red when the
+     *     violation reached it
+     */
+    private RBTNode<T> repairRedParent(RBTNode<T> newNode, RBTNode<T> top, boolean attached) {
+        RBTNode<T> node = newNode;
+        RBTNode<T> parent = node.getUp();
+        while (parent != null && !parent.isBlack) {
+            // a red parent is never the root, so the grandparent exists
+            RBTNode<T> grandparent = parent.getUp();
+            RBTNode<T> aunt = parent.isRightChild() ? grandparent.getLeft() : grandparent.getRight();
+            if (!isBlack(aunt)) {
+                // red aunt: push the blackness of the grandparent down a level
+                parent.isBlack = true;
+                aunt.isBlack = true;
+                grandparent.isBlack = false;
+                node = grandparent;
+                parent = node.getUp();
+            }
+            else {
+                if (node.isRightChild() != parent.isRightChild()) {
+                    // zig-zag: rotate the node into its parent's place so the
+                    // three nodes line up on one side
+                    rotateUp(node, parent, attached);
+                    RBTNode<T> temp = node;
+                    node = parent;
+                    parent = temp;
+                }
+                // zig-zig: rotate the parent above the grandparent and swap their colors
+                rotateUp(parent, grandparent, attached);
+                if (grandparent == top) {
+                    top = parent;
+                }
+                parent.isBlack = true;
+                grandparent.isBlack = false;
+                break;
+            }
+        }
+        return top;
+    }
+
+    /**
+     * Rotates child up over parent, with rotate when attached, or else by
+     * relinking the nodes of a detached tree without going through this one.
+     */
+    private void rotateUp(RBTNode<T> child, RBTNode<T> parent, boolean attached) {
+        if (attached) {
+            rotate(child, parent);
+            return;
+        }
+        RBTNode<T> above = parent.getUp();
+        if (above != null) {
+            if (above.left == parent) {
+                above.left = child;
+            }
+            else {
+                above.right = child;
+            }
+        }
+        if (parent.left == child) {
+            link(parent, child.getRight(), parent.getRight());
+            link(child, child.getLeft(), parent);
+        }
+        else {
+            link(parent, parent.getLeft(), child.getLeft());
+            link(child, parent, child.getRight());
+        }
+        child.up = above;
+    }
+
+    /**
+     * Removes one occurrence of data from the tree and then restores the
+     * red-black properties.
+     * @param data the value to remove
+     * @return true if a value was removed, false if data was not in the tree
+     */
+    @Override
+    public boolean remove(T data) {
+        boolean removed = super.remove(data);
+        if (this.checkInvariants) {
+            validate();
+        }
+        return removed;
+    }
+
+    @Override
+    public T removeMin() {
+        T removed = super.removeMin();
+        if (this.checkInvariants) {
+            validate();
+        }
+        return removed;
+    }
+
+    @Override
+    public T removeMax() {
+        T removed = super.removeMax();
+        if (this.checkInvariants) {
+            validate();
+        }
+        return removed;
+    }
+
+    /**
+     * Removes every value in [from, to) by splitting the tree at from and
+     * at to, and joining the outer pieces back together, in O(log n) time
+     * however many values are removed.
+     * @param from the least value to remove, or null for no lower bound
+     * @param to the value above the greatest one to remove, or null for no
+     *     upper bound
+     * @return the number of values removed
+     */
+    @Override
+    public int removeRange(Comparable<T> from, Comparable<T> to) {
+        Split<T> parts = new Split<>();
+        Subtree<T> below = new Subtree<>(null, 0);
+        Subtree<T> range = Subtree.of(detachRoot());
+        Subtree<T> above = new Subtree<>(null, 0);
+        if (from != null) {
+            splitNodes(range.root, range.height, from, parts);
+            below.set(parts.less.root, parts.less.height);
+            concatNodes(parts.equal, parts.greater, range);
+        }
+        if (to != null) {
+            splitNodes(range.root, range.height, to, parts);
+            range.set(parts.less.root, parts.less.height);
+            concatNodes(parts.equal, parts.greater, above);
+        }
+        concatNodes(below, above, below);
+        setRoot(below.root);
+        dispatchChanges();
+        return BSTNode.sizeOf(range.root);
+    }
+
+    /**
+     * When removed had two children, its successor moved into its place and
+     * takes over its color, so the color that left the tree is the
+     * successor's. If that was black, the black-height of the vacated
+     * position shrank by one and enforceRBTreePropertiesAfterRemove repairs
+     * it.
+     */
+    @Override
+    protected void afterRemove(BSTNode<T> removed, BSTNode<T> successor, BSTNode<T> replacement,
+            BSTNode<T> replacementParent) {
+        boolean removedBlack = ((RBTNode<T>) removed).isBlack;
+        if (successor != null) {
+            RBTNode<T> moved = (RBTNode<T>) successor;
+            boolean movedBlack = moved.isBlack;
+            moved.isBlack = removedBlack;
+            removedBlack = movedBlack;
+        }
+        if (removedBlack) {
+            enforceRBTreePropertiesAfterRemove((RBTNode<T>) replacement, (RBTNode<T>) replacementParent);
+        }
+    }
+
+    /**
+     * Resolves the missing black on every path through node after a black
+     * node was removed above it. node may be null (an empty child position),
+     * which is why its parent is passed in separately. The missing black is
+     * either absorbed by recoloring a red node black, or moved up the tree by
+     * recoloring the sibling red, or resolved by rotating at the sibling.
+     * @param node the node that took the removed node's place, or null
+     * @param parent the parent of that position
+     */
+    protected void enforceRBTreePropertiesAfterRemove(RBTNode<T> node, RBTNode<T> parent) {
+        while (node != this.root && isBlack(node)) {
+            if (node == parent.getLeft()) {
+                RBTNode<T> sibling = parent.getRight();
+                if (!sibling.isBlack) {
+                    // red sibling: rotate it up so the sibling becomes black
+                    sibling.isBlack = true;
+                    parent.isBlack = false;
+                    rotate(sibling, parent);
+                    sibling = parent.getRight();
+                }
+                if (isBlack(sibling.getLeft()) && isBlack(sibling.getRight())) {
+                    // both nephews black: recolor the sibling and move up
+                    sibling.isBlack = false;
+                    node = parent;
+                    parent = node.getUp();
+                }
+                else {
+                    if (isBlack(sibling.getRight())) {
+                        // near nephew red: rotate it into the sibling's place
+                        sibling.getLeft().isBlack = true;
+                        sibling.isBlack = false;
+                        rotate(sibling.getLeft(), sibling);
+                        sibling = parent.getRight();
+                    }
+                    // far nephew red: rotate the sibling up and we are done
+                    sibling.isBlack = parent.isBlack;
+                    parent.isBlack = true;
+                    sibling.getRight().isBlack = true;
+                    rotate(sibling, parent);
+                    node = (RBTNode<T>) this.root;
+                    parent = null;
+                }
+            }
+            else {
+                RBTNode<T> sibling = parent.getLeft();
+                if (!sibling.isBlack) {
+                    sibling.isBlack = true;
+                    parent.isBlack = false;
+                    rotate(sibling, parent);
+                    sibling = parent.getLeft();
+                }
+                if (isBlack(sibling.getLeft()) && isBlack(sibling.getRight())) {
+                    sibling.isBlack = false;
+                    node = parent;
+                    parent = node.getUp();
+                }
+                else {
+                    if (isBlack(sibling.getLeft())) {
+                        sibling.getRight().isBlack = true;
+                        sibling.isBlack = false;
+                        rotate(sibling.getRight(), sibling);
+                        sibling = parent.getLeft();
+                    }
+                    sibling.isBlack = parent.isBlack;
+                    parent.isBlack = true;
+                    sibling.getLeft().isBlack = true;
+                    rotate(sibling, parent);
+                    node = (RBTNode<T>) this.root;
+                    parent = null;
+                }
+            }
+        }
+        if (node != null) {
+            node.isBlack = true;
+        }
+    }
+
+    /**
+     * The set operations that combine(SetOperation, RBTNode, TreeAggregate) runs.
+     */
+    protected enum SetOperation { UNION, INTERSECT, DIFFERENCE }
+
+    /**
+     * Adds every value of other to this tree, duplicates included (in
+     * counted mode, counts of equal values add up). Like the other set
+     * operations this is join-based (Blelloch, Ferizovic and Sun, "Just
+     * Join for Parallel Ordered Sets"): this tree is split at each value of
+     * other and the pieces are joined back together, which takes
+     * O(m log(n / m + 1)) time for m = other.size() <= n = size(), instead
+     * of the O(m log n) of inserting the values one by one. Large inputs
+     * are split up across the common ForkJoinPool. other is not changed.
+     * @param other a tree with the same order and duplicate mode
+     * @throws IllegalArgumentException if other orders or stores its
+     *     values differently
+     */
+    public void union(RedBlackTree<T> other) throws IllegalArgumentException {
+        checkCompatible(other);
+        combine(SetOperation.UNION, other.copyNodes(), other.aggregate);
+    }
+
+    /**
+     * Keeps only the values of this tree that other also contains, with
+     * all their duplicates, see union(RedBlackTree). other is not changed.
+     * @param other a tree with the same order and duplicate mode
+     * @throws IllegalArgumentException if other orders or stores its
+     *     values differently
+     */
+    public void intersect(RedBlackTree<T> other) throws IllegalArgumentException {
+        checkCompatible(other);
+        combine(SetOperation.INTERSECT, other.copyNodes(), other.aggregate);
+    }
+
+    /**
+     * Removes every value that other contains from this tree, with all its
+     * duplicates, see union(RedBlackTree). other is not changed.
+     * @param other a tree with the same order and duplicate mode
+     * @throws IllegalArgumentException if other orders or stores its
+     *     values differently
+     */
+    public void difference(RedBlackTree<T> other) throws IllegalArgumentException {
+        checkCompatible(other);
+        combine(SetOperation.DIFFERENCE, other.copyNodes(), other.aggregate);
+    }
+
+    /**
+     * Moves the values from key up out of this tree, into a new tree of
+     * the same kind, in O(log n) time.
+     * The new tree keeps the same aggregate as this one, if any.
+     * @param key where to split
+     * @return a tree of the values >= key, this tree keeps the values < key
+     */
+    public RedBlackTree<T> split(Comparable<T> key) {
+        Split<T> parts = new Split<>();
+        RBTNode<T> nodes = detachRoot();
+        splitNodes(nodes, blackHeight(nodes), key, parts);
+        setRoot(parts.less.root);
+        RedBlackTree<T> greater = emptyTree();
+        greater.aggregate = this.aggregate;
+        concatNodes(parts.equal, parts.greater, parts.greater);
+        greater.setRoot(parts.greater.root);
+        dispatchChanges();
+        return greater;
+    }
+
+    /**
+     * Moves every value of other, which must all be greater than or equal
+     * to the values of this tree, to the end of this tree in O(log n + log m)
+     * time, leaving other empty.
+     * @param other the tree to append, with the same order and duplicate mode
+     * @throws IllegalArgumentException if other orders or stores its
+     *     values differently, or has a value less than one of this tree
+     */
+    public void join(RedBlackTree<T> other) throws IllegalArgumentException {
+        checkCompatible(other);
+        if (other == this) {
+            throw new IllegalArgumentException("cannot join a tree to itself");
+        }
+        if (other.root == null) {
+            return;
+        }
+        if (this.root != null) {
+            T last = last().getData();
+            T first = other.first().getData();
+            int comparison = compare(first, last);
+            if (comparison < 0 || comparison == 0 && this.countDuplicates) {
+                throw new IllegalArgumentException(first + " is not above " + last);
+            }
+        }
+        Subtree<T> joined = Subtree.of(detachRoot());
+        concatNodes(joined, Subtree.of(other.detachRoot()), joined);
+        setRoot(joined.root);
+        other.publish(TreeChangeFeed.Type.CLEAR, null, null);
+        if (other.aggregate != this.aggregate) {
+            recomputeAggregates();
+        }
+        dispatchChanges();
+        other.dispatchChanges();
+    }
+
+    /**
+     * Replaces the contents of this tree with the result of a set operation
+     * between them and a tree of nodes that now belong to this tree.
+     * @param operation what to compute
+     * @param nodes the root of a red-black tree copied from the other operand
+     * @param aggregated the aggregate kept in nodes, when it is not the one
+     *     this tree keeps, every aggregate is computed again afterwards
+     */
+    protected void combine(SetOperation operation, RBTNode<T> nodes, TreeAggregate<T, Object> aggregated) {
+        RBTNode<T> tree = detachRoot();
+        SetOperationTask task = new SetOperationTask(operation, tree, blackHeight(tree), nodes, blackHeight(nodes));
+        int size = BSTNode.sizeOf(tree) + BSTNode.sizeOf(nodes);
+        setRoot((size > SEQUENTIAL_CUTOFF ? task.invoke() : task.compute()).root);
+        if (aggregated != this.aggregate) {
+            recomputeAggregates();
+        }
+        dispatchChanges();
+    }
+
+    /**
+     * Copies the nodes of this tree, keeping their shape and colors.
+     * @return the root of the copy, or null when this tree is empty
+     */
+    protected RBTNode<T> copyNodes() {
+        return copy((RBTNode<T>) this.root);
+    }
+
+    private RBTNode<T> copy(RBTNode<T> node) {
+        if (node == null) {
+            return null;
+        }
+        // not createNode: copying must not take nodes out of this tree's pool,
+        // which ConcurrentRedBlackTree does under the read lock
+        RBTNode<T> copy = new RBTNode<>(node.getData());
+        copy.isBlack = node.isBlack;
+        copy.count = node.count;
+        link(copy, copy(node.getLeft()), copy(node.getRight()));
+        return copy;
+    }
+
+    /**
+     * @return a new empty tree of the same kind, order and duplicate mode,
+     *     for split to move values into
+     */
+    protected RedBlackTree<T> emptyTree() {
+        return new RedBlackTree<T>(this.countDuplicates, this.comparator);
+    }
+
+    private void checkCompatible(RedBlackTree<T> other) throws IllegalArgumentException {
+        if (other.countDuplicates != this.countDuplicates || !Objects.equals(other.comparator, this.comparator)) {
+            throw new IllegalArgumentException("trees with different orders or duplicate modes");
+        }
+    }
+
+    /**
+     * Empties this tree and returns what was its root.
+     */
+    private RBTNode<T> detachRoot() {
+        RBTNode<T> nodes = (RBTNode<T>) this.root;
+        this.root = null;
+        this.modCount++;
+        return nodes;
+    }
+
+    /**
+     * Makes nodes, the root of a red-black tree whose own root may be red,
+     * the contents of this tree.
+     */
+    private void setRoot(RBTNode<T> nodes) {
+        if (nodes != null) {
+            nodes.isBlack = true;
+        }
+        this.root = nodes;
+        this.modCount++;
+        if (this.checkInvariants) {
+            validate();
+        }
+        publish(TreeChangeFeed.Type.BULK, null, null);
+    }
+
+    /**
+     * A red-black tree that is being taken apart or put together, with its
+     * black-height: the number of black nodes on every path from its root
+     * down to a null child, the root included. The root may be red and has
+     * no parent. Splits and joins pass black-heights along instead of
+     * counting them again, which keeps each join O(1 + the difference).
+     * They take their inputs as a root and a height and write their result
+     * into a Subtree, which may be the one an input came from, so a split
+     * or a set operation reuses a few of these instead of allocating new
+     * ones at every level.
+     */
+    private static final class Subtree<T> {
+        private RBTNode<T> root;
+        private int height;
+
+        private Subtree(RBTNode<T> root, int height) {
+            this.root = root;
+            this.height = height;
+        }
+
+        private static <T> Subtree<T> of(RBTNode<T> root) {
+            return new Subtree<>(root, blackHeight(root));
+        }
+
+        private void set(RBTNode<T> root, int height) {
+            this.root = root;
+            this.height = height;
+        }
+    }
+
+    /**
+     * The three trees a split leaves behind.
+     */
+    private static final class Split<T> {
+        private final Subtree<T> less = new Subtree<>(null, 0);
+        private final Subtree<T> equal = new Subtree<>(null, 0);
+        private final Subtree<T> greater = new Subtree<>(null, 0);
+    }
+
+    /**
+     * @return the black-height of the tree under root, counted down its
+     *     left spine
+     */
+    private static <T> int blackHeight(RBTNode<T> root) {
+        int height = 0;
+        for (RBTNode<T> node = root; node != null; node = node.getLeft()) {
+            height += node.isBlack ? 1 : 0;
+        }
+        return height;
+    }
+
+    /**
+     * Colors the root of a tree black, which any red-black tree allows.
+     * @return the black-height afterwards
+     */
+    private static <T> int blacken(RBTNode<T> root, int height) {
+        if (root == null || root.isBlack) {
+            return height;
+        }
+        root.isBlack = true;
+        return height + 1;
+    }
+
+    /**
+     * Detaches a subtree from its parent.
+     * @return node, now without a parent
+     */
+    private static <T> RBTNode<T> cut(RBTNode<T> node) {
+        if (node != null) {
+            node.up = null;
+        }
+        return node;
+    }
+
+    /**
+     * Splits a tree into the values less than key, those equal to it and
+     * those greater, taking the nodes on the search path for key apart and
+     * joining them back onto the pieces on either side. The joins get
+     * taller as the recursion unwinds, so their costs add up to O(log n).
+     * Without counted duplicates, values equal to key can be on both sides
+     * of a node that holds key, so the search continues down both.
+     * @param node the root of the tree to split
+     * @param height its black-height
+     * @param parts where the three trees go
+     */
+    private void splitNodes(RBTNode<T> node, int height, Comparable<T> key, Split<T> parts) {
+        if (node == null) {
+            parts.less.set(null, 0);
+            parts.equal.set(null, 0);
+            parts.greater.set(null, 0);
+            return;
+        }
+        RBTNode<T> left = cut(node.getLeft());
+        RBTNode<T> right = cut(node.getRight());
+        int childHeight = height - (node.isBlack ? 1 : 0);
+        int comparison = compare(key, node.getData());
+        if (comparison < 0) {
+            splitNodes(left, childHeight, key, parts);
+            joinNodes(parts.greater.root, parts.greater.height, node, right, childHeight, parts.greater);
+        }
+        else if (comparison > 0) {
+            splitNodes(right, childHeight, key, parts);
+            joinNodes(left, childHeight, node, parts.less.root, parts.less.height, parts.less);
+        }
+        else if (this.countDuplicates) {
+            node.isBlack = true;
+            link(node, null, null);
+            parts.less.set(left, childHeight);
+            parts.equal.set(node, 1);
+            parts.greater.set(right, childHeight);
+        }
+        else {
+            // nothing in left is greater than key, and nothing in right is less
+            splitNodes(left, childHeight, key, parts);
+            RBTNode<T> less = parts.less.root;
+            int lessHeight = parts.less.height;
+            RBTNode<T> equal = parts.equal.root;
+            int equalHeight = parts.equal.height;
+            splitNodes(right, childHeight, key, parts);
+            parts.less.set(less, lessHeight);
+            joinNodes(equal, equalHeight, node, parts.equal.root, parts.equal.height, parts.equal);
+        }
+    }
+
+    /**
+     * Joins two red-black trees and a node that goes between them into one
+     * red-black tree. When the black-heights differ, the node is hung red
+     * off the inner spine of the taller tree, at the black node whose
+     * black-height matches the shorter tree, and the possible red-red
+     * violation is repaired up the spine with the same recoloring and
+     * rotations an insert uses, relinking the detached nodes so this tree
+     * is not touched. The root of the result is left red when the repair
+     * reaches it, so its black-height is always the greater of the two.
+     * @param left a tree of values <= middle's
+     * @param middle a node that is in neither tree, its links are replaced
+     * @param right a tree of values >= middle's
+     * @param into where the joined tree goes
+     */
+    private void joinNodes(RBTNode<T> left, int leftHeight, RBTNode<T> middle, RBTNode<T> right, int rightHeight,
+            Subtree<T> into) {
+        leftHeight = blacken(left, leftHeight);
+        rightHeight = blacken(right, rightHeight);
+        middle.isBlack = false;
+        if (leftHeight == rightHeight) {
+            link(middle, left, right);
+            into.set(middle, leftHeight);
+            return;
+        }
+        boolean leftTaller = leftHeight > rightHeight;
+        RBTNode<T> taller = leftTaller ? left : right;
+        int height = leftTaller ? leftHeight : rightHeight;
+        int shorterHeight = leftTaller ? rightHeight : leftHeight;
+        // walk down the inner spine of the taller tree
+        RBTNode<T> parent = null;
+        RBTNode<T> node = taller;
+        int nodeHeight = height;
+        while (node != null && (nodeHeight != shorterHeight || !node.isBlack)) {
+            nodeHeight -= node.isBlack ? 1 : 0;
+            parent = node;
+            node = leftTaller ? node.getRight() : node.getLeft();
+        }
+        if (leftTaller) {
+            link(middle, node, right);
+            parent.right = middle;
+        }
+        else {
+            link(middle, left, node);
+            parent.left = middle;
+        }
+        middle.up = parent;
+        for (BSTNode<T> ancestor = parent; ancestor != null; ancestor = ancestor.getUp()) {
+            update(ancestor);
+        }
+        into.set(parent.isBlack ? taller : repairRedParent(middle, taller, false), height);
+    }
+
+    /**
+     * Joins two trees without a node to put between them, by joining the
+     * root of the left one with its left subtree and the concatenation of
+     * its right subtree with right, down the right spine of left.
+     * @param left a tree of values <= those of right
+     * @param right a tree
+     * @param into where the joined tree goes, may be left or right
+     */
+    private void concatNodes(Subtree<T> left, Subtree<T> right, Subtree<T> into) {
+        concatNodes(left.root, left.height, right.root, right.height, into);
+    }
+
+    private void concatNodes(RBTNode<T> left, int leftHeight, RBTNode<T> right, int rightHeight, Subtree<T> into) {
+        if (left == null || right == null) {
+            if (left == null) {
+                into.set(right, rightHeight);
+            }
+            else {
+                into.set(left, leftHeight);
+            }
+            return;
+        }
+        int childHeight = leftHeight - (left.isBlack ? 1 : 0);
+        RBTNode<T> leftChild = cut(left.getLeft());
+        concatNodes(cut(left.getRight()), childHeight, right, rightHeight, into);
+        joinNodes(leftChild, childHeight, left, into.root, into.height, into);
+    }
+
+    /**
+     * Makes left and right the children of node.
+     */
+    private void link(RBTNode<T> node, RBTNode<T> left, RBTNode<T> right) {
+        node.left = left;
+        node.right = right;
+        if (left != null) {
+            left.up = node;
+        }
+        if (right != null) {
+            right.up = node;
+        }
+        update(node);
+    }
+
+    /**
+     * Computes a set operation between two trees of nodes by splitting tree
+     * at the root of other and recursing into both sides. The two sides are
+     * independent, so while the inputs are larger than SEQUENTIAL_CUTOFF
+     * the left side is forked to another thread. Joins relink the detached
+     * nodes directly, so the threads share no state.
+     */
+    private class SetOperationTask extends RecursiveTask<Subtree<T>> {
+        private static final long serialVersionUID = 1L;
+
+        private final SetOperation operation;
+        private final RBTNode<T> tree;
+        private final int treeHeight;
+        private final RBTNode<T> other;
+        private final int otherHeight;
+
+        private SetOperationTask(SetOperation operation, RBTNode<T> tree, int treeHeight, RBTNode<T> other,
+                int otherHeight) {
+            this.operation = operation;
+            this.tree = tree;
+            this.treeHeight = treeHeight;
+            this.other = other;
+            this.otherHeight = otherHeight;
+        }
+
+        @Override
+        protected Subtree<T> compute() {
+            Subtree<T> result = new Subtree<>(null, 0);
+            apply(this.tree, this.treeHeight, this.other, this.otherHeight, result);
+            return result;
+        }
+
+        private void apply(RBTNode<T> tree, int treeHeight, RBTNode<T> other, int otherHeight, Subtree<T> into) {
+            if (tree == null || other == null) {
+                if (this.operation == SetOperation.UNION && tree == null) {
+                    into.set(other, otherHeight);
+                }
+                else if (this.operation == SetOperation.INTERSECT) {
+                    into.set(null, 0);
+                }
+                else {
+                    into.set(tree, treeHeight);
+                }
+                return;
+            }
+            boolean parallel = BSTNode.sizeOf(tree) + BSTNode.sizeOf(other) > SEQUENTIAL_CUTOFF;
+            RBTNode<T> node = other;
+            RBTNode<T> otherLeft = cut(node.getLeft());
+            RBTNode<T> otherRight = cut(node.getRight());
+            int childHeight = otherHeight - (node.isBlack ? 1 : 0);
+            Split<T> parts = new Split<>();
+            splitNodes(tree, treeHeight, node.getData(), parts);
+            Subtree<T> left = parts.less;
+            Subtree<T> right = parts.greater;
+            if (parallel) {
+                SetOperationTask task = new SetOperationTask(this.operation, left.root, left.height, otherLeft,
+                        childHeight);
+                task.fork();
+                apply(right.root, right.height, otherRight, childHeight, right);
+                left = task.join();
+            }
+            else {
+                apply(left.root, left.height, otherLeft, childHeight, left);
+                apply(right.root, right.height, otherRight, childHeight, right);
+            }
+            switch (this.operation) {
+                case UNION:
+                    if (countDuplicates && parts.equal.root != null) {
+                        // one node per value, so parts.equal is a single node
+                        node.count += parts.equal.root.count;
+                    }
+                    else {
+                        concatNodes(left, parts.equal, left);
+                    }
+                    joinNodes(left.root, left.height, node, right.root, right.height, into);
+                    break;
+                case INTERSECT:
+                    concatNodes(left, parts.equal, left);
+                    concatNodes(left, right, into);
+                    break;
+                default:
+                    concatNodes(left, right, into);
+            }
+        }
+    }
+
+    /**
+     * Null children count as black leaves.
+     * @param node the node to check, may be null
+     * @return true if node is null or black
+     */
+    protected static boolean isBlack(RBTNode<?> node) {
+        return node == null || node.isBlack;
+    }
+
+    /**
+     * Walks the whole tree and checks the binary search tree ordering, the
+     * parent references, the subtree sizes, and every red-black property.
+     * @throws IllegalStateException describing the first violation found
+     */
+    public void validate() throws IllegalStateException {
+        if (this.root == null) {
+            return;
+        }
+        if (this.root.getUp() != null) {
+            throw new IllegalStateException("root has a parent");
+        }
+        if (!((RBTNode<T>) this.root).isBlack) {
+            throw new IllegalStateException("root is red");
+        }
+        validate((RBTNode<T>) this.root);
+    }
+
+    /**
+     * @return the black-height of the subtree rooted at node
+     */
+    private int validate(RBTNode<T> node) {
+        if (node == null) {
+            return 1;
+        }
+        RBTNode<T> left = node.getLeft();
+        RBTNode<T> right = node.getRight();
+        if (left != null) {
+            if (left.getUp() != node) {
+                throw new IllegalStateException("broken parent reference below " + node);
+            }
+            if (compare(left.getData(), node.getData()) > 0) {
+                throw new IllegalStateException(left + " is left of " + node);
+            }
+        }
+        if (right != null) {
+            if (right.getUp() != node) {
+                throw new IllegalStateException("broken parent reference below " + node);
+            }
+            if (compare(right.getData(), node.getData()) < 0) {
+                throw new IllegalStateException(right + " is right of " + node);
+            }
+        }
+        if (node.getCount() < 1 || node.getSize() != node.getCount() + BSTNode.sizeOf(left) + BSTNode.sizeOf(right)) {
+            throw new IllegalStateException("wrong subtree size at " + node);
+        }
+        if (!node.isBlack && (!isBlack(left) || !isBlack(right))) {
+            throw new IllegalStateException("red node " + node + " has a red child");
+        }
+        int leftHeight = validate(left);
+        int rightHeight = validate(right);
+        if (leftHeight != rightHeight) {
+            throw new IllegalStateException("unequal black-heights below " + node);
+        }
+        return leftHeight + (node.isBlack ? 1 : 0);
+    }
+
+    /**
+     * Inserts keys in ascending order, which would turn a plain BST into a
+     * linked list, and checks that the tree stays balanced and valid.
+     */
+    public boolean test1() {
+        var tree = new RedBlackTree<Integer>();
+        tree.setInvariantChecking(true);
+        for (int i = 0; i < 1000; i++) {
+            tree.insert(i);
+        }
+        if (tree.size() != 1000) {
+            return false;
+        }
+        // 2 * log2(1001) is just under 20
+        if (tree.height() > 20) {
+            return false;
+        }
+        for (int i = 0; i < 1000; i++) {
+            if (!tree.contains(i)) {
+                return false;
+            }
+        }
+        return !tree.contains(-1) && !tree.contains(1000);
+    }
+
+    /**
+     * Checks the exact shape after the recoloring and both rotation cases.
+     */
+    public boolean test2() {
+        var tree = new RedBlackTree<Character>();
+        tree.setInvariantChecking(true);
+        tree.insert('A');
+        tree.insert('B');
+        tree.insert('C'); // zig-zig: B rotates above A
+        if (!tree.root.toLevelOrderString().equals("[ B, A, C ]")) {
+            return false;
+        }
+        tree.insert('E');
+        tree.insert('D'); // red aunt at A is recolored, then zig-zag at C
+        if (!tree.root.toLevelOrderString().equals("[ B, A, D, C, E ]")) {
+            return false;
+        }
+        // B and its children are black, C and E are red
+        var d = (RBTNode<Character>) tree.root.getRight();
+        return ((RBTNode<Character>) tree.root).isBlack() && d.isBlack()
+                && !d.getLeft().isBlack() && !d.getRight().isBlack();
+    }
+
+    /**
+     * Removes leaves, interior nodes, the root and duplicate values in a
+     * pseudo-random order while validating after every change.
+     */
+    public boolean test3() {
+        var tree = new RedBlackTree<Integer>();
+        tree.setInvariantChecking(true);
+        for (int i = 0; i < 500; i++) {
+            tree.insert((i * 37) % 250); // every value twice
+        }
+        if (tree.size() != 500) {
+            return false;
+        }
+        for (int i = 0; i < 250; i++) {
+            int value = (i * 101) % 250;
+            if (!tree.remove(value) || !tree.contains(value)) {
+                return false;
+            }
+            if (!tree.remove(value) || tree.contains(value)) {
+                return false;
+            }
+            if (tree.size() != 498 - 2 * i) {
+                return false;
+            }
+        }
+        return tree.isEmpty() && !tree.remove(0);
+    }
+
+    /**
+     * Bulk loads sorted values of several sizes, including perfect and
+     * incomplete last levels, and keeps inserting and removing afterwards.
+     */
+    public boolean test4() {
+        var tree = new RedBlackTree<Integer>();
+        tree.setInvariantChecking(true);
+        for (int n : new int[] {0, 1, 2, 3, 7, 8, 100, 1023}) {
+            var values = new ArrayList<Integer>();
+            for (int i = 0; i < n; i++) {
+                values.add(2 * i);
+            }
+            tree.bulkLoad(values.iterator(), n);
+            if (tree.size() != n || tree.height() > 32 - Integer.numberOfLeadingZeros(n)) {
+                return false;
+            }
+        }
+        // the 1023 values from the last load are still there
+        tree.insert(5);
+        tree.remove(0);
+        var more = List.of(1, 3, 3, 2047);
+        tree.bulkInsert(more.iterator(), more.size());
+        return tree.size() == 1027 && tree.contains(3) && tree.contains(2047) && !tree.contains(0)
+                && tree.select(0) == 1 && tree.select(2) == 3 && tree.select(3) == 3 && tree.select(4) == 4;
+    }
+
+    /**
+     * Inserts heavily repeated values in counted mode, which only needs one
+     * node per distinct value, then removes occurrences until nodes go away.
+     */
+    public boolean test5() {
+        var tree = new RedBlackTree<Integer>(true);
+        tree.setInvariantChecking(true);
+        for (int i = 0; i < 10000; i++) {
+            tree.insert(i % 10);
+        }
+        if (tree.size() != 10000 || tree.height() > 6 || tree.count(7) != 1000) {
+            return false;
+        }
+        for (int i = 0; i < 999; i++) {
+            tree.remove(7);
+        }
+        if (tree.count(7) != 1 || tree.size() != 9001 || tree.rank(8) != 7001) {
+            return false;
+        }
+        tree.remove(7);
+        return !tree.contains(7) && tree.size() == 9000 && tree.select(7000) == 8;
+    }
+
+    /**
+     * Inserts a small batch into a large tree, which goes one value at a
+     * time, and a large batch, which is merged in with one rebuild, and
+     * checks the red-black properties and batch lookups after each.
+     */
+    public boolean test6() {
+        var tree = new RedBlackTree<Integer>();
+        List<Integer> batch = new ArrayList<>();
+        for (int i = 0; i < 5000; i++) {
+            batch.add((i * 7919) % 5000 * 2);
+        }
+        tree.insertAll(batch);
+        tree.validate();
+        tree.insertAll(List.of(3, 1, 3));
+        tree.validate();
+        if (tree.size() != 5003 || !tree.containsAll(List.of(9998, 3, 0, 1)) || tree.containsAll(List.of(0, 5))) {
+            return false;
+        }
+        var found = tree.containsEach(List.of(4, 5, 3, 10000, -2, 0, 3));
+        return found.toString().equals("{0, 2, 5, 6}") && new RedBlackTree<Integer>().containsEach(batch).isEmpty();
+    }
+
+    /**
+     * Inserts sorted values with metrics enabled: rotations are counted and
+     * the shape stays within the red-black height bound.
+     */
+    public boolean test7() {
+        var tree = new RedBlackTree<Integer>();
+        TreeMetrics metrics = tree.enableMetrics();
+        for (int i = 0; i < 1000; i++) {
+            tree.insert(i);
+        }
+        tree.contains(500);
+        return metrics.getInserts() == 1000 && metrics.getLookups() == 1 && metrics.getRotations() > 900
+                && tree.shape().nodes == 1000 && tree.shape().balanceFactor() <= 2
+                && metrics.getAverageComparisons() < 20;
+    }
+
+    /**
+     * Removes the minimum, the maximum and ranges with the invariants
+     * checked after every change.
+     */
+    public boolean test8() {
+        var tree = new RedBlackTree<Integer>();
+        tree.setInvariantChecking(true);
+        for (int i = 0; i < 1000; i++) {
+            tree.insert((i * 37) % 1000);
+        }
+        for (int i = 0; i < 10; i++) {
+            if (tree.removeMin() != i || tree.removeMax() != 999 - i) {
+                return false;
+            }
+        }
+        if (tree.removeRange(100, 200) != 100 || tree.removeRange(500, null) != 490
+                || tree.removeRange(null, 50) != 40 || tree.removeRange(120, 180) != 0) {
+            return false;
+        }
+        // 50 .. 99 and 200 .. 499 are left
+        return tree.size() == 350 && tree.select(49) == 99 && tree.select(50) == 200
+                && tree.removeRange(null, null) == 350 && tree.isEmpty() && tree.removeMin() == null;
+    }
+
+    /**
+     * Keeps strings in reverse case-insensitive order: iteration, searches,
+     * batch inserts and the invariant checks all follow the comparator.
+     */
+    public boolean test9() {
+        Comparator<String> order = String.CASE_INSENSITIVE_ORDER.reversed();
+        var tree = new RedBlackTree<String>(order);
+        tree.setInvariantChecking(true);
+        for (String value : new String[] {"b", "D", "a", "C", "e"}) {
+            tree.insert(value);
+        }
+        tree.insertAll(List.of("F", "g"));
+        tree.bulkInsert(List.of("h", "cc", "A").iterator(), 3);
+        List<String> values = new ArrayList<>();
+        tree.forEach(values::add);
+        return values.equals(List.of("h", "g", "F", "e", "D", "cc", "C", "b", "a", "A"))
+                && tree.contains("d") && !tree.contains("Z") && tree.count("A") == 2
+                && tree.floor("ca").equals("cc") && tree.ceiling("ca").equals("C")
+                && tree.spliterator().getComparator() == order
+                && tree.containsAll(List.of("E", "f")) && tree.containsEach(List.of("B", "x")).cardinality() == 1;
+    }
+
+    /**
+     * Runs union, intersect and difference on random trees, small ones and
+     * ones large enough to be split across threads, with the invariants
+     * checked after each, and compares the values with sorted lists.
+     */
+    public boolean test10() {
+        var random = new java.util.Random(22);
+        int[][] sizes = {{0, 5}, {5, 0}, {50, 50}, {1000, 10}, {10, 1000}, {40000, 30000}};
+        for (boolean counted : new boolean[] {false, true}) {
+            for (int[] size : sizes) {
+                for (SetOperation operation : SetOperation.values()) {
+                    var tree = new RedBlackTree<Integer>(counted);
+                    var other = new RedBlackTree<Integer>(counted);
+                    List<Integer> values = new ArrayList<>();
+                    List<Integer> otherValues = new ArrayList<>();
+                    for (int i = 0; i < size[0]; i++) {
+                        values.add(random.nextInt(size[0] + size[1]));
+                    }
+                    for (int i = 0; i < size[1]; i++) {
+                        otherValues.add(random.nextInt(size[0] + size[1]));
+                    }
+                    tree.insertAll(values);
+                    other.insertAll(otherValues);
+                    tree.setInvariantChecking(true);
+                    var otherSet = new java.util.HashSet<>(otherValues);
+                    if (operation == SetOperation.UNION) {
+                        tree.union(other);
+                        values.addAll(otherValues);
+                    }
+                    else if (operation == SetOperation.INTERSECT) {
+                        tree.intersect(other);
+                        values.removeIf(value -> !otherSet.contains(value));
+                    }
+                    else {
+                        tree.difference(other);
+                        values.removeIf(otherSet::contains);
+                    }
+                    values.sort(null);
+                    List<Integer> actual = new ArrayList<>();
+                    tree.forEach(actual::add);
+                    if (!actual.equals(values) || tree.size() != values.size() || other.size() != size[1]) {
+                        return false;
+                    }
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Splits trees at random keys and joins the pieces back together, and
+     * checks that join refuses trees that overlap.
+     */
+    public boolean test11() {
+        var random = new java.util.Random(23);
+        for (int round = 0; round < 100; round++) {
+            var tree = new RedBlackTree<Integer>(round % 2 == 0);
+            tree.setInvariantChecking(true);
+            int n = random.nextInt(500);
+            for (int i = 0; i < n; i++) {
+                tree.insert(random.nextInt(200));
+            }
+            int key = random.nextInt(220) - 10;
+            int below = 0;
+            for (int value : tree) {
+                below += value < key ? 1 : 0;
+            }
+            RedBlackTree<Integer> greater = tree.split(key);
+            greater.setInvariantChecking(true);
+            if (tree.size() != below || greater.size() != n - below
+                    || (below > 0 && tree.last().getData() >= key)
+                    || (below < n && greater.first().getData() < key)) {
+                return false;
+            }
+            tree.join(greater);
+            if (tree.size() != n || !greater.isEmpty()) {
+                return false;
+            }
+        }
+        var low = new RedBlackTree<Integer>();
+        var high = new RedBlackTree<Integer>();
+        low.insertAll(List.of(1, 5, 9));
+        high.insertAll(List.of(7, 20));
+        try {
+            low.join(high);
+            return false;
+        }
+        catch (IllegalArgumentException e) {
+            return low.size() == 3 && high.size() == 2;
+        }
+    }
+
+    /**
+     * Rebuilds a pooled red-black tree over and over, with removals in
+     * between, checking the invariants: reused nodes must come back red
+     * and unlinked.
+     */
+    public boolean test12() {
+        var tree = new RedBlackTree<Integer>();
+        tree.setInvariantChecking(true);
+        tree.enableNodePool(1000);
+        var random = new java.util.Random(24);
+        for (int round = 0; round < 20; round++) {
+            List<Integer> expected = new ArrayList<>();
+            for (int i = 0; i < 500; i++) {
+                int value = random.nextInt(300);
+                tree.insert(value);
+                expected.add(value);
+            }
+            for (int i = 0; i < 100; i++) {
+                Integer value = random.nextInt(300);
+                if (tree.remove(value) != expected.remove(value)) {
+                    return false;
+                }
+            }
+            expected.sort(null);
+            List<Integer> actual = new ArrayList<>();
+            tree.forEach(actual::add);
+            if (!actual.equals(expected) || tree.pooledNodes() > 1000) {
+                return false;
+            }
+            tree.clear();
+        }
+        // every round reused the 500 nodes of the first one
+        return tree.pooledNodes() == 500 && tree.isEmpty();
+    }
+
+    /**
+     * Keeps sum, min and max aggregates through rotations, removals, range
+     * removals, (parallel) set operations, split and join, and checks random
+     * ranges against the in-order values. A listener sees rotations as
+     * they happen, before the insert that caused them.
+     */
+    public boolean test13() {
+        var random = new java.util.Random(25);
+        var tree = new RedBlackTree<Integer>();
+        tree.setInvariantChecking(true);
+        TreeAggregate<Integer, Long> sum = TreeAggregate.sum(Integer::longValue);
+        tree.enableAggregate(sum);
+        var other = new RedBlackTree<Integer>();
+        var sameSum = new RedBlackTree<Integer>();
+        sameSum.enableAggregate(sum);
+        for (int i = 0; i < 20000; i++) {
+            tree.insert(random.nextInt(100000));
+            other.insert(random.nextInt(100000));
+            sameSum.insert(random.nextInt(100000));
+        }
+        for (int i = 0; i < 2000; i++) {
+            tree.remove(random.nextInt(100000));
+        }
+        tree.removeRange(40000, 45000);
+        tree.union(other);
+        tree.difference(sameSum);
+        tree.union(sameSum);
+        RedBlackTree<Integer> upper = tree.split(70000);
+        if (!checkSums(tree, sum, random) || !checkSums(upper, sum, random)) {
+            return false;
+        }
+        tree.join(upper);
+        tree.bulkInsert(List.of(1, 2, 3).iterator(), 3);
+        if (!checkSums(tree, sum, random)) {
+            return false;
+        }
+        var small = new RedBlackTree<Integer>();
+        TreeAggregate<Integer, Long> max = TreeAggregate.max(value -> -(long) value);
+        small.enableAggregate(max);
+        List<TreeChangeFeed.Event<Integer>> events = new ArrayList<>();
+        small.subscribe(events::addAll, Runnable::run, 1);
+        for (int i = 1; i <= 3; i++) {
+            small.insert(i);
+        }
+        return events.toString().equals("[INSERT 1, INSERT 2, ROTATE 2 over 1, INSERT 3]")
+                && small.aggregate(max, null, null) == -1 && small.aggregate(max, 2, null) == -2
+                && small.aggregate(max, 4, null) == null;
+    }
+
+    /**
+     * A listener that throws and an executor that was shut down cannot
+     * break the tree: every insert and removal completes, the tree stays
+     * valid, and the failures go to the error handler. A listener that
+     * fails a few times gets the batches that failed once it works again;
+     * the subscriptions that keep failing are dropped after
+     * TreeChangeFeed.MAX_FAILURES deliveries in a row.
+     */
+    public boolean test14() {
+        var tree = new RedBlackTree<Integer>();
+        List<Throwable> failures = new ArrayList<>();
+        List<TreeChangeFeed.Event<Integer>> delivered = new ArrayList<>();
+        int[] failuresLeft = {5};
+        var recovering = tree.subscribe(events -> {
+            if (failuresLeft[0]-- > 0) {
+                throw new IllegalStateException("listener failed");
+            }
+            delivered.addAll(events);
+        }, Runnable::run, 1, failures::add);
+        var failing = tree.subscribe(events -> {
+            throw new IllegalStateException("listener always fails");
+        }, Runnable::run, 1, failures::add);
+        java.util.concurrent.ExecutorService stopped = java.util.concurrent.Executors.newSingleThreadExecutor();
+        stopped.shutdown();
+        var rejecting = tree.subscribe(events -> { }, stopped, 1, failures::add);
+        try {
+            for (int i = 0; i < 100; i++) {
+                tree.insert(i);
+            }
+            for (int i = 0; i < 50; i++) {
+                tree.remove(i * 2);
+            }
+            tree.validate();
+        }
+        catch (RuntimeException e) {
+            return false;
+        }
+        int rejected = 0;
+        int dropped = 0;
+        for (Throwable failure : failures) {
+            rejected += failure instanceof java.util.concurrent.RejectedExecutionException ? 1 : 0;
+            dropped += failure.getMessage().startsWith("dropped") ? 1 : 0;
+        }
+        if (rejected != TreeChangeFeed.MAX_FAILURES || dropped != 2
+                || failures.size() != 5 + 2 * (TreeChangeFeed.MAX_FAILURES + 1)
+                || !failing.isDropped() || !rejecting.isDropped() || recovering.isDropped()) {
+            return false;
+        }
+        // the first insert's batch was kept and comes first
+        if (!delivered.get(0).toString().equals("INSERT 0")
+                || !delivered.get(delivered.size() - 1).toString().equals("REMOVE 98")) {
+            return false;
+        }
+        // the dropped subscriptions are gone from the tree
+        return tree.unsubscribe(recovering) && !tree.unsubscribe(failing) && tree.changes == null;
+    }
+
+    /**
+     * @return true if the sums of random ranges of tree match sums over its
+     *     in-order values
+     */
+    private static boolean checkSums(RedBlackTree<Integer> tree, TreeAggregate<Integer, Long> sum,
+            java.util.Random random) {
+        List<Integer> values = new ArrayList<>();
+        tree.forEach(values::add);
+        for (int i = 0; i < 50; i++) {
+            int from = random.nextInt(100000);
+            int to = from + random.nextInt(30000);
+            long expected = 0;
+            for (int value : values) {
+                expected += value >= from && value < to ? value : 0;
+            }
+            Long actual = tree.aggregate(sum, from, to);
+            if (actual == null ? expected != 0 : actual != expected) {
+                return false;
+            }
+        }
+        long total = 0;
+        for (int value : values) {
+            total += value;
+        }
+        return values.isEmpty() || tree.aggregate(sum, null, null) == total;
+    }
+
+    /**
+     * Inserts batches small enough to be linked in and rebalanced, and
+     * large enough to go through union, into random trees in both
+     * duplicate modes, with the invariants checked and a sum kept.
+     */
+    public boolean test15() {
+        var random = new java.util.Random(15);
+        TreeAggregate<Integer, Long> sum = TreeAggregate.sum(Integer::longValue);
+        for (boolean counted : new boolean[] {false, true}) {
+            var tree = new RedBlackTree<Integer>(counted);
+            tree.setInvariantChecking(true);
+            tree.enableAggregate(sum);
+            List<Integer> expected = new ArrayList<>();
+            for (int size : new int[] {1000, 1, 20, 50, 3000, 200, 10000}) {
+                List<Integer> batch = new ArrayList<>();
+                for (int i = 0; i < size; i++) {
+                    batch.add(random.nextInt(20000));
+                }
+                tree.insertAll(batch);
+                expected.addAll(batch);
+            }
+            expected.sort(null);
+            List<Integer> values = new ArrayList<>();
+            tree.forEach(values::add);
+            long total = 0;
+            for (int value : expected) {
+                total += value;
+            }
+            if (!values.equals(expected) || tree.size() != expected.size()
+                    || tree.aggregate(sum, null, null) != total) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public void main() {
+        System.out.println("Test 1 results: " + test1());
+        System.out.println("Test 2 results: " + test2());
+        System.out.println("Test 3 results: " + test3());
+        System.out.println("Test 4 results: " + test4());
+        System.out.println("Test 5 results: " + test5());
+        System.out.println("Test 6 results: " + test6());
+        System.out.println("Test 7 results: " + test7());
+        System.out.println("Test 8 results: " + test8());
+        System.out.println("Test 9 results: " + test9());
+        System.out.println("Test 10 results: " + test10());
+        System.out.println("Test 11 results: " + test11());
+        System.out.println("Test 12 results: " + test12());
+        System.out.println("Test 13 results: " + test13());
+        System.out.println("Test 14 results: " + test14());
+        System.out.println("Test 15 results: " + test15());
+    }
+}
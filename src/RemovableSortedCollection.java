@@ -0,0 +1,38 @@
+/**
+ * A SortedCollection that values can also be removed from. Collections
+ * that cannot remove values (immutable, persistent or file-backed ones)
+ * implement SortedCollection alone, so removal is only offered where it
+ * works.
+ */
+public interface RemovableSortedCollection<T extends Comparable<T>> extends SortedCollection<T> {
+
+    /**
+     * Removes one occurrence of data from the collection.
+     * @param data the value to remove
+     * @return true if a value was removed, false if data was not there
+     */
+    public boolean remove(T data);
+
+    /**
+     * Removes one occurrence of the least value in the collection.
+     * @return the value removed, or null if the collection is empty
+     */
+    public T removeMin();
+
+    /**
+     * Removes one occurrence of the greatest value in the collection.
+     * @return the value removed, or null if the collection is empty
+     */
+    public T removeMax();
+
+    /**
+     * Removes every value from "from" (inclusive) to "to" (exclusive),
+     * duplicates included. A null bound leaves that side of the range open.
+     * @param from the least value to remove, or null for no lower bound
+     * @param to the value above the greatest one to remove, or null for no
+     * upper bound
+     * @return the number of values removed
+     */
+    public int removeRange(Comparable<T> from, Comparable<T> to);
+
+}
@@ -1,3 +1,8 @@
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+
 /**
  * This interface defines an ADT for data structures that support storing a 
  * collection of comparable values in their natural ordering.
@@ -12,6 +17,19 @@ public interface SortedCollection<T extends Comparable<T>> {
      */
     public void insert(T data) throws NullPointerException;
 
+    /**
+     * Inserts every value of a batch into the sorted collection. By default
+     * the values are inserted one at a time, implementations may sort the
+     * batch first and insert it in a single pass.
+     * @param values the new values being inserted, in any order
+     * @throws NullPointerException if any of the values is null
+     */
+    public default void insertAll(Collection<? extends T> values) throws NullPointerException {
+        for (T value : values) {
+            insert(value);
+        }
+    }
+
     /**
      * Check whether data is stored in the tree.
      * @param data the value to check for in the collection
@@ -20,6 +38,80 @@ public interface SortedCollection<T extends Comparable<T>> {
      */
     public boolean contains(Comparable<T> data);
 
+    /**
+     * Check whether every value of a batch is stored in the collection.
+     * @param values the values to check for, in any order
+     * @return true if the collection contains each of the values, and false
+     * otherwise
+     */
+    public default boolean containsAll(Collection<? extends T> values) {
+        for (T value : values) {
+            if (!contains(value)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Check which values of a batch are stored in the collection.
+     * @param values the values to check for, in any order
+     * @return a bit set with bit i set if and only if the collection
+     * contains values.get(i)
+     */
+    public default BitSet containsEach(List<? extends T> values) {
+        BitSet found = new BitSet(values.size());
+        for (int i = 0; i < values.size(); i++) {
+            if (contains(values.get(i))) {
+                found.set(i);
+            }
+        }
+        return found;
+    }
+
+    /**
+     * Finds the greatest value in the collection that is less than or equal
+     * to data.
+     * @param data the value to compare against
+     * @return the greatest value <= data, or null if there is none
+     */
+    public T floor(Comparable<T> data);
+
+    /**
+     * Finds the least value in the collection that is greater than or equal
+     * to data.
+     * @param data the value to compare against
+     * @return the least value >= data, or null if there is none
+     */
+    public T ceiling(Comparable<T> data);
+
+    /**
+     * Finds the greatest value in the collection that is strictly less than
+     * data.
+     * @param data the value to compare against
+     * @return the greatest value < data, or null if there is none
+     */
+    public T lower(Comparable<T> data);
+
+    /**
+     * Finds the least value in the collection that is strictly greater than
+     * data.
+     * @param data the value to compare against
+     * @return the least value > data, or null if there is none
+     */
+    public T higher(Comparable<T> data);
+
+    /**
+     * Scans the values from (inclusive) up to to (exclusive) in sorted order,
+     * each duplicate value being returned separately. Values are produced
+     * lazily as the iterator advances, so a scan that stops early does not
+     * pay for the rest of the range.
+     * @param from the least value to include, or null to start at the smallest
+     * @param to the value to stop before, or null to run to the largest
+     * @return an iterator over the values in [from, to) in sorted order
+     */
+    public Iterator<T> range(Comparable<T> from, Comparable<T> to);
+
     /**
      * Counts the number of values in the collection, with each duplicate value
      * being counted separately within the value returned.
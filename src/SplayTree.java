@@ -0,0 +1,244 @@
+import java.util.Comparator;
+
+/**
+ * A self-adjusting splay tree implementation of SortedCollection. Every
+ * insert and every contains moves the node it reaches up toward the root
+ * with BSTRotation.rotate calls, so values that are looked up often stay
+ * near the top and are found in a few comparisons, while values that are
+ * never asked for sink. Any sequence of operations takes O(log n) amortized
+ * time per operation, even though a single operation can take O(n).
+ *
+ * Two ways of splaying are supported:
+ *   - FULL splaying moves the node all the way to the root, using zig-zig
+ *     and zig-zag double rotations that also roughly halve the depth of
+ *     every node on its path (Sleator and Tarjan, "Self-Adjusting Binary
+ *     Search Trees")
+ *   - SEMI splaying, from the same paper, only rotates the parent over the
+ *     grandparent in the zig-zig case and carries on from the parent, so a
+ *     node moves about halfway up per access. It does fewer rotations per
+ *     access, and a hot node still reaches the top after a few accesses.
+ *
+ * Because contains changes the shape of the tree, it counts as a
+ * structural change: iterators that are open at the time fail fast, and
+ * lookups must not run concurrently with each other.
+ */
+public class SplayTree<T extends Comparable<T>> extends BSTRotation<T> {
+
+    /**
+     * How far an accessed node moves up.
+     */
+    public enum Mode { FULL, SEMI }
+
+    protected final Mode mode;
+
+    /**
+     * Creates an empty tree that splays accessed nodes all the way to the root.
+     */
+    public SplayTree() {
+        this(Mode.FULL);
+    }
+
+    /**
+     * Creates an empty tree.
+     * @param mode FULL to splay accessed nodes to the root, SEMI to move them
+     *     about halfway up
+     */
+    public SplayTree(Mode mode) {
+        this(mode, null);
+    }
+
+    /**
+     * Creates an empty tree that keeps its values in the order of a
+     * comparator, see BinarySearchTree(Comparator).
+     * @param mode FULL to splay accessed nodes to the root, SEMI to move them
+     *     about halfway up
+     * @param comparator the order to keep values in, or null for their
+     *     natural order
+     */
+    public SplayTree(Mode mode, Comparator<? super T> comparator) {
+        super(comparator);
+        this.mode = mode;
+    }
+
+    /**
+     * Inserts a new data value into the tree and splays its node.
+     * @param data the new value being inserted
+     * @throws NullPointerException if data argument is null
+     */
+    @Override
+    public void insert(T data) throws NullPointerException {
+        if (data == null) {
+            throw new NullPointerException();
+        }
+        long start = this.metrics == null ? 0 : System.nanoTime();
+        this.modCount++;
+        BSTNode<T> newNode = createNode(data);
+        if (this.root == null) {
+            this.root = newNode;
+            updatePath(newNode);
+        }
+        else {
+            splay(insertHelper(newNode, this.root));
+        }
+        publish(TreeChangeFeed.Type.INSERT, data, null);
+        dispatchChanges();
+        if (this.metrics != null) {
+            this.metrics.recordInsert(System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Checks whether data is stored in the tree, and splays the node that
+     * holds it, or the last node on the search path when it is not there
+     * (so repeated misses near the same value get cheaper too).
+     * @param data the value to check for in the collection
+     * @return true if the tree contains data one or more times
+     */
+    @Override
+    public boolean contains(Comparable<T> data) {
+        long start = this.metrics == null ? 0 : System.nanoTime();
+        int comparisons = 0;
+        BSTNode<T> node = this.root;
+        BSTNode<T> last = null;
+        boolean found = false;
+        while (node != null && !found) {
+            last = node;
+            comparisons++;
+            int comparison = compare(data, node.getData());
+            found = comparison == 0;
+            node = comparison < 0 ? node.getLeft() : node.getRight();
+        }
+        if (last != null) {
+            splay(last);
+            dispatchChanges();
+        }
+        if (this.metrics != null) {
+            this.metrics.recordLookup(System.nanoTime() - start, comparisons);
+        }
+        return found;
+    }
+
+    /**
+     * Splays the parent of the position a removed node left, as the
+     * standard splay tree deletion does.
+     */
+    @Override
+    protected void afterRemove(BSTNode<T> removed, BSTNode<T> successor, BSTNode<T> replacement,
+            BSTNode<T> replacementParent) {
+        if (replacementParent != null) {
+            splay(replacementParent);
+        }
+    }
+
+    /**
+     * Moves node up toward the root with rotations, according to the mode.
+     * @param node the node that was just accessed
+     */
+    protected void splay(BSTNode<T> node) {
+        while (node.getUp() != null) {
+            BSTNode<T> parent = node.getUp();
+            BSTNode<T> grandparent = parent.getUp();
+            if (grandparent == null) {
+                // zig: node is a child of the root
+                rotate(node, parent);
+            }
+            else if ((parent.getLeft() == node) == (grandparent.getLeft() == parent)) {
+                // zig-zig: node and parent are children on the same side
+                rotate(parent, grandparent);
+                if (this.mode == Mode.SEMI) {
+                    // carry on from the parent, leaving node one level below it
+                    node = parent;
+                    continue;
+                }
+                rotate(node, parent);
+            }
+            else {
+                // zig-zag: node is an inner grandchild, rotate it up twice
+                rotate(node, parent);
+                rotate(node, grandparent);
+            }
+        }
+    }
+
+    /**
+     * Checks that an accessed value ends up at the root, and that the tree
+     * stays a valid binary search tree (order, sizes, parent references)
+     * through inserts, lookups and removals.
+     */
+    public boolean test1() {
+        var tree = new SplayTree<Integer>();
+        var random = new java.util.Random(19);
+        for (int i = 0; i < 1000; i++) {
+            int value = random.nextInt(500);
+            tree.insert(value);
+            if (tree.root.getData() != value) {
+                return false;
+            }
+        }
+        for (int i = 0; i < 100; i++) {
+            int value = random.nextInt(500);
+            boolean found = tree.contains(value);
+            if (found && tree.root.getData() != value) {
+                return false;
+            }
+        }
+        for (int i = 0; i < 300; i++) {
+            tree.remove(random.nextInt(500));
+        }
+        int previous = Integer.MIN_VALUE;
+        int index = 0;
+        for (Integer value : tree) {
+            if (value < previous || !tree.select(index++).equals(value)) {
+                return false;
+            }
+            previous = value;
+        }
+        return index == tree.size() && tree.root.getUp() == null;
+    }
+
+    /**
+     * Looks up a few hot keys many times among many cold ones: after the
+     * first accesses, hot keys are found in a handful of comparisons, where
+     * a red-black tree of the same values needs about log2(n).
+     */
+    public boolean test2() {
+        for (Mode mode : Mode.values()) {
+            var tree = new SplayTree<Integer>(mode);
+            for (int i = 0; i < 100000; i++) {
+                tree.insert((int) ((i * 2654435761L) % 100000));
+            }
+            for (int i = 0; i < 1000; i++) {
+                tree.contains(i % 5 * 1000);
+            }
+            TreeMetrics metrics = tree.enableMetrics();
+            for (int i = 0; i < 1000; i++) {
+                tree.contains(i % 5 * 1000);
+            }
+            if (metrics.getAverageComparisons() > 5) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Inserts sorted values, which makes a splay tree a chain, then looks up
+     * the deepest one: splaying it must not overflow the stack, and roughly
+     * halves the height.
+     */
+    public boolean test3() {
+        var tree = new SplayTree<Integer>(Mode.SEMI);
+        for (int i = 0; i < 100000; i++) {
+            tree.insert(i);
+        }
+        int height = tree.height();
+        tree.contains(0);
+        return height == 100000 && tree.height() < height / 2 + 2 && tree.size() == 100000;
+    }
+
+    public void main() {
+        System.out.println("Test 1 results: " + test1());
+        System.out.println("Test 2 results: " + test2());
+        System.out.println("Test 3 results: " + test3());
+    }
+}
@@ -0,0 +1,137 @@
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A RedBlackTree of Strings whose lookups do not compare the same leading
+ * characters over and over. Keys such as URLs or file paths often share
+ * long prefixes, and String.compareTo scans that prefix again at every
+ * level of the descent.
+ *
+ * Every node in the subtree a search is in lies between the nearest
+ * ancestor it went right from (lower) and the nearest one it went left from
+ * (upper), so it shares at least min(lcp(key, lower), lcp(key, upper))
+ * leading characters with the key, lcp being the length of the longest
+ * common prefix. The search keeps both lengths and starts comparing each
+ * node from their minimum, so once it has gone both left and right below
+ * the shared prefix, that prefix is never scanned again.
+ *
+ * The order is the natural order of String, which compares chars, so the
+ * tree cannot be given a comparator.
+ */
+public class StringRedBlackTree extends RedBlackTree<String> {
+
+    /**
+     * Creates an empty tree that stores every value in its own node.
+     */
+    public StringRedBlackTree() {
+        super();
+    }
+
+    /**
+     * Creates an empty tree.
+     * @param countDuplicates true to store duplicates as counts on one node
+     */
+    public StringRedBlackTree(boolean countDuplicates) {
+        super(countDuplicates);
+    }
+
+    /**
+     * @return a new empty StringRedBlackTree, for split to move values into
+     */
+    @Override
+    protected RedBlackTree<String> emptyTree() {
+        return new StringRedBlackTree(this.countDuplicates);
+    }
+
+    /**
+     * Checks whether data is stored in the tree, skipping the prefix the
+     * key is known to share with each node. With metrics enabled, lookups
+     * are made and measured the way RedBlackTree makes them.
+     * @param data the value to check for in the collection
+     * @return true if the tree contains data one or more times
+     */
+    @Override
+    public boolean contains(Comparable<String> data) {
+        if (!(data instanceof String) || this.metrics != null) {
+            return super.contains(data);
+        }
+        String key = (String) data;
+        // common prefix lengths with the nearest smaller and greater ancestors
+        int lowerPrefix = 0;
+        int upperPrefix = 0;
+        BSTNode<String> node = this.root;
+        while (node != null) {
+            String stored = node.getData();
+            int limit = Math.min(key.length(), stored.length());
+            int i = Math.min(lowerPrefix, upperPrefix);
+            while (i < limit && key.charAt(i) == stored.charAt(i)) {
+                i++;
+            }
+            // same sign as key.compareTo(stored)
+            int comparison = i < limit ? key.charAt(i) - stored.charAt(i) : key.length() - stored.length();
+            if (comparison == 0) {
+                return true;
+            }
+            if (comparison < 0) {
+                upperPrefix = i;
+                node = node.getLeft();
+            }
+            else {
+                lowerPrefix = i;
+                node = node.getRight();
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Looks up URLs that share a long prefix, present and missing ones,
+     * and checks the answers against RedBlackTree's.
+     */
+    public boolean test1() {
+        var tree = new StringRedBlackTree();
+        var plain = new RedBlackTree<String>();
+        var random = new java.util.Random(20);
+        String prefix = "https://example.com/catalogue/products/category/subcategory/item?id=";
+        List<String> keys = new ArrayList<>();
+        for (int i = 0; i < 2000; i++) {
+            String key = prefix + random.nextInt(5000) + (i % 3 == 0 ? "" : "&page=" + random.nextInt(10));
+            keys.add(key);
+            tree.insert(key);
+            plain.insert(key);
+        }
+        for (int i = 0; i < 5000; i++) {
+            String key = i % 2 == 0 ? keys.get(random.nextInt(keys.size()))
+                    : prefix + random.nextInt(5000) + "&page=" + random.nextInt(12);
+            if (tree.contains(key) != plain.contains(key)) {
+                return false;
+            }
+        }
+        return tree.contains(keys.get(0)) && !tree.contains(prefix) && !tree.contains("")
+                && !tree.contains(prefix + "9999&page=99");
+    }
+
+    /**
+     * Keys that are prefixes of each other, the empty string and chars
+     * above the ASCII range.
+     */
+    public boolean test2() {
+        var tree = new StringRedBlackTree(true);
+        String[] values = {"", "a", "ab", "abc", "abd", "b", "\u00e9", "\uffff", "ab"};
+        for (String value : values) {
+            tree.insert(value);
+        }
+        for (String value : values) {
+            if (!tree.contains(value)) {
+                return false;
+            }
+        }
+        return !tree.contains("abcd") && !tree.contains("aa") && !tree.contains("\u00e8")
+                && tree.count("ab") == 2 && tree.size() == values.length;
+    }
+
+    public void main() {
+        System.out.println("Test 1 results: " + test1());
+        System.out.println("Test 2 results: " + test2());
+    }
+}
@@ -0,0 +1,633 @@
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.random.RandomGenerator;
+
+/**
+ * A randomized balanced implementation of SortedCollection. Every node gets
+ * a random priority when it is created, and the tree is kept a binary
+ * search tree by value and a heap by priority at the same time: no node
+ * has a higher priority than its parent. The shape of the tree is then the
+ * shape a plain BST would have if the values had been inserted in order of
+ * priority, which is a random order whatever order they really arrived in,
+ * so the expected depth of every node is O(log n) even on sorted input
+ * (Seidel and Aragon, "Randomized Search Trees").
+ *
+ * Nothing but the priority is kept per node, and there is nothing to fix on
+ * the way back up:
+ *   - insert walks down until it meets a node of lower priority than the
+ *     new one, and splits that node's subtree around the new value into
+ *     the new node's two children, all in one pass from the top
+ *   - removing a node merges its two subtrees into its place, zipping the
+ *     right spine of the left one with the left spine of the right one
+ * This produces the same tree as inserting at a leaf and rotating the new
+ * node up, or rotating a removed node down to a leaf, without rewriting
+ * the links of every rotation.
+ *
+ * The priorities come from a RandomGenerator that can be passed in, by
+ * default a SplittableRandom, which needs a few arithmetic instructions per
+ * value and no synchronization.
+ */
+public class Treap<T extends Comparable<T>> extends BSTRotation<T> {
+
+    protected final RandomGenerator random;
+
+    /**
+     * Creates an empty treap that stores every value in its own node.
+     */
+    public Treap() {
+        this(new SplittableRandom());
+    }
+
+    /**
+     * Creates an empty treap.
+     * @param countDuplicates true to store duplicates as counts on one node,
+     *     see BinarySearchTree(boolean)
+     */
+    public Treap(boolean countDuplicates) {
+        this(countDuplicates, null, new SplittableRandom());
+    }
+
+    /**
+     * Creates an empty treap that stores every value in its own node.
+     * @param random the source of node priorities, seed it for trees that
+     *     take the same shape every run
+     */
+    public Treap(RandomGenerator random) {
+        this(false, null, random);
+    }
+
+    /**
+     * Creates an empty treap.
+     * @param countDuplicates true to store duplicates as counts on one node
+     * @param comparator the order to keep values in, or null for their
+     *     natural order
+     * @param random the source of node priorities
+     * @throws NullPointerException if random is null
+     */
+    public Treap(boolean countDuplicates, Comparator<? super T> comparator, RandomGenerator random)
+            throws NullPointerException {
+        super(countDuplicates, comparator);
+        if (random == null) {
+            throw new NullPointerException();
+        }
+        this.random = random;
+    }
+
+    /**
+     * Creates a TreapNode with a new random priority.
+     */
+    @Override
+    protected BSTNode<T> createNode(T data) {
+        BSTNode<T> node = reuseNode(data);
+        TreapNode<T> newNode = node != null ? (TreapNode<T>) node : new TreapNode<>(data);
+        newNode.setPriority(this.random.nextInt());
+        return newNode;
+    }
+
+    /**
+     * Inserts a new data value into the tree, at the depth its priority
+     * gives it.
+     * @param data the new value being inserted
+     * @throws NullPointerException if data argument is null
+     */
+    @Override
+    public void insert(T data) throws NullPointerException {
+        if (data == null) {
+            throw new NullPointerException();
+        }
+        long start = this.metrics == null ? 0 : System.nanoTime();
+        this.modCount++;
+        if (!this.countDuplicates || !countExisting(data)) {
+            insertTopDown((TreapNode<T>) createNode(data));
+        }
+        publish(TreeChangeFeed.Type.INSERT, data, null);
+        dispatchChanges();
+        if (this.metrics != null) {
+            this.metrics.recordInsert(System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * In counted mode, adds one to the count of the node that holds data,
+     * and to the sizes of its ancestors.
+     * @return true if data was counted, false if no node holds it
+     */
+    private boolean countExisting(T data) {
+        BSTNode<T> node = this.root;
+        while (node != null) {
+            int comparison = compare(data, node.getData());
+            if (comparison == 0) {
+                node.count++;
+                for (BSTNode<T> ancestor = node; ancestor != null; ancestor = ancestor.getUp()) {
+                    ancestor.size++;
+                }
+                updatePath(node);
+                return true;
+            }
+            node = comparison < 0 ? node.getLeft() : node.getRight();
+        }
+        return false;
+    }
+
+    /**
+     * Walks down past the nodes whose priority is at least newNode's, then
+     * puts newNode in the place of the subtree found there and splits that
+     * subtree into newNode's children.
+     */
+    private void insertTopDown(TreapNode<T> newNode) {
+        T data = newNode.getData();
+        TreapNode<T> parent = null;
+        TreapNode<T> node = (TreapNode<T>) this.root;
+        boolean right = false;
+        int comparisons = 0;
+        while (node != null && node.getPriority() >= newNode.getPriority()) {
+            // newNode ends up somewhere below node
+            node.size++;
+            comparisons++;
+            parent = node;
+            right = compare(data, node.getData()) > 0;
+            node = right ? node.getRight() : node.getLeft();
+        }
+        link(parent, right, newNode);
+        if (parent == null) {
+            this.root = newNode;
+        }
+        comparisons += split(node, data, newNode);
+        update(newNode);
+        updatePath(parent);
+        if (this.metrics != null) {
+            this.metrics.recordComparisons(comparisons);
+        }
+    }
+
+    /**
+     * Rotates each node insertAll linked in up past the nodes of lower
+     * priority above it, as an insert that works bottom-up would. The new
+     * nodes below it have not been moved yet and go along with it, and by
+     * the time the last one is in place the tree is a heap again.
+     */
+    @Override
+    protected void rebalanceInserted(List<BSTNode<T>> added) {
+        for (BSTNode<T> node : added) {
+            TreapNode<T> newNode = (TreapNode<T>) node;
+            while (newNode.getUp() != null
+                    && newNode.getUp().getPriority() < newNode.getPriority()) {
+                rotate(newNode, newNode.getUp());
+            }
+        }
+    }
+
+    /**
+     * Splits a subtree into the values less than key, which become the left
+     * subtree of header, and the others, which become its right subtree.
+     * The search path for key is cut into two spines, the nodes less than
+     * key chained through their right children and the others through their
+     * left children, and the subtrees hanging off the path stay where they
+     * are. Sizes are updated from the bottom of each spine up to, but not
+     * including, header.
+     * @param subtree the root of the subtree to split, its links are reused
+     * @param key the value to split around
+     * @param header the node that takes the two parts as its children
+     * @return the number of comparisons made
+     */
+    private int split(BSTNode<T> subtree, Comparable<T> key, BSTNode<T> header) {
+        // the last node of each part, whose inner child is still open
+        BSTNode<T> less = header;
+        BSTNode<T> greater = header;
+        BSTNode<T> node = subtree;
+        int comparisons = 0;
+        while (node != null) {
+            comparisons++;
+            if (compare(key, node.getData()) > 0) {
+                if (less == header) {
+                    header.setLeft(node);
+                }
+                else {
+                    less.setRight(node);
+                }
+                node.setUp(less);
+                less = node;
+                node = node.getRight();
+            }
+            else {
+                if (greater == header) {
+                    header.setRight(node);
+                }
+                else {
+                    greater.setLeft(node);
+                }
+                node.setUp(greater);
+                greater = node;
+                node = node.getLeft();
+            }
+        }
+        if (less == header) {
+            header.setLeft(null);
+        }
+        else {
+            less.setRight(null);
+        }
+        if (greater == header) {
+            header.setRight(null);
+        }
+        else {
+            greater.setLeft(null);
+        }
+        for (BSTNode<T> spine = less; spine != header; spine = spine.getUp()) {
+            update(spine);
+        }
+        for (BSTNode<T> spine = greater; spine != header; spine = spine.getUp()) {
+            update(spine);
+        }
+        return comparisons;
+    }
+
+    /**
+     * Merges two subtrees, every value of less coming before every value of
+     * greater, into one whose root is whichever of their roots has the
+     * higher priority. Walks down the right spine of less and the left spine
+     * of greater, always taking the node of higher priority next, then
+     * updates the sizes on the way back up.
+     * @return the root of the merged subtree, with no parent, or null
+     */
+    private BSTNode<T> merge(BSTNode<T> less, BSTNode<T> greater) {
+        BSTNode<T> merged = null;
+        // the last node taken, and whether the next one goes on its right
+        BSTNode<T> last = null;
+        boolean right = false;
+        while (less != null && greater != null) {
+            BSTNode<T> next;
+            boolean takeLess = ((TreapNode<T>) less).getPriority() >= ((TreapNode<T>) greater).getPriority();
+            if (takeLess) {
+                // less keeps its left subtree, the rest is merged into its right one
+                next = less;
+                less = less.getRight();
+            }
+            else {
+                next = greater;
+                greater = greater.getLeft();
+            }
+            link(last, right, next);
+            if (last == null) {
+                merged = next;
+            }
+            last = next;
+            right = takeLess;
+        }
+        BSTNode<T> rest = less != null ? less : greater;
+        link(last, right, rest);
+        if (last == null) {
+            merged = rest;
+        }
+        for (BSTNode<T> node = last; node != null; node = node.getUp()) {
+            update(node);
+        }
+        if (merged != null) {
+            merged.setUp(null);
+        }
+        return merged;
+    }
+
+    /**
+     * Makes child the right (or left) child of parent, when there is a parent.
+     */
+    private static <T> void link(BSTNode<T> parent, boolean right, BSTNode<T> child) {
+        if (parent != null) {
+            if (right) {
+                parent.setRight(child);
+            }
+            else {
+                parent.setLeft(child);
+            }
+        }
+        if (child != null) {
+            child.setUp(parent);
+        }
+    }
+
+    /**
+     * Unlinks node from the tree by merging its two subtrees into its place.
+     * Subtree sizes are updated on the path up to the root, and node goes
+     * into the node pool, if there is one.
+     * @param node the node to remove, with all its duplicates
+     */
+    @Override
+    protected void removeNode(BSTNode<T> node) {
+        this.modCount++;
+        BSTNode<T> parent = node.getUp();
+        boolean right = parent != null && parent.getRight() == node;
+        BSTNode<T> merged = merge(node.getLeft(), node.getRight());
+        link(parent, right, merged);
+        if (parent == null) {
+            this.root = merged;
+        }
+        node.setUp(null);
+        node.setLeft(null);
+        node.setRight(null);
+        for (BSTNode<T> ancestor = parent; ancestor != null; ancestor = ancestor.getUp()) {
+            update(ancestor);
+        }
+        recycle(node);
+    }
+
+    /**
+     * Removes every value in [from, to) by splitting the tree at from and at
+     * to and merging the outer two parts, in expected O(log n) time. The
+     * BinarySearchTree version would hang one part below the other and
+     * break the heap order.
+     * @param from the least value to remove, or null for no lower bound
+     * @param to the value above the greatest one to remove, or null for no
+     *     upper bound
+     * @return the number of values removed
+     */
+    @Override
+    public int removeRange(Comparable<T> from, Comparable<T> to) {
+        if (this.root == null) {
+            return 0;
+        }
+        this.modCount++;
+        BSTNode<T> header = new TreapNode<>(null);
+        BSTNode<T> below = null;
+        BSTNode<T> rest = this.root;
+        if (from != null) {
+            split(rest, from, header);
+            below = header.getLeft();
+            rest = header.getRight();
+        }
+        BSTNode<T> above = null;
+        if (to != null) {
+            split(rest, to, header);
+            rest = header.getLeft();
+            above = header.getRight();
+        }
+        this.root = merge(below, above);
+        publish(TreeChangeFeed.Type.BULK, null, null);
+        dispatchChanges();
+        return BSTNode.sizeOf(rest);
+    }
+
+    /**
+     * Hands the random priorities the nodes of a bulk loaded, perfectly
+     * balanced tree were created with out again, highest first, in level
+     * order, so the balanced tree is also a heap.
+     */
+    @Override
+    protected void afterBulkLoad() {
+        List<TreapNode<T>> levelOrder = new ArrayList<>();
+        ArrayDeque<TreapNode<T>> queue = new ArrayDeque<>();
+        if (this.root != null) {
+            queue.add((TreapNode<T>) this.root);
+        }
+        while (!queue.isEmpty()) {
+            TreapNode<T> node = queue.poll();
+            levelOrder.add(node);
+            if (node.getLeft() != null) {
+                queue.add(node.getLeft());
+            }
+            if (node.getRight() != null) {
+                queue.add(node.getRight());
+            }
+        }
+        int[] priorities = new int[levelOrder.size()];
+        for (int i = 0; i < priorities.length; i++) {
+            priorities[i] = levelOrder.get(i).getPriority();
+        }
+        Arrays.sort(priorities);
+        for (int i = 0; i < priorities.length; i++) {
+            levelOrder.get(i).setPriority(priorities[priorities.length - 1 - i]);
+        }
+    }
+
+    /**
+     * Walks the whole tree and checks the binary search tree ordering, the
+     * parent references, the subtree sizes, and the heap order of the
+     * priorities.
+     * @throws IllegalStateException describing the first violation found
+     */
+    public void validate() throws IllegalStateException {
+        if (this.root != null && this.root.getUp() != null) {
+            throw new IllegalStateException("root has a parent");
+        }
+        validate((TreapNode<T>) this.root);
+    }
+
+    private void validate(TreapNode<T> node) {
+        if (node == null) {
+            return;
+        }
+        TreapNode<T> left = node.getLeft();
+        TreapNode<T> right = node.getRight();
+        if (left != null) {
+            if (left.getUp() != node) {
+                throw new IllegalStateException("broken parent reference below " + node);
+            }
+            if (compare(left.getData(), node.getData()) > 0) {
+                throw new IllegalStateException(left + " is left of " + node);
+            }
+            if (left.getPriority() > node.getPriority()) {
+                throw new IllegalStateException(left + " has a higher priority than its parent");
+            }
+        }
+        if (right != null) {
+            if (right.getUp() != node) {
+                throw new IllegalStateException("broken parent reference below " + node);
+            }
+            if (compare(right.getData(), node.getData()) < 0) {
+                throw new IllegalStateException(right + " is right of " + node);
+            }
+            if (right.getPriority() > node.getPriority()) {
+                throw new IllegalStateException(right + " has a higher priority than its parent");
+            }
+        }
+        if (node.getCount() < 1 || node.getSize() != node.getCount() + BSTNode.sizeOf(left) + BSTNode.sizeOf(right)) {
+            throw new IllegalStateException("wrong subtree size at " + node);
+        }
+        validate(left);
+        validate(right);
+    }
+
+    /**
+     * Inserts and removes random values, with duplicates, and checks the
+     * tree against a sorted list and its own invariants along the way.
+     */
+    public boolean test1() {
+        var tree = new Treap<Integer>(new SplittableRandom(24));
+        var random = new java.util.Random(24);
+        List<Integer> expected = new ArrayList<>();
+        for (int round = 0; round < 20; round++) {
+            for (int i = 0; i < 200; i++) {
+                int value = random.nextInt(300);
+                tree.insert(value);
+                int index = java.util.Collections.binarySearch(expected, value);
+                expected.add(index < 0 ? -index - 1 : index, value);
+            }
+            for (int i = 0; i < 150; i++) {
+                Integer value = random.nextInt(300);
+                if (tree.remove(value) != expected.remove(value)) {
+                    return false;
+                }
+            }
+            tree.validate();
+            List<Integer> actual = new ArrayList<>();
+            tree.forEach(actual::add);
+            if (!actual.equals(expected) || tree.size() != expected.size()
+                    || (!expected.isEmpty() && !tree.select(expected.size() / 2).equals(expected.get(expected.size() / 2)))) {
+                return false;
+            }
+        }
+        return tree.removeMin().equals(expected.get(0)) && tree.removeMax().equals(expected.get(expected.size() - 1));
+    }
+
+    /**
+     * Inserts sorted values, which would turn a plain BST into a linked
+     * list: the treap stays about as shallow as on random input.
+     */
+    public boolean test2() {
+        var tree = new Treap<Integer>(new SplittableRandom(24));
+        for (int i = 0; i < 100000; i++) {
+            tree.insert(i);
+        }
+        tree.validate();
+        // the expected height is about 3 log2(n) = 50
+        return tree.shape().height < 80 && tree.size() == 100000 && tree.contains(99999) && !tree.contains(100000);
+    }
+
+    /**
+     * Counted duplicates, removeRange, bulkLoad and the node pool all keep
+     * the tree a valid treap.
+     */
+    public boolean test3() {
+        var tree = new Treap<Integer>(true, null, new SplittableRandom(24));
+        for (int i = 0; i < 1000; i++) {
+            tree.insert(i % 100);
+        }
+        tree.validate();
+        if (tree.size() != 1000 || tree.count(42) != 10 || tree.removeRange(10, 20) != 100
+                || tree.removeRange(90, null) != 100 || tree.removeRange(null, 5) != 50) {
+            return false;
+        }
+        tree.validate();
+        if (tree.size() != 750 || tree.contains(15) || !tree.contains(20) || tree.rank(50) != 350) {
+            return false;
+        }
+        List<Integer> values = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            values.add(i / 2);
+        }
+        tree.bulkLoad(values.iterator(), values.size());
+        tree.validate();
+        if (tree.size() != 1000 || tree.count(7) != 2) {
+            return false;
+        }
+        tree.enableNodePool(1000);
+        tree.clear();
+        for (int i = 0; i < 500; i++) {
+            tree.insert(i);
+        }
+        tree.validate();
+        return tree.size() == 500 && tree.pooledNodes() == 0;
+    }
+
+    /**
+     * The priorities really come from the generator: one that always
+     * returns the same value makes every node sink to a leaf, like in a
+     * plain BST, and two treaps with equally seeded generators take the
+     * same shape.
+     */
+    public boolean test4() {
+        var constant = new Treap<Integer>(() -> 42L);
+        for (int i = 0; i < 100; i++) {
+            constant.insert(i);
+        }
+        var first = new Treap<Integer>(new SplittableRandom(5));
+        var second = new Treap<Integer>(new SplittableRandom(5));
+        for (int i = 0; i < 1000; i++) {
+            first.insert(i);
+            second.insert(i);
+        }
+        return constant.shape().height == 100 && first.shape().height == second.shape().height
+                && first.root.getData().equals(second.root.getData());
+    }
+
+    /**
+     * Keeps the sum of the values as an aggregate through the splits and
+     * merges of inserts, removals and range removals.
+     */
+    public boolean test5() {
+        var tree = new Treap<Integer>(true, null, new SplittableRandom(25));
+        TreeAggregate<Integer, Long> sum = TreeAggregate.sum(Integer::longValue);
+        tree.enableAggregate(sum);
+        var random = new java.util.Random(25);
+        for (int i = 0; i < 2000; i++) {
+            tree.insert(random.nextInt(500));
+            tree.remove(random.nextInt(500));
+        }
+        tree.removeRange(100, 150);
+        for (int i = 0; i < 100; i++) {
+            int from = random.nextInt(500);
+            int to = from + random.nextInt(100);
+            long expected = 0;
+            for (int value : tree) {
+                expected += value >= from && value < to ? value : 0;
+            }
+            Long actual = tree.aggregate(sum, from, to);
+            if (actual == null ? expected != 0 : actual != expected) {
+                return false;
+            }
+        }
+        tree.validate();
+        return true;
+    }
+
+    /**
+     * Inserts small batches with insertAll, whose nodes are linked in as
+     * in a plain BST and then rotated up: the tree must be a heap by
+     * priority again, with the right sizes and sums, in both duplicate
+     * modes.
+     */
+    public boolean test6() {
+        var random = new java.util.Random(26);
+        TreeAggregate<Integer, Long> sum = TreeAggregate.sum(Integer::longValue);
+        for (boolean counted : new boolean[] {false, true}) {
+            var tree = new Treap<Integer>(counted, null, new SplittableRandom(26));
+            tree.enableAggregate(sum);
+            List<Integer> expected = new ArrayList<>();
+            for (int size : new int[] {2000, 1, 30, 100, 500}) {
+                List<Integer> batch = new ArrayList<>();
+                for (int i = 0; i < size; i++) {
+                    batch.add(random.nextInt(3000));
+                }
+                tree.insertAll(batch);
+                expected.addAll(batch);
+                tree.validate();
+            }
+            expected.sort(null);
+            long total = 0;
+            for (int value : expected) {
+                total += value;
+            }
+            for (int i = 0; i < expected.size(); i += 97) {
+                if (!tree.select(i).equals(expected.get(i))) {
+                    return false;
+                }
+            }
+            if (tree.size() != expected.size() || tree.aggregate(sum, null, null) != total) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public void main() {
+        System.out.println("Test 1 results: " + test1());
+        System.out.println("Test 2 results: " + test2());
+        System.out.println("Test 3 results: " + test3());
+        System.out.println("Test 4 results: " + test4());
+        System.out.println("Test 5 results: " + test5());
+        System.out.println("Test 6 results: " + test6());
+    }
+}
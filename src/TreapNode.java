@@ -0,0 +1,49 @@
+/**
+ * This class represents a node for a Treap. On top of everything a BSTNode
+ * stores, it keeps a random priority: the tree keeps every node's priority
+ * at least as high as those of its children.
+ */
+public class TreapNode<T> extends BSTNode<T> {
+
+    // random, drawn by the tree when the node is created or reused
+    protected int priority;
+
+    /**
+     * Constructor that creates a new node with the value data and priority 0.
+     * @param data the value the new node stores
+     */
+    public TreapNode(T data) { super(data); }
+
+    /**
+     * @return the priority of this node, higher nodes are nearer the root
+     */
+    public int getPriority() { return this.priority; }
+
+    /**
+     * Gives this node a new priority.
+     * @param priority the new priority of this node
+     */
+    public void setPriority(int priority) { this.priority = priority; }
+
+    /**
+     * @return the reference to the parent of this node,
+     * or null if it has no parent
+     */
+    @Override
+    public TreapNode<T> getUp() { return (TreapNode<T>) this.up; }
+
+    /**
+     * @return the reference to the left child of this node,
+     * or null if this node has no left child
+     */
+    @Override
+    public TreapNode<T> getLeft() { return (TreapNode<T>) this.left; }
+
+    /**
+     * @return the reference to the right child of this node,
+     * or null if this node has no right child
+     */
+    @Override
+    public TreapNode<T> getRight() { return (TreapNode<T>) this.right; }
+
+}
@@ -0,0 +1,85 @@
+import java.util.function.ToLongFunction;
+
+/**
+ * A value computed from all the values of a subtree, such as their sum or
+ * their maximum, that a BinarySearchTree keeps in every node once
+ * enableAggregate() is called on it. Each node's aggregate is combined from
+ * its children's and its own whenever the subtree below it changes, so the
+ * aggregate of any range of values can be put together from O(log n) nodes
+ * (see BinarySearchTree.aggregate).
+ *
+ * combine must be associative, and the aggregates of a tree are combined
+ * from several threads at once by the parallel set operations of
+ * RedBlackTree, so of and combine must not keep state.
+ */
+public interface TreeAggregate<T, A> {
+
+    /**
+     * @param value a value stored in the tree
+     * @param count the number of times it is stored, more than one only in
+     *     a tree that counts duplicates
+     * @return the aggregate of count copies of value
+     */
+    A of(T value, int count);
+
+    /**
+     * @param left the aggregate of some values
+     * @param right the aggregate of values that all come after them
+     * @return the aggregate of both, in that order
+     */
+    A combine(A left, A right);
+
+    /**
+     * @param weight maps each value to the number to add up
+     * @return the sum of the weights of the values, duplicates included
+     */
+    public static <T> TreeAggregate<T, Long> sum(ToLongFunction<? super T> weight) {
+        return new TreeAggregate<T, Long>() {
+            @Override
+            public Long of(T value, int count) {
+                return weight.applyAsLong(value) * count;
+            }
+
+            @Override
+            public Long combine(Long left, Long right) {
+                return left + right;
+            }
+        };
+    }
+
+    /**
+     * @param key maps each value to the number to take the minimum of
+     * @return the least key of the values
+     */
+    public static <T> TreeAggregate<T, Long> min(ToLongFunction<? super T> key) {
+        return new TreeAggregate<T, Long>() {
+            @Override
+            public Long of(T value, int count) {
+                return key.applyAsLong(value);
+            }
+
+            @Override
+            public Long combine(Long left, Long right) {
+                return Math.min(left, right);
+            }
+        };
+    }
+
+    /**
+     * @param key maps each value to the number to take the maximum of
+     * @return the greatest key of the values
+     */
+    public static <T> TreeAggregate<T, Long> max(ToLongFunction<? super T> key) {
+        return new TreeAggregate<T, Long>() {
+            @Override
+            public Long of(T value, int count) {
+                return key.applyAsLong(value);
+            }
+
+            @Override
+            public Long combine(Long left, Long right) {
+                return Math.max(left, right);
+            }
+        };
+    }
+}
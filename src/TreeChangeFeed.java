@@ -0,0 +1,329 @@
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+/**
+ * The changes made to one BinarySearchTree, for listeners that keep
+ * something derived from the tree (counts, top-k lists, caches) up to date
+ * without walking the whole tree after every batch of updates. A tree only
+ * records changes after subscribe() is called on it; until then its feed is
+ * null and every hook costs a single null check.
+ *
+ * Events are recorded by the thread that changes the tree, into one buffer
+ * per subscription. Only once an operation has finished and the tree is
+ * consistent again does the tree call dispatch(), which cuts the full
+ * batches off the buffer and hands them to the subscription's executor.
+ * The listener is called on the executor with one batch at a time, in the
+ * order the changes were made, never for two batches at once. A buffer
+ * that is not full yet is delivered by BinarySearchTree.flushChanges() or
+ * unsubscribe().
+ *
+ * Delivery never fails an operation on the tree: when the executor rejects
+ * the delivery or the listener throws, the batch stays queued, the failure
+ * goes to the subscription's error handler, and the next dispatch tries
+ * the batch again. After MAX_FAILURES failed deliveries in a row the
+ * subscription is dropped, with its queued batches, so a listener that
+ * always throws neither floods the error handler nor holds on to every
+ * change made to the tree from then on.
+ */
+public class TreeChangeFeed<T> {
+
+    /**
+     * The number of deliveries in a row that may fail before a subscription
+     * is dropped.
+     */
+    public static final int MAX_FAILURES = 16;
+
+    private static final System.Logger LOGGER = System.getLogger(TreeChangeFeed.class.getName());
+
+    /**
+     * What happened to the tree.
+     */
+    public enum Type {
+        // one occurrence of value was added
+        INSERT,
+        // one occurrence of value was removed
+        REMOVE,
+        // the node of value was rotated up over the node of other; the
+        // values did not change, only the shape of the tree
+        ROTATE,
+        // every value was removed
+        CLEAR,
+        // many values were added or removed at once (bulk loads, range
+        // removals, set operations), rebuild whatever depends on them
+        BULK
+    }
+
+    /**
+     * One change, of a type and the values it concerns.
+     */
+    public static final class Event<T> {
+        private final Type type;
+        private final T value;
+        private final T other;
+
+        public Event(Type type, T value, T other) {
+            this.type = type;
+            this.value = value;
+            this.other = other;
+        }
+
+        public Type getType() {
+            return this.type;
+        }
+
+        /**
+         * @return the value inserted, removed or rotated up, or null for
+         *     CLEAR and BULK
+         */
+        public T getValue() {
+            return this.value;
+        }
+
+        /**
+         * @return the value rotated down, or null for the other types
+         */
+        public T getOther() {
+            return this.other;
+        }
+
+        @Override
+        public String toString() {
+            return this.type + (this.value == null ? "" : " " + this.value)
+                    + (this.other == null ? "" : " over " + this.other);
+        }
+    }
+
+    /**
+     * Receives the changes made to a tree, a batch at a time.
+     */
+    @FunctionalInterface
+    public interface Listener<T> {
+        /**
+         * @param events the changes, oldest first, which the listener may keep
+         */
+        void onChanges(List<Event<T>> events);
+    }
+
+    /**
+     * A listener, the executor it is called on, and the changes recorded
+     * for it that it has not been given yet.
+     */
+    public static final class Subscription<T> {
+        private final Listener<T> listener;
+        private final Executor executor;
+        private final int batchSize;
+        private final Consumer<? super Throwable> errorHandler;
+        // written only by the thread that changes the tree
+        private final List<Event<T>> buffer = new ArrayList<>();
+        // batches waiting for the executor, the head is delivered next
+        private final ConcurrentLinkedQueue<List<Event<T>>> ready = new ConcurrentLinkedQueue<>();
+        // true while a delivery task is submitted or running
+        private final AtomicBoolean scheduled = new AtomicBoolean();
+        // deliveries that failed since the last one that did not
+        private final AtomicInteger failures = new AtomicInteger();
+        private volatile boolean dropped = false;
+
+        private Subscription(Listener<T> listener, Executor executor, int batchSize,
+                Consumer<? super Throwable> errorHandler) {
+            this.listener = listener;
+            this.executor = executor;
+            this.batchSize = batchSize;
+            this.errorHandler = errorHandler;
+        }
+
+        /**
+         * @return true once the subscription was dropped for failing
+         *     MAX_FAILURES times in a row, after which its listener is not
+         *     called again
+         */
+        public boolean isDropped() {
+            return this.dropped;
+        }
+
+        /**
+         * Cuts the buffer into batches for the executor: the full ones, or
+         * with all, the last partial one too. Batches that failed before are
+         * tried again.
+         */
+        private void dispatch(boolean all) {
+            if (this.dropped) {
+                this.buffer.clear();
+                this.ready.clear();
+                return;
+            }
+            int size = this.buffer.size();
+            int start = 0;
+            while (size - start >= this.batchSize || (all && start < size)) {
+                int end = Math.min(size, start + this.batchSize);
+                this.ready.add(Collections.unmodifiableList(new ArrayList<>(this.buffer.subList(start, end))));
+                start = end;
+            }
+            this.buffer.subList(0, start).clear();
+            if (!this.ready.isEmpty()) {
+                schedule();
+            }
+        }
+
+        private void schedule() {
+            if (this.scheduled.compareAndSet(false, true)) {
+                try {
+                    this.executor.execute(this::deliver);
+                }
+                catch (RuntimeException e) {
+                    // rejected: the batches stay queued for the next dispatch
+                    this.scheduled.set(false);
+                    report(e);
+                }
+            }
+        }
+
+        private void deliver() {
+            boolean failed = false;
+            try {
+                List<Event<T>> batch;
+                while (!failed && !this.dropped && (batch = this.ready.peek()) != null) {
+                    try {
+                        this.listener.onChanges(batch);
+                        this.ready.poll();
+                        this.failures.set(0);
+                    }
+                    catch (RuntimeException | Error e) {
+                        // the batch stays at the head, to be given again
+                        failed = true;
+                        report(e);
+                    }
+                }
+            }
+            finally {
+                this.scheduled.set(false);
+            }
+            // a batch queued after the last peek but before scheduled was
+            // cleared would otherwise wait for the next dispatch
+            if (!failed && !this.ready.isEmpty()) {
+                schedule();
+            }
+        }
+
+        /**
+         * Tells the error handler about a failed delivery, and drops the
+         * subscription when it was the last one allowed, telling the
+         * handler about that too.
+         */
+        private void report(Throwable failure) {
+            handle(failure);
+            if (this.failures.incrementAndGet() == MAX_FAILURES) {
+                this.dropped = true;
+                this.ready.clear();
+                handle(new IllegalStateException("dropped after " + MAX_FAILURES + " failed deliveries", failure));
+            }
+        }
+
+        private void handle(Throwable failure) {
+            try {
+                this.errorHandler.accept(failure);
+            }
+            catch (RuntimeException e) {
+                // a failing handler must not reach the tree either
+            }
+        }
+    }
+
+    private final List<Subscription<T>> subscriptions = new ArrayList<>();
+
+    /**
+     * The error handler of subscriptions that do not have their own: logs
+     * the failure as a warning with the platform logger of this class.
+     * @param failure an exception a listener threw or an executor's
+     *     rejection
+     */
+    public static void log(Throwable failure) {
+        LOGGER.log(System.Logger.Level.WARNING, "delivering tree changes failed", failure);
+    }
+
+    /**
+     * Adds a listener to the feed.
+     * @param listener called with every batch of changes
+     * @param executor runs the listener, Runnable::run to call it right
+     *     away on the thread that changes the tree
+     * @param batchSize the number of changes per batch, at least 1
+     * @param errorHandler told about listener failures and rejected
+     *     deliveries
+     * @return the subscription, for unsubscribe
+     * @throws IllegalArgumentException if batchSize is less than 1
+     * @throws NullPointerException if listener, executor or errorHandler is null
+     */
+    public Subscription<T> subscribe(Listener<T> listener, Executor executor, int batchSize,
+            Consumer<? super Throwable> errorHandler) throws IllegalArgumentException, NullPointerException {
+        if (listener == null || executor == null || errorHandler == null) {
+            throw new NullPointerException();
+        }
+        if (batchSize < 1) {
+            throw new IllegalArgumentException("batch size must be positive: " + batchSize);
+        }
+        Subscription<T> subscription = new Subscription<>(listener, executor, batchSize, errorHandler);
+        this.subscriptions.add(subscription);
+        return subscription;
+    }
+
+    /**
+     * Delivers what is buffered for a subscription and removes it.
+     * @return true if the subscription was part of this feed
+     */
+    public boolean unsubscribe(Subscription<T> subscription) {
+        if (!this.subscriptions.remove(subscription)) {
+            return false;
+        }
+        subscription.dispatch(true);
+        return true;
+    }
+
+    /**
+     * @return true if nothing is subscribed to the feed
+     */
+    public boolean isEmpty() {
+        return this.subscriptions.isEmpty();
+    }
+
+    /**
+     * Records a change for every subscription, without delivering it yet:
+     * the tree may be halfway through an operation.
+     */
+    public void publish(Type type, T value, T other) {
+        Event<T> event = new Event<>(type, value, other);
+        for (Subscription<T> subscription : this.subscriptions) {
+            if (!subscription.dropped) {
+                subscription.buffer.add(event);
+            }
+        }
+    }
+
+    /**
+     * Hands the full batches to the executors, and removes the dropped
+     * subscriptions. The tree calls this at the end of every operation,
+     * when it is consistent again.
+     */
+    public void dispatch() {
+        dispatch(false);
+    }
+
+    /**
+     * Hands every buffered change to the executors, without waiting for
+     * the batches to fill up.
+     */
+    public void flush() {
+        dispatch(true);
+    }
+
+    private void dispatch(boolean all) {
+        for (Subscription<T> subscription : this.subscriptions) {
+            subscription.dispatch(all);
+        }
+        this.subscriptions.removeIf(Subscription::isDropped);
+    }
+}
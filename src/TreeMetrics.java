@@ -0,0 +1,347 @@
+import java.lang.management.ManagementFactory;
+import java.util.ArrayDeque;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+
+/**
+ * Operation counters, latency histograms and shape statistics for one
+ * BinarySearchTree. A tree only collects metrics after enableMetrics() is
+ * called on it; until then its metrics reference is null and every hook
+ * costs a single null check. The counters are LongAdders and the
+ * histograms atomic arrays, so a ConcurrentRedBlackTree can record from
+ * many threads at once.
+ *
+ * The numbers can be read directly, or through JMX after register().
+ * The shape statistics are only registered when asked for, since they walk
+ * the whole tree; a Shape is kept until the tree changes, so one poll of
+ * all of them walks it once. Only a ConcurrentRedBlackTree can be walked
+ * while another thread changes it. For any other tree, a JMX thread that
+ * reads the shape while the tree is being changed can see nodes half
+ * relinked, count them wrongly or never finish, so register the shape only
+ * for trees that are not changed while monitoring tools are connected.
+ */
+public class TreeMetrics implements TreeMetricsMBean, TreeShapeMBean {
+
+    /**
+     * Counts durations in power-of-two buckets: bucket b holds durations
+     * of at least 2^(b-1) and less than 2^b nanoseconds (bucket 0 holds
+     * zero). That is coarse, but recording is one increment and a latency
+     * spike still stands out by orders of magnitude.
+     */
+    public static class LatencyHistogram {
+        private final AtomicLongArray buckets = new AtomicLongArray(64);
+
+        public void record(long nanos) {
+            this.buckets.incrementAndGet(64 - Long.numberOfLeadingZeros(Math.max(0, nanos)));
+        }
+
+        /**
+         * @return the number of durations recorded
+         */
+        public long count() {
+            long count = 0;
+            for (int b = 0; b < 64; b++) {
+                count += this.buckets.get(b);
+            }
+            return count;
+        }
+
+        /**
+         * @param fraction between 0 and 1, 0.99 for the 99th percentile
+         * @return an upper bound of the duration that fraction of the
+         *     recorded durations did not exceed, or 0 if none were recorded
+         */
+        public long percentile(double fraction) {
+            long count = count();
+            long needed = (long) Math.ceil(fraction * count);
+            long seen = 0;
+            for (int b = 0; b < 64; b++) {
+                seen += this.buckets.get(b);
+                if (seen >= needed && seen > 0) {
+                    return b == 0 ? 0 : (1L << b) - 1;
+                }
+            }
+            return 0;
+        }
+
+        private void reset() {
+            for (int b = 0; b < 64; b++) {
+                this.buckets.set(b, 0);
+            }
+        }
+    }
+
+    /**
+     * The shape of a tree at one point in time.
+     */
+    public static class Shape {
+        // number of nodes, which is less than the size when duplicates are counted
+        public final int nodes;
+        // number of nodes on the longest path from the root to a leaf
+        public final int height;
+        // mean number of nodes from the root to a node, the root being 1
+        public final double averageDepth;
+
+        public Shape(int nodes, int height, double averageDepth) {
+            this.nodes = nodes;
+            this.height = height;
+            this.averageDepth = averageDepth;
+        }
+
+        /**
+         * @return the height of a perfectly balanced tree with as many nodes
+         */
+        public int minimumHeight() {
+            return 32 - Integer.numberOfLeadingZeros(this.nodes);
+        }
+
+        /**
+         * @return height divided by the minimum height: 1 for a perfectly
+         *     balanced tree, at most about 2 for a red-black tree, and close
+         *     to nodes / log2(nodes) for a degenerate one
+         */
+        public double balanceFactor() {
+            return this.nodes == 0 ? 1 : (double) this.height / minimumHeight();
+        }
+
+        @Override
+        public String toString() {
+            return "nodes=" + this.nodes + ", height=" + this.height + ", averageDepth="
+                    + String.format("%.2f", this.averageDepth) + ", balanceFactor="
+                    + String.format("%.2f", balanceFactor());
+        }
+    }
+
+    private final BinarySearchTree<?> tree;
+    private final LongAdder inserts = new LongAdder();
+    private final LongAdder lookups = new LongAdder();
+    private final LongAdder comparisons = new LongAdder();
+    private final LongAdder rotations = new LongAdder();
+    private final LatencyHistogram insertLatency = new LatencyHistogram();
+    private final LatencyHistogram lookupLatency = new LatencyHistogram();
+    private ObjectName registeredName;
+    private ObjectName registeredShapeName;
+    // the last shape measured, and the tree's modCount when it was
+    private Shape shape;
+    private int shapeModCount;
+
+    public TreeMetrics(BinarySearchTree<?> tree) {
+        this.tree = tree;
+    }
+
+    /**
+     * Measures the shape of a tree level by level, holding one level of
+     * nodes at a time, so even a degenerate tree cannot overflow the stack.
+     * @param root the root of the tree, or null for an empty tree
+     */
+    public static Shape measure(BSTNode<?> root) {
+        int nodes = 0;
+        int height = 0;
+        long depthSum = 0;
+        ArrayDeque<BSTNode<?>> level = new ArrayDeque<>();
+        if (root != null) {
+            level.add(root);
+        }
+        while (!level.isEmpty()) {
+            height++;
+            for (int remaining = level.size(); remaining > 0; remaining--) {
+                BSTNode<?> node = level.poll();
+                nodes++;
+                depthSum += height;
+                if (node.getLeft() != null) {
+                    level.add(node.getLeft());
+                }
+                if (node.getRight() != null) {
+                    level.add(node.getRight());
+                }
+            }
+        }
+        return new Shape(nodes, height, nodes == 0 ? 0 : (double) depthSum / nodes);
+    }
+
+    void recordInsert(long nanos) {
+        this.inserts.increment();
+        this.insertLatency.record(nanos);
+    }
+
+    void recordLookup(long nanos, int comparisons) {
+        this.lookups.increment();
+        this.comparisons.add(comparisons);
+        this.lookupLatency.record(nanos);
+    }
+
+    void recordComparisons(int comparisons) {
+        this.comparisons.add(comparisons);
+    }
+
+    void recordRotation() {
+        this.rotations.increment();
+    }
+
+    public LatencyHistogram getInsertLatency() {
+        return this.insertLatency;
+    }
+
+    public LatencyHistogram getLookupLatency() {
+        return this.lookupLatency;
+    }
+
+    /**
+     * @return the current shape of the tree, measured again only when the
+     *     tree changed since the last call
+     */
+    public synchronized Shape shape() {
+        int modCount = this.tree.modCount;
+        if (this.shape == null || modCount != this.shapeModCount) {
+            this.shape = this.tree.shape();
+            this.shapeModCount = modCount;
+        }
+        return this.shape;
+    }
+
+    /**
+     * Registers these metrics with the platform MBean server, as
+     * CS400:type=TreeMetrics,name=name, without the shape statistics.
+     * @param name the name the tree is shown under
+     * @throws JMException if the name is taken or not valid
+     */
+    public void register(String name) throws JMException {
+        register(name, false);
+    }
+
+    /**
+     * Registers these metrics with the platform MBean server, as
+     * CS400:type=TreeMetrics,name=name, and the shape statistics as
+     * CS400:type=TreeShape,name=name if asked for. See the class comment for
+     * the trees whose shape can be read safely.
+     * @param name the name the tree is shown under
+     * @param shape true to register the shape statistics too
+     * @throws JMException if the name is taken or not valid
+     */
+    public void register(String name, boolean shape) throws JMException {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName objectName = new ObjectName("CS400:type=TreeMetrics,name=" + ObjectName.quote(name));
+        server.registerMBean(this, objectName);
+        this.registeredName = objectName;
+        if (shape) {
+            ObjectName shapeName = new ObjectName("CS400:type=TreeShape,name=" + ObjectName.quote(name));
+            server.registerMBean(new StandardMBean(this, TreeShapeMBean.class), shapeName);
+            this.registeredShapeName = shapeName;
+        }
+    }
+
+    /**
+     * Removes these metrics from the platform MBean server, if registered.
+     * @throws JMException if they were registered but cannot be removed
+     */
+    public void unregister() throws JMException {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        if (this.registeredShapeName != null) {
+            server.unregisterMBean(this.registeredShapeName);
+            this.registeredShapeName = null;
+        }
+        if (this.registeredName != null) {
+            server.unregisterMBean(this.registeredName);
+            this.registeredName = null;
+        }
+    }
+
+    @Override
+    public long getInserts() {
+        return this.inserts.sum();
+    }
+
+    @Override
+    public long getLookups() {
+        return this.lookups.sum();
+    }
+
+    @Override
+    public long getComparisons() {
+        return this.comparisons.sum();
+    }
+
+    /**
+     * @return the mean number of comparisons per insert or lookup
+     */
+    @Override
+    public double getAverageComparisons() {
+        long operations = getInserts() + getLookups();
+        return operations == 0 ? 0 : (double) getComparisons() / operations;
+    }
+
+    @Override
+    public long getRotations() {
+        return this.rotations.sum();
+    }
+
+    @Override
+    public long getInsertLatencyMedianNanos() {
+        return this.insertLatency.percentile(0.5);
+    }
+
+    @Override
+    public long getInsertLatency99thPercentileNanos() {
+        return this.insertLatency.percentile(0.99);
+    }
+
+    @Override
+    public long getLookupLatencyMedianNanos() {
+        return this.lookupLatency.percentile(0.5);
+    }
+
+    @Override
+    public long getLookupLatency99thPercentileNanos() {
+        return this.lookupLatency.percentile(0.99);
+    }
+
+    @Override
+    public int getSize() {
+        return this.tree.size();
+    }
+
+    @Override
+    public int getNodes() {
+        return shape().nodes;
+    }
+
+    @Override
+    public int getHeight() {
+        return shape().height;
+    }
+
+    @Override
+    public double getAverageDepth() {
+        return shape().averageDepth;
+    }
+
+    @Override
+    public double getBalanceFactor() {
+        return shape().balanceFactor();
+    }
+
+    /**
+     * Sets every counter and histogram back to zero.
+     */
+    @Override
+    public void reset() {
+        this.inserts.reset();
+        this.lookups.reset();
+        this.comparisons.reset();
+        this.rotations.reset();
+        this.insertLatency.reset();
+        this.lookupLatency.reset();
+    }
+
+    @Override
+    public String toString() {
+        return "inserts=" + getInserts() + ", lookups=" + getLookups() + ", averageComparisons="
+                + String.format("%.2f", getAverageComparisons()) + ", rotations=" + getRotations()
+                + ", insertLatencyP99=" + getInsertLatency99thPercentileNanos() + "ns, lookupLatencyP99="
+                + getLookupLatency99thPercentileNanos() + "ns";
+    }
+}
@@ -0,0 +1,30 @@
+/**
+ * The JMX view of a TreeMetrics. Every attribute is a counter or histogram
+ * read, so it can be polled as often as needed; the shape of the tree,
+ * which takes a walk over it, is a separate TreeShapeMBean.
+ */
+public interface TreeMetricsMBean {
+
+    public long getInserts();
+
+    public long getLookups();
+
+    public long getComparisons();
+
+    public double getAverageComparisons();
+
+    public long getRotations();
+
+    public long getInsertLatencyMedianNanos();
+
+    public long getInsertLatency99thPercentileNanos();
+
+    public long getLookupLatencyMedianNanos();
+
+    public long getLookupLatency99thPercentileNanos();
+
+    public int getSize();
+
+    public void reset();
+
+}
@@ -0,0 +1,17 @@
+/**
+ * The JMX view of the shape of a tree, registered next to its
+ * TreeMetricsMBean only when asked for, see TreeMetrics.register(String,
+ * boolean). All four attributes come from one TreeMetrics.Shape, which is
+ * measured again, walking the whole tree, only after the tree changed.
+ */
+public interface TreeShapeMBean {
+
+    public int getNodes();
+
+    public int getHeight();
+
+    public double getAverageDepth();
+
+    public double getBalanceFactor();
+
+}